@@ -0,0 +1,77 @@
+-- Schema changes of the payment service (PostgreSQL).
+-- The schema is managed outside this service (no ddl-auto, no migration tool), apply each change before deploying
+-- the version that needs it. Statements match the entity mappings, ids use the entity sequences Hibernate expects
+-- (<table>_seq, allocation size 50).
+
+-- Pre-warmed gateway hosted payment page of a payment transaction (HostedPaymentPrewarmer)
+alter table payment_transaction add column hosted_payment_url varchar(2048);
+alter table payment_transaction add column hosted_payment_url_expires_at timestamp(6);
+
+-- Durable inbox of the gateway payment webhooks (WebhookInboxService)
+create sequence webhook_inbox_seq start with 1 increment by 50;
+create table webhook_inbox (
+    id              bigint        not null primary key,
+    created_at      timestamp(6),
+    updated_at      timestamp(6),
+    gateway         varchar(20)   not null,
+    event_key       varchar(255)  not null,
+    order_key       varchar(255)  not null,
+    payload         text          not null,
+    status          varchar(20)   not null,
+    attempts        integer       not null,
+    next_attempt_at timestamp(6)  not null,
+    last_error      varchar(2000),
+    constraint uk_webhook_inbox_event_key unique (event_key)
+);
+create index idx_webhook_inbox_status_next_attempt on webhook_inbox (status, next_attempt_at);
+create index idx_webhook_inbox_order_key on webhook_inbox (order_key);
+
+-- Optimistic locking version of purchase orders and payment transactions (VersionedEntity).
+-- The default gives the existing rows version 0, Hibernate expects a non null version on the rows it loads
+alter table purchase_order add column version bigint not null default 0;
+alter table payment_transaction add column version bigint not null default 0;
+
+-- Transactional outbox of the kafka events (OutboxRelay), rows are deleted once published
+create sequence outbox_event_seq start with 1 increment by 50;
+create table outbox_event (
+    id          bigint        not null primary key,
+    created_at  timestamp(6),
+    updated_at  timestamp(6),
+    topic       varchar(255)  not null,
+    message_key varchar(255),
+    payload     text          not null,
+    attempts    integer       not null,
+    last_error  varchar(2000)
+);
+-- If the table was created before events were keyed
+-- alter table outbox_event add column message_key varchar(255);
+
+-- Latest transaction pointer of purchase orders and indexed lookup keys (PurchaseOrderService)
+alter table purchase_order add column latest_transaction_id bigint;
+alter table purchase_order add column latest_status varchar(255);
+alter table purchase_order add column paid boolean default false;
+create index idx_purchase_order_uuid on purchase_order (uuid);
+create index idx_payment_transaction_purchase_order_updated_at on payment_transaction (purchase_order_id, updated_at);
+create index idx_payment_transaction_reference on payment_transaction (transaction_reference);
+-- Reference lookups are exact matches on the unique (reference_id, reference_type) index, the entity stores the type
+-- lowercase. Run first, a non zero count means orders that differ only by the case of their type and need merging
+--   select count(*) from (select reference_id, lower(reference_type) from purchase_order
+--                         group by 1, 2 having count(*) > 1) duplicates;
+update purchase_order set reference_type = lower(reference_type) where reference_type <> lower(reference_type);
+-- Pointer backfill, the latest transaction is the last updated one, paid if any transaction was authorized or hold authorized.
+-- Orders without a pointer fall back to the history queries, so the backfill can run after the deployment
+update purchase_order o set latest_transaction_id = t.id, latest_status = t.transaction_status
+from (select distinct on (purchase_order_id) purchase_order_id, id, transaction_status
+      from payment_transaction order by purchase_order_id, updated_at desc, id desc) t
+where t.purchase_order_id = o.id and o.latest_transaction_id is null;
+update purchase_order o set paid = exists (select 1 from payment_transaction t
+                                           where t.purchase_order_id = o.id and t.transaction_status in ('A', 'H'))
+where o.paid is not true;
+-- Lookups must stay index scans (idx_purchase_order_uuid, the unique reference index, idx_payment_transaction_reference)
+--   explain select * from purchase_order where uuid = '00000000-0000-0000-0000-000000000000';
+--   explain select * from purchase_order where reference_id = '1' and reference_type = 'consultation';
+--   explain select * from payment_transaction where transaction_reference = '1';
+
+-- Outbox events that can't be published are parked instead of holding back their ordering group (OutboxRelay).
+-- A parked event is published again by clearing the flag: update outbox_event set parked = false, attempts = 0 where id = ...
+alter table outbox_event add column parked boolean not null default false;
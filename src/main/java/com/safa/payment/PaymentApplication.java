@@ -2,6 +2,8 @@ package com.safa.payment;
 
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnThreading;
+import org.springframework.boot.autoconfigure.thread.Threading;
 
 import io.swagger.v3.oas.annotations.OpenAPIDefinition;
 import io.swagger.v3.oas.annotations.enums.SecuritySchemeType;
@@ -12,6 +14,7 @@ import org.modelmapper.convention.MatchingStrategies;
 import org.springframework.context.annotation.Bean;
 import org.springframework.data.jpa.repository.config.EnableJpaAuditing;
 import org.springframework.kafka.annotation.EnableKafka;
+import org.springframework.scheduling.annotation.EnableScheduling;
 import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 
 import java.util.concurrent.Executor;
@@ -19,6 +22,7 @@ import java.util.concurrent.Executor;
 @SpringBootApplication
 @EnableKafka
 @EnableJpaAuditing
+@EnableScheduling
 @OpenAPIDefinition(info = @Info(title = "Integration with payment gateways", version = "v1"))
 @SecurityScheme(
         name = "bearerAuth",
@@ -38,7 +42,11 @@ public class PaymentApplication {
     }
 
 
+    /**
+     * Platform threads executor of the background work submitted to it (@Async isn't enabled), replaced by {@link com.safa.payment.config.VirtualThreadConfig} when virtual threads are enabled
+     */
     @Bean
+    @ConditionalOnThreading(Threading.PLATFORM)
     public Executor taskExecutor() {
         ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
         executor.setCorePoolSize(2);
@@ -15,12 +15,61 @@ public enum PaymentTransactionPaymentStatus {
     LOCKED("L"),
     EXPIRED("V");
 
+    // Status by the char of its one letter short code
+    private static final PaymentTransactionPaymentStatus[] BY_SHORT_CODE = new PaymentTransactionPaymentStatus[128];
+    // Allowed transitions, indexed by the ordinal of the current status then of the next status
+    private static final boolean[][] TRANSITIONS = new boolean[values().length][values().length];
+
+    static {
+        for (PaymentTransactionPaymentStatus status : values()) {
+            BY_SHORT_CODE[status.shortCode.charAt(0)] = status;
+        }
+        // Waiting for the first click, the gateway reports the attempt from initiated onwards
+        allow(READY_FOR_PAYMENT, INITIATED, AUTHENTICATED, HOLD_AUTHORIZED, AUTHORIZED, DECLINED, ERROR, CANCELLED, LOCKED, EXPIRED);
+        allow(INITIATED, AUTHENTICATED, HOLD_AUTHORIZED, AUTHORIZED, DECLINED, ERROR, CANCELLED, LOCKED, EXPIRED);
+        allow(AUTHENTICATED, HOLD_AUTHORIZED, AUTHORIZED, DECLINED, ERROR, CANCELLED, LOCKED, EXPIRED);
+        // A failed attempt can be followed by a new attempt of the same order
+        for (PaymentTransactionPaymentStatus failed : new PaymentTransactionPaymentStatus[]{DECLINED, ERROR, LOCKED, EXPIRED}) {
+            allow(failed, INITIATED, AUTHENTICATED, HOLD_AUTHORIZED, AUTHORIZED, DECLINED, ERROR, CANCELLED, LOCKED, EXPIRED);
+        }
+        // A payment completed before the cancellation was processed is still recorded
+        allow(CANCELLED, HOLD_AUTHORIZED, AUTHORIZED);
+        // Paid, only captured, refunded or reversed afterwards
+        allow(HOLD_AUTHORIZED, AUTHORIZED, REFUNDED, PARTIALLY_REVERSED, REVERSED, CANCELLED);
+        allow(AUTHORIZED, REFUNDED, PARTIALLY_REVERSED, REVERSED);
+        allow(PARTIALLY_REVERSED, PARTIALLY_REVERSED, REFUNDED, REVERSED);
+    }
+
     private String shortCode;
 
     PaymentTransactionPaymentStatus(String shortCode) {
         this.shortCode = shortCode;
     }
 
+    private static void allow(PaymentTransactionPaymentStatus from, PaymentTransactionPaymentStatus... to) {
+        for (PaymentTransactionPaymentStatus next : to) {
+            TRANSITIONS[from.ordinal()][next.ordinal()] = true;
+        }
+    }
+
+    /**
+     * Status of the one letter short code, null if unknown
+     */
+    public static PaymentTransactionPaymentStatus fromShortCode(String shortCode) {
+        if (shortCode == null || shortCode.length() != 1 || shortCode.charAt(0) >= BY_SHORT_CODE.length) {
+            return null;
+        }
+        return BY_SHORT_CODE[shortCode.charAt(0)];
+    }
+
+    /**
+     * Whether a transaction in this status can be updated to the next status, e.g. a late initiated update
+     * can't overwrite an authorized transaction and a refunded transaction is final
+     */
+    public boolean canTransitionTo(PaymentTransactionPaymentStatus next) {
+        return TRANSITIONS[ordinal()][next.ordinal()];
+    }
+
     public static boolean isFailedStatus(String status) {
         return DECLINED.shortCode.equals(status)
                 || ERROR.shortCode.equals(status)
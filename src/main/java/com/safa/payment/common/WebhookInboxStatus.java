@@ -0,0 +1,8 @@
+package com.safa.payment.common;
+
+public enum WebhookInboxStatus {
+    PENDING, // Waiting for the worker, or for the next retry
+    PROCESSING, // Claimed by a worker, claimable again after the visibility timeout
+    DONE,
+    FAILED // Max attempts reached
+}
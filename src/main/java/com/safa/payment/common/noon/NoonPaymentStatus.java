@@ -4,6 +4,9 @@ package com.safa.payment.common.noon;
 import com.safa.payment.common.PaymentTransactionPaymentStatus;
 import org.apache.commons.lang3.StringUtils;
 
+import java.util.HashMap;
+import java.util.Map;
+
 public enum NoonPaymentStatus {
     DS_RESULT_VERIFIED("3DS_RESULT_VERIFIED", PaymentTransactionPaymentStatus.AUTHORIZED), // User has been successfully authenticated via the 3D Secure protocol.
 
@@ -20,6 +23,14 @@ public enum NoonPaymentStatus {
     REVERSED("REVERSED", PaymentTransactionPaymentStatus.REVERSED),//Order has been fully reversed
     PARTIALLY_REVERSED("PARTIALLY_REVERSED", PaymentTransactionPaymentStatus.PARTIALLY_REVERSED);// Order has been partially refunded
 
+    private static final Map<String, NoonPaymentStatus> BY_STATUS = new HashMap<>();
+
+    static {
+        for (NoonPaymentStatus noonPaymentStatus : values()) {
+            BY_STATUS.put(noonPaymentStatus.status, noonPaymentStatus);
+        }
+    }
+
     private final PaymentTransactionPaymentStatus paymentTransactionPaymentStatus;
 
     private final String status;
@@ -46,11 +57,9 @@ public enum NoonPaymentStatus {
 
     public static PaymentTransactionPaymentStatus getPaymentTransactionPaymentStatus(String status) {
         // Match Noon's status to PaymentTransactionPaymentStatus
-        for (NoonPaymentStatus s : NoonPaymentStatus.values()) {
-            if (StringUtils.equals(s.status, status)) {
-                return s.paymentTransactionPaymentStatus;
-            }
-
+        NoonPaymentStatus noonPaymentStatus = status != null ? BY_STATUS.get(status) : null;
+        if (noonPaymentStatus != null) {
+            return noonPaymentStatus.paymentTransactionPaymentStatus;
         }
         throw new EnumConstantNotPresentException(NoonPaymentStatus.class, String.format("No enum constant for %s", status));
     }
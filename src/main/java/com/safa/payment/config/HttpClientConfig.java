@@ -0,0 +1,186 @@
+package com.safa.payment.config;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.safa.payment.service.gateway.GatewayAsyncClient;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.httpcomponents.hc5.PoolingHttpClientConnectionManagerMetricsBinder;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.hc.client5.http.config.ConnectionConfig;
+import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
+import org.apache.hc.client5.http.impl.async.HttpAsyncClients;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManager;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManagerBuilder;
+import org.apache.hc.client5.http.impl.nio.PoolingAsyncClientConnectionManager;
+import org.apache.hc.client5.http.impl.nio.PoolingAsyncClientConnectionManagerBuilder;
+import org.apache.hc.core5.io.CloseMode;
+import org.apache.hc.core5.util.TimeValue;
+import org.apache.hc.core5.util.Timeout;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.web.client.RestTemplateBuilder;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.web.client.RestTemplate;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Pooled, keep-alive http clients for the outgoing calls (Telr, Noon and Slack).
+ * Every client has its own bounded connection pool, so a slow gateway can only exhaust its own pool
+ * and callers fail fast after the pool acquire timeout instead of holding request threads.
+ * Gateways also get a non-blocking client with a separate pool, used by the async pay-now flow.
+ * Settings are read per client from gateway.http.{client}.*, pool usage is exposed as httpcomponents.httpclient.pool.* metrics
+ *
+ * @author Qusai Safa
+ */
+@Configuration
+@Slf4j
+public class HttpClientConfig implements DisposableBean {
+
+    public static final String TELR = "telr";
+    public static final String NOON = "noon";
+    public static final String SLACK = "slack";
+    public static final String TELR_REST_TEMPLATE = "telrRestTemplate";
+    public static final String NOON_REST_TEMPLATE = "noonRestTemplate";
+    public static final String SLACK_REST_TEMPLATE = "slackRestTemplate";
+    public static final String TELR_ASYNC_CLIENT = "telrAsyncClient";
+    public static final String NOON_ASYNC_CLIENT = "noonAsyncClient";
+    private static final String ASYNC_POOL_SUFFIX = "-async";
+
+    private static final String PROPERTY_TEMPLATE = "gateway.http.%s.%s";
+    private static final int DEFAULT_MAX_CONNECTIONS = 50;
+    private static final long DEFAULT_CONNECT_TIMEOUT_MS = 2000;
+    private static final long DEFAULT_READ_TIMEOUT_MS = 10000;
+    private static final long DEFAULT_POOL_ACQUIRE_TIMEOUT_MS = 1000;
+    private static final long DEFAULT_KEEP_ALIVE_MS = 60000;
+
+    private final Environment environment;
+    private final MeterRegistry meterRegistry;
+    private final ObjectMapper objectMapper;
+    private final List<Closeable> httpClients = new CopyOnWriteArrayList<>();
+
+    @Autowired
+    public HttpClientConfig(Environment environment, MeterRegistry meterRegistry, ObjectMapper objectMapper) {
+        this.environment = environment;
+        this.meterRegistry = meterRegistry;
+        this.objectMapper = objectMapper;
+    }
+
+    @Bean(TELR_REST_TEMPLATE)
+    public RestTemplate telrRestTemplate(RestTemplateBuilder restTemplateBuilder) {
+        return buildRestTemplate(restTemplateBuilder, TELR);
+    }
+
+    @Bean(NOON_REST_TEMPLATE)
+    public RestTemplate noonRestTemplate(RestTemplateBuilder restTemplateBuilder) {
+        return buildRestTemplate(restTemplateBuilder, NOON);
+    }
+
+    @Bean(SLACK_REST_TEMPLATE)
+    public RestTemplate slackRestTemplate(RestTemplateBuilder restTemplateBuilder) {
+        return buildRestTemplate(restTemplateBuilder, SLACK);
+    }
+
+    @Bean(TELR_ASYNC_CLIENT)
+    public GatewayAsyncClient telrAsyncClient() {
+        return new GatewayAsyncClient(TELR, buildHttpAsyncClient(TELR), objectMapper);
+    }
+
+    @Bean(NOON_ASYNC_CLIENT)
+    public GatewayAsyncClient noonAsyncClient() {
+        return new GatewayAsyncClient(NOON, buildHttpAsyncClient(NOON), objectMapper);
+    }
+
+    private RestTemplate buildRestTemplate(RestTemplateBuilder restTemplateBuilder, String client) {
+        CloseableHttpClient httpClient = buildHttpClient(client);
+        return restTemplateBuilder
+                .requestFactory(() -> new HttpComponentsClientHttpRequestFactory(httpClient))
+                .build();
+    }
+
+    private CloseableHttpClient buildHttpClient(String client) {
+        int maxConnections = getProperty(client, "max-connections", Integer.class, DEFAULT_MAX_CONNECTIONS);
+        PoolingHttpClientConnectionManager connectionManager = PoolingHttpClientConnectionManagerBuilder.create()
+                .setMaxConnTotal(maxConnections)
+                .setMaxConnPerRoute(maxConnections)
+                .setDefaultConnectionConfig(buildConnectionConfig(client))
+                .build();
+        RequestConfig requestConfig = buildRequestConfig(client);
+        CloseableHttpClient httpClient = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .evictExpiredConnections()
+                .evictIdleConnections(requestConfig.getConnectionKeepAlive())
+                .build();
+
+        new PoolingHttpClientConnectionManagerMetricsBinder(connectionManager, client).bindTo(meterRegistry);
+        httpClients.add(httpClient);
+        log.info("Http client ({}) created, max connections {}, request config {}", client, maxConnections, requestConfig);
+        return httpClient;
+    }
+
+    private CloseableHttpAsyncClient buildHttpAsyncClient(String client) {
+        int maxConnections = getProperty(client, "max-connections", Integer.class, DEFAULT_MAX_CONNECTIONS);
+        PoolingAsyncClientConnectionManager connectionManager = PoolingAsyncClientConnectionManagerBuilder.create()
+                .setMaxConnTotal(maxConnections)
+                .setMaxConnPerRoute(maxConnections)
+                .setDefaultConnectionConfig(buildConnectionConfig(client))
+                .build();
+        RequestConfig requestConfig = buildRequestConfig(client);
+        CloseableHttpAsyncClient httpAsyncClient = HttpAsyncClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .evictExpiredConnections()
+                .evictIdleConnections(requestConfig.getConnectionKeepAlive())
+                .build();
+        httpAsyncClient.start();
+
+        new PoolingHttpClientConnectionManagerMetricsBinder(connectionManager, client + ASYNC_POOL_SUFFIX).bindTo(meterRegistry);
+        httpClients.add(httpAsyncClient);
+        log.info("Async http client ({}) created, max connections {}, request config {}", client, maxConnections, requestConfig);
+        return httpAsyncClient;
+    }
+
+    private ConnectionConfig buildConnectionConfig(String client) {
+        return ConnectionConfig.custom()
+                .setConnectTimeout(Timeout.ofMilliseconds(getProperty(client, "connect-timeout-ms", Long.class, DEFAULT_CONNECT_TIMEOUT_MS)))
+                .setSocketTimeout(Timeout.ofMilliseconds(getProperty(client, "read-timeout-ms", Long.class, DEFAULT_READ_TIMEOUT_MS)))
+                .setValidateAfterInactivity(TimeValue.ofSeconds(5))
+                .build();
+    }
+
+    private RequestConfig buildRequestConfig(String client) {
+        return RequestConfig.custom()
+                .setConnectionRequestTimeout(Timeout.ofMilliseconds(getProperty(client, "pool-acquire-timeout-ms", Long.class, DEFAULT_POOL_ACQUIRE_TIMEOUT_MS)))
+                .setResponseTimeout(Timeout.ofMilliseconds(getProperty(client, "read-timeout-ms", Long.class, DEFAULT_READ_TIMEOUT_MS)))
+                .setConnectionKeepAlive(TimeValue.ofMilliseconds(getProperty(client, "keep-alive-ms", Long.class, DEFAULT_KEEP_ALIVE_MS)))
+                .build();
+    }
+
+    private <T> T getProperty(String client, String key, Class<T> type, T defaultValue) {
+        return environment.getProperty(String.format(PROPERTY_TEMPLATE, client, key), type, defaultValue);
+    }
+
+    @Override
+    public void destroy() {
+        for (Closeable httpClient : httpClients) {
+            try {
+                if (httpClient instanceof CloseableHttpAsyncClient httpAsyncClient) {
+                    httpAsyncClient.close(CloseMode.GRACEFUL);
+                    continue;
+                }
+                httpClient.close();
+            } catch (IOException e) {
+                log.warn("Failed closing http client", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.safa.payment.config;
+
+import com.safa.payment.service.KafkaConsumerService;
+import com.safa.payment.service.KafkaFailureRouter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.admin.NewTopic;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.kafka.ConcurrentKafkaListenerContainerFactoryConfigurer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.kafka.config.ConcurrentKafkaListenerContainerFactory;
+import org.springframework.kafka.config.TopicBuilder;
+import org.springframework.kafka.core.ConsumerFactory;
+import org.springframework.kafka.core.KafkaAdmin;
+import org.springframework.kafka.listener.ContainerProperties;
+import org.springframework.kafka.listener.DefaultErrorHandler;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Retry and dead letter topics of the consumed topics (see {@link KafkaFailureRouter}), created on startup if missing,
+ * the error handler of the listener containers and the listener container factory of the retry consumers. Retry records are acknowledged manually,
+ * a record not due yet is nacked with the remaining delay, the consumer is paused meanwhile instead of blocking
+ *
+ * @author Qusai Safa
+ */
+@Configuration
+@Slf4j
+public class KafkaRetryConfig {
+
+    public static final String RETRY_CONTAINER_FACTORY = "retryKafkaListenerContainerFactory";
+
+    @Bean(RETRY_CONTAINER_FACTORY)
+    public ConcurrentKafkaListenerContainerFactory<Object, Object> retryKafkaListenerContainerFactory(
+            ConcurrentKafkaListenerContainerFactoryConfigurer configurer, ConsumerFactory<Object, Object> consumerFactory) {
+        ConcurrentKafkaListenerContainerFactory<Object, Object> factory = new ConcurrentKafkaListenerContainerFactory<>();
+        configurer.configure(factory, consumerFactory);
+        factory.getContainerProperties().setAckMode(ContainerProperties.AckMode.MANUAL_IMMEDIATE);
+        return factory;
+    }
+
+    /**
+     * Error handler of all the listener containers, a record still failing after the redeliveries (e.g. the parallel
+     * consumer couldn't forward it) is moved to the dead letter topic instead of being logged and skipped.
+     * Records of the dead letter topics themselves (slack alerts) are only logged, they'd loop back otherwise
+     */
+    @Bean
+    public DefaultErrorHandler kafkaErrorHandler(KafkaFailureRouter kafkaFailureRouter) {
+        return new DefaultErrorHandler((record, exception) -> {
+            if (record.topic().endsWith(KafkaFailureRouter.DLT_SUFFIX)) {
+                log.error("Dead letter record {} of {} skipped: {}", record.offset(), record.topic(), exception.getMessage());
+                return;
+            }
+            @SuppressWarnings("unchecked")
+            ConsumerRecord<String, String> failedRecord = (ConsumerRecord<String, String>) record;
+            kafkaFailureRouter.deadLetter(failedRecord, exception);
+        });
+    }
+
+    @Bean
+    public KafkaAdmin.NewTopics failureTopics(@Value("${topic.consultation:consultation}") String consultationTopic) {
+        List<NewTopic> topics = new ArrayList<>();
+        for (String topic : List.of(KafkaConsumerService.PURCHASE_ORDER_TOPIC, consultationTopic)) {
+            for (int tier = 0; tier < KafkaFailureRouter.RETRY_TIERS; tier++) {
+                topics.add(TopicBuilder.name(topic + KafkaFailureRouter.RETRY_TOPIC_INFIX + tier).build());
+            }
+            topics.add(TopicBuilder.name(topic + KafkaFailureRouter.DLT_SUFFIX).build());
+        }
+        return new KafkaAdmin.NewTopics(topics.toArray(NewTopic[]::new));
+    }
+}
@@ -0,0 +1,32 @@
+package com.safa.payment.config;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnThreading;
+import org.springframework.boot.autoconfigure.thread.Threading;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Opt-in virtual threads mode (Java 21+, spring.threads.virtual.enabled=true, see the virtual-threads profile).
+ * Spring boot switches tomcat request handling and the kafka listener containers to virtual threads,
+ * this config replaces the fixed taskExecutor (Noon async gateway calls, outbox relay, dead letter replay) with a
+ * virtual thread per task executor. @Async isn't enabled in this application (no @EnableAsync), @Async methods run on
+ * the calling thread in both modes.
+ * Pinned thread tracing is only passed by spring-boot:run -Pjava21, start the packaged jar with
+ * -Djdk.tracePinnedThreads=short (e.g. JAVA_TOOL_OPTIONS in the container) to get it there.
+ *
+ * @author Qusai Safa
+ */
+@Configuration
+@ConditionalOnThreading(Threading.VIRTUAL)
+public class VirtualThreadConfig {
+
+    @Bean
+    public Executor taskExecutor() {
+        SimpleAsyncTaskExecutor executor = new SimpleAsyncTaskExecutor("Payment-service-");
+        executor.setVirtualThreads(true);
+        return executor;
+    }
+}
@@ -1,5 +1,6 @@
 package com.safa.payment.config;
 
+import jakarta.servlet.DispatcherType;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
@@ -50,6 +51,8 @@ public class WebSecurityConfig {
                         "/api/v1/transaction/**",
                         "/api/v1/pay-now/**").permitAll()
                 .requestMatchers(HttpMethod.OPTIONS, "/**").permitAll()
+                // Async responses (pay-now, hosted payment link) are dispatched again after the request was already authorized
+                .dispatcherTypeMatchers(DispatcherType.ASYNC).permitAll()
                 .anyRequest().authenticated();
 
         // Add a filter to validate the tokens with every request
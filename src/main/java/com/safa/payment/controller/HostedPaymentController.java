@@ -2,6 +2,8 @@ package com.safa.payment.controller;
 
 import com.safa.payment.dto.IncomingDto;
 import com.safa.payment.dto.common.HostedPaymentOutGoingDto;
+import com.safa.payment.service.OptimisticRetry;
+import com.safa.payment.service.PurchaseOrderLocks;
 import com.safa.payment.service.gateway.IPaymentTransactionService;
 import com.safa.payment.service.gateway.PaymentTransactionServiceFactory;
 import io.swagger.v3.oas.annotations.Operation;
@@ -11,30 +13,42 @@ import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
+import java.util.concurrent.CompletableFuture;
+
 @RestController
 @RequestMapping("/api/v1/hosted-payment")
 @CrossOrigin()
 public class HostedPaymentController {
 
+    private static final String HOSTED_PAYMENT_LINK_OPERATION = "hosted_payment_link";
+
     private final PaymentTransactionServiceFactory paymentTransactionServiceFactory;
+    private final PurchaseOrderLocks purchaseOrderLocks;
+    private final OptimisticRetry optimisticRetry;
 
     @Autowired
-    HostedPaymentController(PaymentTransactionServiceFactory paymentTransactionServiceFactory) {
+    HostedPaymentController(PaymentTransactionServiceFactory paymentTransactionServiceFactory, PurchaseOrderLocks purchaseOrderLocks,
+                            OptimisticRetry optimisticRetry) {
         this.paymentTransactionServiceFactory = paymentTransactionServiceFactory;
+        this.purchaseOrderLocks = purchaseOrderLocks;
+        this.optimisticRetry = optimisticRetry;
     }
 
     /**
-     * Get payment page url through sending request to telr payment gateway
+     * Get payment page url through sending request to telr payment gateway.
+     * Like pay-now, the order is loaded and validated under the purchase order lock, the lock is released before the gateway responds
      */
     @Operation(security = {@SecurityRequirement(name = "bearerAuth")})
     @PostMapping("/link")
-    public ResponseEntity<HostedPaymentOutGoingDto> getHostedPaymentPage(
-            @RequestBody IncomingDto paymentIncomingDto) {
-        // Find the payment gateway for this request
-        IPaymentTransactionService paymentTransactionService = this.paymentTransactionServiceFactory.getInstanceByReference(paymentIncomingDto.getReferenceId(), paymentIncomingDto.getReferenceType());
-        HostedPaymentOutGoingDto response =
-                paymentTransactionService.getPayNowUrlByReference(
-                        paymentIncomingDto.getReferenceId(), paymentIncomingDto.getReferenceType());
-        return new ResponseEntity<>(response, HttpStatus.OK);
+    public CompletableFuture<ResponseEntity<HostedPaymentOutGoingDto>> getHostedPaymentPage(
+            @RequestBody IncomingDto paymentIncomingDto) throws Exception {
+        String referenceId = paymentIncomingDto.getReferenceId();
+        String referenceType = paymentIncomingDto.getReferenceType();
+        return purchaseOrderLocks.call(referenceId, referenceType, () -> optimisticRetry.call(HOSTED_PAYMENT_LINK_OPERATION, () -> {
+                    // Find the payment gateway for this request
+                    IPaymentTransactionService paymentTransactionService = this.paymentTransactionServiceFactory.getInstanceByReference(referenceId, referenceType);
+                    return paymentTransactionService.getPayNowUrlByReferenceAsync(referenceId, referenceType);
+                }))
+                .thenApply(response -> new ResponseEntity<>(response, HttpStatus.OK));
     }
 }
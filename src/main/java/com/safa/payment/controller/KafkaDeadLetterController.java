@@ -0,0 +1,51 @@
+package com.safa.payment.controller;
+
+import com.safa.payment.service.KafkaDeadLetterService;
+import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.responses.ApiResponse;
+import io.swagger.v3.oas.annotations.responses.ApiResponses;
+import io.swagger.v3.oas.annotations.security.SecurityRequirement;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.access.annotation.Secured;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.Map;
+
+/**
+ * Admin APIs of the kafka dead letter topics
+ *
+ * @author Qusai Safa
+ */
+@RestController
+@RequestMapping("/api/v1/kafka/dead-letter")
+@CrossOrigin()
+public class KafkaDeadLetterController {
+
+    private final static String ROLE_ADMIN = "ROLE_ADMIN";
+
+    private final KafkaDeadLetterService kafkaDeadLetterService;
+
+    @Autowired
+    KafkaDeadLetterController(KafkaDeadLetterService kafkaDeadLetterService) {
+        this.kafkaDeadLetterService = kafkaDeadLetterService;
+    }
+
+    /**
+     * Start re-publishing the dead lettered records of a topic to the topic, at a limited rate
+     */
+    @Operation(summary = "Replay dead lettered kafka records", security = {@SecurityRequirement(name = "bearerAuth")})
+    @ApiResponses(value = {@ApiResponse(responseCode = "202", description = "Replay started"),
+            @ApiResponse(responseCode = "400", description = "Unknown topic, limit or rate out of range"),
+            @ApiResponse(responseCode = "409", description = "A replay is already running"),
+            @ApiResponse(responseCode = "503", description = "The replay can't be started now")})
+    @Secured(ROLE_ADMIN)
+    @PostMapping("/{topic}/replay")
+    public ResponseEntity<Map<String, Object>> replay(@PathVariable("topic") String topic,
+                                                      @RequestParam(name = "limit", defaultValue = "100") int limit,
+                                                      @RequestParam(name = "ratePerSecond", defaultValue = "10") int ratePerSecond) {
+        kafkaDeadLetterService.replay(topic, limit, ratePerSecond);
+        return new ResponseEntity<>(Map.of("topic", topic, "limit", limit, "ratePerSecond", ratePerSecond), HttpStatus.ACCEPTED);
+    }
+}
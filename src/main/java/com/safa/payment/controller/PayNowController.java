@@ -2,15 +2,22 @@ package com.safa.payment.controller;
 
 
 import com.safa.payment.entity.PurchaseOrder;
+import com.safa.payment.repository.PurchaseOrderReference;
+import com.safa.payment.service.OptimisticRetry;
+import com.safa.payment.service.PurchaseOrderLocks;
 import com.safa.payment.service.PurchaseOrderService;
 import com.safa.payment.service.gateway.IPaymentTransactionService;
 import com.safa.payment.service.gateway.PaymentTransactionServiceFactory;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.responses.ApiResponse;
-import jakarta.servlet.http.HttpServletResponse;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
+import java.util.concurrent.CompletableFuture;
+
 
 /**
  * This controller responsible for creating the hosted payment and redirect to it based on the
@@ -23,31 +30,40 @@ import org.springframework.web.bind.annotation.*;
 @CrossOrigin()
 public class PayNowController {
 
+    private static final String PAY_NOW_OPERATION = "pay_now";
+
     private final PaymentTransactionServiceFactory paymentTransactionServiceFactory;
     private final PurchaseOrderService purchaseOrderService;
+    private final PurchaseOrderLocks purchaseOrderLocks;
+    private final OptimisticRetry optimisticRetry;
 
     @Autowired
-    PayNowController(PaymentTransactionServiceFactory paymentTransactionServiceFactory, PurchaseOrderService purchaseOrderService) {
+    PayNowController(PaymentTransactionServiceFactory paymentTransactionServiceFactory, PurchaseOrderService purchaseOrderService,
+                     PurchaseOrderLocks purchaseOrderLocks, OptimisticRetry optimisticRetry) {
         this.paymentTransactionServiceFactory = paymentTransactionServiceFactory;
         this.purchaseOrderService = purchaseOrderService;
+        this.purchaseOrderLocks = purchaseOrderLocks;
+        this.optimisticRetry = optimisticRetry;
 
     }
 
     /**
      * Create telr payment link for a specific purchase order based on the path variable {uuid} and redirect to the created payment link
+     * The gateway call is async, so the servlet thread is released while waiting for the gateway response.
+     * The order is loaded and validated under the purchase order lock, the lock is released before the gateway responds
      */
     @Operation(summary = "Pay now API")
     @ApiResponse(responseCode = "302", description = "Pay-now API which creates instant telr payment link and redirect to telr hosted payment page")
     @GetMapping(value = "/{uuid}")
-    public void redirectToPaymentPage(
-            HttpServletResponse httpServletResponse, @PathVariable("uuid") String uuid) {
-        PurchaseOrder order = this.purchaseOrderService.findByUuid(uuid);
-        // Find the payment gateway for this request
-        IPaymentTransactionService paymentTransactionService = this.paymentTransactionServiceFactory.getInstanceByUuid(uuid);
-        String url =
-                paymentTransactionService.createHostedPaymentUrl(order);
-        httpServletResponse.setHeader("Location", url);
-        httpServletResponse.setStatus(302);
+    public CompletableFuture<ResponseEntity<Void>> redirectToPaymentPage(@PathVariable("uuid") String uuid) {
+        PurchaseOrderReference reference = this.purchaseOrderService.findReferenceByUuid(uuid);
+        return purchaseOrderLocks.call(reference.getReferenceId(), reference.getReferenceType(), () -> optimisticRetry.call(PAY_NOW_OPERATION, () -> {
+                    PurchaseOrder order = this.purchaseOrderService.findByUuid(uuid);
+                    // Find the payment gateway for this request
+                    IPaymentTransactionService paymentTransactionService = this.paymentTransactionServiceFactory.getInstanceForPayment(order);
+                    return paymentTransactionService.createHostedPaymentUrlAsync(order);
+                }))
+                .thenApply(url -> ResponseEntity.status(HttpStatus.FOUND).header(HttpHeaders.LOCATION, url).build());
     }
 
 }
@@ -3,8 +3,8 @@ package com.safa.payment.controller;
 
 import com.safa.payment.dto.noon.NoonTransactionIncomingDto;
 import com.safa.payment.dto.telr.TelrPaymentTransactionIncomingDto;
+import com.safa.payment.service.WebhookInboxService;
 import com.safa.payment.service.gateway.Noon.NoonPaymentTransactionService;
-import com.safa.payment.service.gateway.Telr.TelrPaymentTransactionService;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.responses.ApiResponse;
 import jakarta.servlet.http.HttpServletResponse;
@@ -24,37 +24,38 @@ import org.springframework.web.bind.annotation.*;
 public class PaymentTransactionController {
 
 
-    public static final int WEBHOOK_MAX_RETRIES = 3;
-    private final TelrPaymentTransactionService telrPaymentTransactionService;
+    private final WebhookInboxService webhookInboxService;
     private final NoonPaymentTransactionService noonPaymentTransactionService;
 
     @Autowired
-    PaymentTransactionController(TelrPaymentTransactionService telrPaymentTransactionService, NoonPaymentTransactionService noonPaymentTransactionService) {
+    PaymentTransactionController(WebhookInboxService webhookInboxService, NoonPaymentTransactionService noonPaymentTransactionService) {
         this.noonPaymentTransactionService = noonPaymentTransactionService;
-        this.telrPaymentTransactionService = telrPaymentTransactionService;
+        this.webhookInboxService = webhookInboxService;
     }
 
     /**
-     * Telr gateway will send request to this API with the payment status and transaction details
+     * Telr gateway will send request to this API with the payment status and transaction details,
+     * the request is acknowledged once stored in the webhook inbox and processed asynchronously
      */
     @Operation(summary = "Payment transaction webhook API")
     @ApiResponse(responseCode = "200", description = "Webhook API to receive payment status from telr gateway")
     @PostMapping()
     public ResponseEntity<String> processTransaction(
             TelrPaymentTransactionIncomingDto paymentTransaction) {
-        this.telrPaymentTransactionService.processPaymentTransaction(paymentTransaction);
+        this.webhookInboxService.receiveTelrWebhook(paymentTransaction);
         return new ResponseEntity<>(HttpStatus.OK);
     }
 
     /**
-     * Noon gateway will send request to this API with the payment status and transaction details
+     * Noon gateway will send request to this API with the payment status and transaction details,
+     * the request is acknowledged once stored in the webhook inbox and processed asynchronously
      */
     @Operation(summary = "Payment transaction webhook API")
     @ApiResponse(responseCode = "200", description = "Webhook API to receive payment status from noon gateway")
     @PostMapping("/noon")
     public ResponseEntity<String> processNoonTransaction(
             @RequestBody NoonTransactionIncomingDto paymentTransaction) {
-        this.noonPaymentTransactionService.processPaymentTransaction(paymentTransaction, WEBHOOK_MAX_RETRIES);
+        this.webhookInboxService.receiveNoonWebhook(paymentTransaction);
         return new ResponseEntity<>(HttpStatus.OK);
     }
 
@@ -4,6 +4,8 @@ package com.safa.payment.controller;
 import com.safa.payment.dto.IncomingDto;
 import com.safa.payment.dto.common.PaymentTransactionDto;
 import com.safa.payment.dto.common.PurchaseOrderOutgoingDto;
+import com.safa.payment.service.OptimisticRetry;
+import com.safa.payment.service.PurchaseOrderLocks;
 import com.safa.payment.service.PurchaseOrderService;
 import com.safa.payment.service.gateway.PaymentTransactionServiceFactory;
 import io.swagger.v3.oas.annotations.Operation;
@@ -31,13 +33,21 @@ import static org.springframework.http.MediaType.APPLICATION_JSON_VALUE;
 @CrossOrigin()
 public class PurchaseOrderController {
 
+    private static final String APPLY_PROMO_OPERATION = "apply_promo";
+    private static final String CANCEL_LATEST_TRANSACTION_OPERATION = "cancel_latest_transaction";
+
     private final PurchaseOrderService purchaseOrderService;
     private final PaymentTransactionServiceFactory paymentTransactionServiceFactory;
+    private final PurchaseOrderLocks purchaseOrderLocks;
+    private final OptimisticRetry optimisticRetry;
 
     @Autowired
-    PurchaseOrderController(PurchaseOrderService purchaseOrderService, PaymentTransactionServiceFactory paymentTransactionServiceFactory) {
+    PurchaseOrderController(PurchaseOrderService purchaseOrderService, PaymentTransactionServiceFactory paymentTransactionServiceFactory,
+                            PurchaseOrderLocks purchaseOrderLocks, OptimisticRetry optimisticRetry) {
         this.purchaseOrderService = purchaseOrderService;
         this.paymentTransactionServiceFactory = paymentTransactionServiceFactory;
+        this.purchaseOrderLocks = purchaseOrderLocks;
+        this.optimisticRetry = optimisticRetry;
     }
 
     /**
@@ -48,8 +58,8 @@ public class PurchaseOrderController {
     @PostMapping(path = "/promo", consumes = APPLICATION_JSON_VALUE)
     public ResponseEntity<PurchaseOrderOutgoingDto> applyPromoCode(
             @Valid @RequestBody IncomingDto incomingDto) throws Exception {
-        PurchaseOrderOutgoingDto response =
-                purchaseOrderService.applyPromoForPurchaseOrder(incomingDto);
+        PurchaseOrderOutgoingDto response = purchaseOrderLocks.call(incomingDto.getReferenceId(), incomingDto.getReferenceType(),
+                () -> optimisticRetry.call(APPLY_PROMO_OPERATION, () -> purchaseOrderService.applyPromoForPurchaseOrder(incomingDto)));
         return new ResponseEntity<>(response, HttpStatus.OK);
     }
 
@@ -94,8 +104,9 @@ public class PurchaseOrderController {
     @DeleteMapping("/payment-transaction")
     public ResponseEntity<String> cancelLatestPaymentTransactionForReference(
             @PathParam("referenceId") String referenceId,
-            @PathParam("referenceType") String referenceType) {
-        purchaseOrderService.cancelLatestPaymentTransactionForReference(referenceId, referenceType);
+            @PathParam("referenceType") String referenceType) throws Exception {
+        purchaseOrderLocks.run(referenceId, referenceType, () -> optimisticRetry.run(CANCEL_LATEST_TRANSACTION_OPERATION,
+                () -> purchaseOrderService.cancelLatestPaymentTransactionForReference(referenceId, referenceType)));
         return new ResponseEntity<>(HttpStatus.OK);
     }
 
@@ -1,18 +0,0 @@
-package com.safa.payment.dto.noon;
-
-import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
-import lombok.Getter;
-import lombok.NoArgsConstructor;
-import lombok.Setter;
-import lombok.ToString;
-
-@Getter
-@Setter
-@ToString
-@NoArgsConstructor
-@JsonIgnoreProperties(ignoreUnknown = true)
-public class NoonPaymentOrderDetailsResponseDto {
-    private Result result;
-}
-
-
@@ -19,4 +19,7 @@ public class NoonPaymentResponseDto {
 
     private int errorCode;
 
+    // Only set by the get order call
+    private String orderStatus;
+
 }
@@ -0,0 +1,23 @@
+package com.safa.payment.dto.telr;
+
+import lombok.*;
+
+/**
+ * Identifiers of a Telr transaction read from the transaction details xml, the only fields of
+ * {@link TransactionDetails} the service uses
+ *
+ * @author Qusai Safa
+ */
+@Getter
+@Setter
+@ToString
+@NoArgsConstructor
+@AllArgsConstructor
+public class TransactionIdentifiers {
+
+    private String id;
+
+    private String agreementId;
+
+    private String cartId;
+}
@@ -16,6 +16,7 @@ import java.util.Date;
 @Setter
 public abstract class BaseEntity implements Serializable {
 
+    // Sequence per entity with the pooled optimizer (allocation size 50), one sequence call per 50 inserts
     @Id
     @GeneratedValue(strategy = GenerationType.SEQUENCE)
     private Long id;
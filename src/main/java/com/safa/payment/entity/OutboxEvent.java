@@ -0,0 +1,47 @@
+package com.safa.payment.entity;
+
+import jakarta.persistence.*;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.ToString;
+
+/**
+ * Kafka event waiting to be published, written in the transaction of the change that produced it
+ * and deleted by the outbox relay once the broker acknowledged it, or parked once it can't be published
+ */
+@Entity
+@Table(name = "outbox_event")
+@Getter
+@Setter
+@ToString
+@NoArgsConstructor
+public class OutboxEvent extends BaseEntity {
+
+    @Column(name = "topic", nullable = false)
+    private String topic;
+
+    // Kafka record key, the events of one key are published in order (null: ordered per topic)
+    @Column(name = "message_key")
+    private String messageKey;
+
+    @Column(name = "payload", nullable = false, columnDefinition = "TEXT")
+    @ToString.Exclude
+    private String payload;
+
+    @Column(name = "attempts", nullable = false)
+    private int attempts;
+
+    @Column(name = "last_error", length = 2000)
+    private String lastError;
+
+    // Not published anymore (max attempts or permanent error), the events after it in its ordering group go on
+    @Column(name = "parked", nullable = false)
+    private boolean parked;
+
+    public OutboxEvent(String topic, String messageKey, String payload) {
+        this.topic = topic;
+        this.messageKey = messageKey;
+        this.payload = payload;
+    }
+}
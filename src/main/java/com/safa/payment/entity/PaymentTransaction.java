@@ -8,12 +8,14 @@ import java.math.BigDecimal;
 import java.util.Date;
 
 @Entity
-@Table(name = "payment_transaction")
+@Table(name = "payment_transaction",
+        indexes = {@Index(name = "idx_payment_transaction_purchase_order_updated_at", columnList = "purchase_order_id, updated_at"),
+                @Index(name = "idx_payment_transaction_reference", columnList = "transaction_reference")})
 @Getter
 @Setter
 @ToString
 @EntityListeners(PaymentTransactionEntityListener.class)
-public class PaymentTransaction extends BaseEntity {
+public class PaymentTransaction extends VersionedEntity {
 
     @Column(name = "transaction_cart_id")
     private String transactionCartId;
@@ -93,8 +95,16 @@ public class PaymentTransaction extends BaseEntity {
     @Column(name = "expiresAt")
     private Date expiresAt;
 
+    // Gateway hosted payment page created ahead of the pay-now click, see HostedPaymentPrewarmer
+    @Column(name = "hosted_payment_url", length = 2048)
+    private String hostedPaymentUrl;
+
+    @Column(name = "hosted_payment_url_expires_at")
+    private Date hostedPaymentUrlExpiresAt;
+
     @ManyToOne
     @JoinColumn(name = "purchase_order_id")
+    @ToString.Exclude
     private PurchaseOrder purchaseOrder;
 
 }
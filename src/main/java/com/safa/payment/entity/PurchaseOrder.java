@@ -8,16 +8,20 @@ import lombok.Setter;
 import lombok.ToString;
 
 import java.util.List;
+import java.util.Locale;
 
 @Table(
         name = "purchase_order",
-        uniqueConstraints = {@UniqueConstraint(columnNames = {"referenceId", "referenceType"})})
+        uniqueConstraints = {@UniqueConstraint(columnNames = {"referenceId", "referenceType"})},
+        indexes = {@Index(name = "idx_purchase_order_uuid", columnList = "uuid")})
 @Entity
 @Getter
 @Setter
 @ToString
 @EqualsAndHashCode
-public class PurchaseOrder extends BaseEntity {
+public class PurchaseOrder extends VersionedEntity {
+
+    private static final String REFERENCE_KEY_SEPARATOR = ":";
 
     @Column(nullable = false)
     private String referenceId;
@@ -71,9 +75,26 @@ public class PurchaseOrder extends BaseEntity {
     @Column()
     private String email;
 
-    @OneToMany(mappedBy = "purchaseOrder", fetch = FetchType.EAGER)
+    // Loaded only when iterated, the hot paths query the latest transaction or the status aggregates they need
+    @OneToMany(mappedBy = "purchaseOrder", fetch = FetchType.LAZY)
+    @ToString.Exclude
+    @EqualsAndHashCode.Exclude
     private List<PaymentTransaction> paymentTransactions;
 
+    /**
+     * Latest payment transaction of the order, its status and whether the order was ever paid.
+     * Maintained by the transaction writes in the same database transaction, with the versioned update of the purchase
+     * order, so a stale purchase order can't overwrite them
+     */
+    @Column(name = "latest_transaction_id", insertable = false)
+    private Long latestTransactionId;
+
+    @Column(name = "latest_status", insertable = false)
+    private String latestStatus;
+
+    @Column(name = "paid", insertable = false, columnDefinition = "BOOLEAN DEFAULT FALSE")
+    private Boolean paid;
+
     /**
      * Determine the payment gateway that will be used for this request
      */
@@ -86,4 +107,22 @@ public class PurchaseOrder extends BaseEntity {
      */
     @Column()
     private String language;
+
+    /**
+     * Reference type is stored lowercase, the reference lookups are exact matches on the unique reference index
+     */
+    public void setReferenceType(String referenceType) {
+        this.referenceType = normalizeReferenceType(referenceType);
+    }
+
+    public static String normalizeReferenceType(String referenceType) {
+        return referenceType != null ? referenceType.toLowerCase(Locale.ROOT) : null;
+    }
+
+    /**
+     * Identity of the purchase order across the services, reference type (normalized) and reference id
+     */
+    public static String referenceKey(String referenceId, String referenceType) {
+        return normalizeReferenceType(referenceType) + REFERENCE_KEY_SEPARATOR + referenceId;
+    }
 }
@@ -0,0 +1,23 @@
+package com.safa.payment.entity;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.MappedSuperclass;
+import jakarta.persistence.Version;
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * Entity updated concurrently (webhooks, pay-now, promo and kafka events), saving a stale copy fails with an
+ * optimistic locking failure instead of overwriting the newer state.
+ * Existing rows get version 0 from the column default
+ */
+@MappedSuperclass
+@Getter
+@Setter
+public abstract class VersionedEntity extends BaseEntity {
+
+    @Version
+    @Column(name = "version", columnDefinition = "BIGINT DEFAULT 0")
+    private Long version;
+
+}
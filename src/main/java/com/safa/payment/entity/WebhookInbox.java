@@ -0,0 +1,55 @@
+package com.safa.payment.entity;
+
+import com.safa.payment.common.PaymentGateway;
+import com.safa.payment.common.WebhookInboxStatus;
+import jakarta.persistence.*;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
+
+import java.util.Date;
+
+/**
+ * Raw gateway webhook, appended when the webhook is received and processed asynchronously by the inbox worker
+ */
+@Entity
+@Table(
+        name = "webhook_inbox",
+        uniqueConstraints = {@UniqueConstraint(columnNames = {"event_key"})},
+        indexes = {
+                @Index(name = "idx_webhook_inbox_status_next_attempt", columnList = "status, next_attempt_at"),
+                @Index(name = "idx_webhook_inbox_order_key", columnList = "order_key")})
+@Getter
+@Setter
+@ToString
+public class WebhookInbox extends BaseEntity {
+
+    @Column(name = "gateway", nullable = false, length = 20)
+    @Enumerated(EnumType.STRING)
+    private PaymentGateway gateway;
+
+    // Gateway event identifier, a redelivered webhook has the same key
+    @Column(name = "event_key", nullable = false)
+    private String eventKey;
+
+    // Webhooks with the same order key are processed in the order they were received
+    @Column(name = "order_key", nullable = false)
+    private String orderKey;
+
+    @Column(name = "payload", nullable = false, columnDefinition = "TEXT")
+    @ToString.Exclude
+    private String payload;
+
+    @Column(name = "status", nullable = false, length = 20)
+    @Enumerated(EnumType.STRING)
+    private WebhookInboxStatus status;
+
+    @Column(name = "attempts", nullable = false)
+    private int attempts;
+
+    @Column(name = "next_attempt_at", nullable = false)
+    private Date nextAttemptAt;
+
+    @Column(name = "last_error", length = 2000)
+    private String lastError;
+}
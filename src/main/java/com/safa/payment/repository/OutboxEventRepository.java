@@ -0,0 +1,33 @@
+package com.safa.payment.repository;
+
+import com.safa.payment.entity.OutboxEvent;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+import java.util.Date;
+import java.util.List;
+
+public interface OutboxEventRepository extends JpaRepository<OutboxEvent, Long> {
+
+    /**
+     * Transaction scoped advisory lock, one relay publishes at a time across the instances so the events of a key
+     * are never published by two relays out of order. False if another relay holds it
+     */
+    @Query(value = "select pg_try_advisory_xact_lock(:lockId)", nativeQuery = true)
+    boolean tryRelayLock(@Param("lockId") long lockId);
+
+    /**
+     * Lock the oldest unpublished events, parked events and rows locked by the relay of another instance are skipped
+     */
+    @Query(value = "select * from outbox_event o where o.parked = false order by o.id limit :batchSize for update skip locked", nativeQuery = true)
+    List<OutboxEvent> lockBatch(@Param("batchSize") int batchSize);
+
+    /**
+     * Creation time of the oldest unpublished event, null if the outbox is empty
+     */
+    @Query("select min(o.createdAt) from OutboxEvent o where o.parked = false")
+    Date findOldestCreatedAt();
+
+    long countByParkedTrue();
+}
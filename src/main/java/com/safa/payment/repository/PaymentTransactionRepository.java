@@ -1,10 +1,69 @@
 package com.safa.payment.repository;
 
 import com.safa.payment.entity.PaymentTransaction;
+import jakarta.transaction.Transactional;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+import java.util.Collection;
+import java.util.Date;
 
 public interface PaymentTransactionRepository extends JpaRepository<PaymentTransaction, Long> {
 
     PaymentTransaction findByTransactionReference(String transactionReference);
 
+    /**
+     * Latest transaction of the purchase order (the current payment attempt), served by the purchase order / updated at index
+     */
+    PaymentTransaction findFirstByPurchaseOrderIdOrderByUpdatedAtDesc(Long purchaseOrderId);
+
+    long countByPurchaseOrderId(Long purchaseOrderId);
+
+    boolean existsByPurchaseOrderIdAndTransactionStatusIn(Long purchaseOrderId, Collection<String> transactionStatuses);
+
+    boolean existsByPurchaseOrderIdAndTransactionStatusNot(Long purchaseOrderId, String transactionStatus);
+
+    @Query("select t.purchaseOrder.referenceId as referenceId, t.purchaseOrder.referenceType as referenceType "
+            + "from PaymentTransaction t where t.transactionReference = :transactionReference")
+    PurchaseOrderReference findPurchaseOrderReference(@Param("transactionReference") String transactionReference);
+
+    /**
+     * Set the gateway order reference without loading the transaction, used when the gateway responds after the request transaction is committed
+     */
+    @Modifying(flushAutomatically = true)
+    @Transactional
+    @Query("update PaymentTransaction t set t.transactionReference = :transactionReference, t.version = t.version + 1 where t.id = :id")
+    int updateTransactionReference(@Param("id") Long id, @Param("transactionReference") String transactionReference);
+
+    /**
+     * Compare-and-set of the transaction status, moves the transaction to the target status only if its current status is
+     * one of the expected statuses. Returns 1 if the transition won, 0 if the transaction is in another status
+     */
+    @Modifying(flushAutomatically = true)
+    @Transactional
+    @Query("update PaymentTransaction t set t.transactionStatus = :toStatus, t.updatedAt = :updatedAt, t.version = t.version + 1 "
+            + "where t.id = :id and t.transactionStatus in :fromStatuses")
+    int transitionStatus(@Param("id") Long id, @Param("fromStatuses") Collection<String> fromStatuses,
+                         @Param("toStatus") String toStatus, @Param("updatedAt") Date updatedAt);
+
+    /**
+     * Set the pre-warmed hosted payment url without overwriting the other columns, the transaction may be changed
+     * (e.g. initiated by pay-now) while the gateway order is created
+     */
+    @Modifying(flushAutomatically = true)
+    @Transactional
+    @Query("update PaymentTransaction t set t.hostedPaymentUrl = :hostedPaymentUrl, t.hostedPaymentUrlExpiresAt = :expiresAt, t.version = t.version + 1 where t.id = :id")
+    int updateHostedPaymentUrl(@Param("id") Long id, @Param("hostedPaymentUrl") String hostedPaymentUrl, @Param("expiresAt") Date expiresAt);
+
+    /**
+     * Drop the pre-warmed hosted payment urls of the purchase order without loading its transactions
+     */
+    @Modifying(flushAutomatically = true)
+    @Transactional
+    @Query("update PaymentTransaction t set t.hostedPaymentUrl = null, t.hostedPaymentUrlExpiresAt = null, t.version = t.version + 1 "
+            + "where t.purchaseOrder.id = :purchaseOrderId and t.hostedPaymentUrl is not null")
+    int clearHostedPaymentUrls(@Param("purchaseOrderId") Long purchaseOrderId);
+
 }
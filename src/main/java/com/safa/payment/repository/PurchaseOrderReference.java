@@ -0,0 +1,11 @@
+package com.safa.payment.repository;
+
+/**
+ * Reference of a purchase order, read without loading the purchase order entity
+ */
+public interface PurchaseOrderReference {
+
+    String getReferenceId();
+
+    String getReferenceType();
+}
@@ -1,10 +1,46 @@
 package com.safa.payment.repository;
 
 import com.safa.payment.entity.PurchaseOrder;
+import jakarta.transaction.Transactional;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+import java.util.Collection;
+import java.util.List;
 
 public interface PurchaseOrderRepository extends JpaRepository<PurchaseOrder, Long> {
-    PurchaseOrder findByReferenceIdAndReferenceTypeIgnoreCase(String referenceId, String referenceType);
+    /**
+     * Exact match on the unique reference index, the reference type must be normalized with {@link PurchaseOrder#normalizeReferenceType}
+     */
+    PurchaseOrder findByReferenceIdAndReferenceType(String referenceId, String referenceType);
+
+    /**
+     * Purchase orders of any reference type with one of the reference ids, one lookup for a batch of orders
+     */
+    List<PurchaseOrder> findByReferenceIdIn(Collection<String> referenceIds);
 
     PurchaseOrder findByUuid(String uuid);
+
+    PurchaseOrderReference findReferenceByUuid(String uuid);
+
+    /**
+     * Point a detached purchase order at its latest transaction, paid is kept once set.
+     * Managed purchase orders are updated through the entity, see PurchaseOrderService#updateLatestTransaction
+     */
+    @Modifying
+    @Transactional
+    @Query("update PurchaseOrder o set o.latestTransactionId = :transactionId, o.latestStatus = :status, "
+            + "o.paid = case when :paid = true then true else coalesce(o.paid, false) end where o.id = :id")
+    int updateLatestTransaction(@Param("id") Long id, @Param("transactionId") Long transactionId,
+                                @Param("status") String status, @Param("paid") boolean paid);
+
+    /**
+     * Status change of a transaction, applied only if it is still the latest transaction of its purchase order
+     */
+    @Modifying(flushAutomatically = true)
+    @Transactional
+    @Query("update PurchaseOrder o set o.latestStatus = :status where o.latestTransactionId = :transactionId")
+    int updateLatestStatus(@Param("transactionId") Long transactionId, @Param("status") String status);
 }
@@ -0,0 +1,32 @@
+package com.safa.payment.repository;
+
+import com.safa.payment.common.WebhookInboxStatus;
+import com.safa.payment.entity.WebhookInbox;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
+public interface WebhookInboxRepository extends JpaRepository<WebhookInbox, Long> {
+
+    /**
+     * Lock the next due webhooks, rows locked by another worker are skipped.
+     * Only the oldest unfinished webhook of an order is due, so webhooks of the same order are processed one by one in order
+     */
+    @Query(value = "select * from webhook_inbox w "
+            + "where w.status in ('PENDING', 'PROCESSING') and w.next_attempt_at <= :now "
+            + "and not exists (select 1 from webhook_inbox p where p.order_key = w.order_key and p.id < w.id and p.status in ('PENDING', 'PROCESSING')) "
+            + "order by w.id limit :batchSize for update skip locked", nativeQuery = true)
+    List<WebhookInbox> lockDueBatch(@Param("now") Date now, @Param("batchSize") int batchSize);
+
+    long countByStatusIn(Collection<WebhookInboxStatus> statuses);
+
+    /**
+     * Received time of the oldest webhook waiting for a retry, null if no webhook is waiting for a retry
+     */
+    @Query("select min(w.createdAt) from WebhookInbox w where w.status = com.safa.payment.common.WebhookInboxStatus.PENDING and w.attempts > 0")
+    Date findOldestPendingRetry();
+}
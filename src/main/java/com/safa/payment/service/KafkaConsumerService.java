@@ -1,11 +1,15 @@
 package com.safa.payment.service;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.safa.payment.common.ConsultationStatus;
 import com.safa.payment.common.KafkaEventType;
 import com.safa.payment.common.PaymentReferenceType;
+import com.safa.payment.config.KafkaRetryConfig;
 import com.safa.payment.dto.KafkaEventDto;
 import com.safa.payment.dto.common.ConsultationIncomingDto;
+import com.safa.payment.dto.common.PaymentTransactionDto;
 import com.safa.payment.dto.common.PurchaseOrderIncomingDto;
+import com.safa.payment.entity.PurchaseOrder;
 import com.safa.payment.exception.InternalPaymentException;
 import com.safa.payment.service.gateway.Telr.TelrRestService;
 import com.safa.payment.util.PaymentUtil;
@@ -14,7 +18,17 @@ import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.kafka.annotation.KafkaListener;
+import org.springframework.kafka.support.Acknowledgment;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * This service fetch kafka events and uses appropriate handler.
@@ -27,88 +41,284 @@ public class KafkaConsumerService {
 
   public static final String PURCHASE_ORDER_TOPIC = "payment_purchase_order";
   public static final String PAYMENT_GROUP_ID = "payment_group_id";
-  public static final String ERROR_MESSAGE_TEMPLATE =
-      "Kafka Consumer Topic %s %n message: %s %n localized: %s %n event: %s";
+  public static final String PURCHASE_ORDER_EVENT_OPERATION = "purchase_order_event";
+  public static final String PURCHASE_ORDER_BATCH_OPERATION = "purchase_order_batch";
+  public static final String CONSULTATION_EVENTS = "consultations";
+  public static final String CONSULTATION_TOPIC = "${topic.consultation:consultation}";
+  public static final String RETRY_TOPIC_PATTERN =
+      "(" + PURCHASE_ORDER_TOPIC + "|" + CONSULTATION_TOPIC + ")" + KafkaFailureRouter.RETRY_TOPIC_INFIX;
 
 
   private final PurchaseOrderService purchaseOrderService;
 
   private final ApplicationEventPublisher eventPublisher;
   private final PaymentUtil paymentUtil;
-  private final RestService restService;
+  private final KafkaFailureRouter kafkaFailureRouter;
+  private final PurchaseOrderLocks purchaseOrderLocks;
+  private final OptimisticRetry optimisticRetry;
+  private final TransactionTemplate transactionTemplate;
+  private final KeyedRecordProcessor keyedRecordProcessor;
 
   @Autowired
   public KafkaConsumerService(PurchaseOrderService purchaseOrderService,
       ApplicationEventPublisher eventPublisher, PaymentUtil paymentUtil,
-      TelrRestService telrRestService, RestService restService) {
+      TelrRestService telrRestService, KafkaFailureRouter kafkaFailureRouter, PurchaseOrderLocks purchaseOrderLocks,
+      OptimisticRetry optimisticRetry, PlatformTransactionManager transactionManager,
+      KeyedRecordProcessor keyedRecordProcessor) {
     this.purchaseOrderService = purchaseOrderService;
     this.eventPublisher = eventPublisher;
     this.paymentUtil = paymentUtil;
-    this.restService = restService;
+    this.kafkaFailureRouter = kafkaFailureRouter;
+    this.purchaseOrderLocks = purchaseOrderLocks;
+    this.optimisticRetry = optimisticRetry;
+    this.transactionTemplate = new TransactionTemplate(transactionManager);
+    this.keyedRecordProcessor = keyedRecordProcessor;
   }
 
-  @KafkaListener(topics = {PURCHASE_ORDER_TOPIC}, groupId = PAYMENT_GROUP_ID)
+  /**
+   * Single mode, one record per call, each record is committed on its own
+   */
+  @KafkaListener(id = "purchaseOrderConsumer", topics = {PURCHASE_ORDER_TOPIC}, groupId = PAYMENT_GROUP_ID,
+      concurrency = "${payment.kafka.purchase-order.concurrency:1}",
+      autoStartup = "#{'${payment.kafka.purchase-order.mode:single}' == 'single'}")
   public void consume(ConsumerRecord<String, String> record) {
-    String event = record.value();
-    try {
-      KafkaEventDto<PurchaseOrderIncomingDto> kafkaEventDto =
-          this.paymentUtil.mapToPurchaseOrderIncomingDto(event);
-      if (kafkaEventDto == null) {
-        throw new InternalPaymentException("Failed parsing consumed event, " + record.value());
-      }
-      PurchaseOrderIncomingDto purchaseOrderIncomingDto = kafkaEventDto.getDetails();
-      if (purchaseOrderIncomingDto.getPaymentTransaction() == null) {
-        throw new InternalPaymentException("Missing payment transaction, " + record.value());
-      }
-      KafkaEventType kafkaEventType =
-          KafkaEventType.valueOf(kafkaEventDto.getEventType().toUpperCase());
+    processPurchaseOrderRecord(record);
+  }
 
-      // Validate due amount if not delete event type, because in delete events no changes on amount
-      if (!KafkaEventType.DELETE.equals(kafkaEventType)) {
-        paymentUtil.validateAmount(purchaseOrderIncomingDto.getPaymentTransaction().getAmount());
+  /**
+   * Batch mode, a whole poll is applied as one bulk operation: one lookup of all the referenced purchase orders,
+   * the writes are batched and committed once. If the batch fails its events are applied again one by one,
+   * so a bad event doesn't fail the others
+   */
+  @KafkaListener(id = "purchaseOrderBatchConsumer", topics = {PURCHASE_ORDER_TOPIC}, groupId = PAYMENT_GROUP_ID, batch = "true",
+      concurrency = "${payment.kafka.purchase-order.concurrency:1}",
+      autoStartup = "#{'${payment.kafka.purchase-order.mode:single}' == 'batch'}",
+      properties = {"max.poll.records=${payment.kafka.purchase-order.max-poll-records:500}"})
+  public void consumeBatch(List<ConsumerRecord<String, String>> records) {
+    List<PurchaseOrderEvent> purchaseOrderEvents = new ArrayList<>(records.size());
+    for (ConsumerRecord<String, String> record : records) {
+      PurchaseOrderEvent purchaseOrderEvent = parsePurchaseOrderRecord(record);
+      if (purchaseOrderEvent != null) {
+        purchaseOrderEvents.add(purchaseOrderEvent);
       }
+    }
+    if (purchaseOrderEvents.isEmpty()) {
+      return;
+    }
+    Set<String> referenceKeys = new HashSet<>();
+    purchaseOrderEvents.forEach(purchaseOrderEvent -> referenceKeys.add(purchaseOrderEvent.referenceKey()));
+    try {
+      // Serialized with the webhooks and pay-now requests of all the purchase orders of the batch
+      purchaseOrderLocks.callAll(referenceKeys, () -> optimisticRetry.call(PURCHASE_ORDER_BATCH_OPERATION,
+          () -> transactionTemplate.execute(status -> applyPurchaseOrderBatch(purchaseOrderEvents))));
+    } catch (Exception exception) {
+      log.warn("Purchase order batch of {} events failed, applying the events one by one: {}", purchaseOrderEvents.size(),
+          exception.getMessage());
+      purchaseOrderEvents.forEach(this::handlePurchaseOrderEvent);
+    }
+  }
 
-      switch (kafkaEventType) {
-        case CREATE -> purchaseOrderService.createPurchaseOrder(purchaseOrderIncomingDto);
-        case UPDATE -> purchaseOrderService.updatePurchaseOrder(purchaseOrderIncomingDto);
-        case DELETE -> {
-          PaymentReferenceType paymentReferenceType = PaymentReferenceType.valueOf(
-              purchaseOrderIncomingDto.getPaymentTransaction().getReferenceType().toUpperCase());
-          if (paymentReferenceType == PaymentReferenceType.SUBSCRIPTION) {
-            purchaseOrderService.cancelRepeatPaymentAgreement(purchaseOrderIncomingDto);
-          } else {
-            purchaseOrderService.cancelLatestPaymentTransactionForReference(
-                purchaseOrderIncomingDto.getPaymentTransaction().getReferenceId(),
-                purchaseOrderIncomingDto.getPaymentTransaction().getReferenceType());
-          }
-        }
-      }
+  /**
+   * Parallel mode, the records of a poll are processed on the worker pool keyed by purchase order,
+   * the events of one purchase order keep their order
+   */
+  @KafkaListener(id = "purchaseOrderParallelConsumer", topics = {PURCHASE_ORDER_TOPIC}, groupId = PAYMENT_GROUP_ID, batch = "true",
+      concurrency = "${payment.kafka.purchase-order.concurrency:1}",
+      autoStartup = "#{'${payment.kafka.purchase-order.mode:single}' == 'parallel'}",
+      properties = {"max.poll.records=${payment.kafka.purchase-order.max-poll-records:500}"})
+  public void consumeParallel(List<ConsumerRecord<String, String>> records) {
+    List<PurchaseOrderEvent> purchaseOrderEvents = new ArrayList<>(records.size());
+    records.forEach(record -> purchaseOrderEvents.add(parsePurchaseOrderRecord(record)));
+    keyedRecordProcessor.process(PURCHASE_ORDER_TOPIC, purchaseOrderEvents, PurchaseOrderEvent::referenceKey,
+        this::handlePurchaseOrderEvent);
+  }
+
+  /**
+   * Retry topics of both consumed topics, one listener per tier, the records of a tier are due in the order they
+   * were forwarded so a record not due yet pauses its tier only
+   */
+  @KafkaListener(id = "retryTier0Consumer", topicPattern = RETRY_TOPIC_PATTERN + "0", groupId = PAYMENT_GROUP_ID,
+      containerFactory = KafkaRetryConfig.RETRY_CONTAINER_FACTORY)
+  @KafkaListener(id = "retryTier1Consumer", topicPattern = RETRY_TOPIC_PATTERN + "1", groupId = PAYMENT_GROUP_ID,
+      containerFactory = KafkaRetryConfig.RETRY_CONTAINER_FACTORY)
+  @KafkaListener(id = "retryTier2Consumer", topicPattern = RETRY_TOPIC_PATTERN + "2", groupId = PAYMENT_GROUP_ID,
+      containerFactory = KafkaRetryConfig.RETRY_CONTAINER_FACTORY)
+  public void consumeRetry(ConsumerRecord<String, String> record, Acknowledgment acknowledgment) {
+    long remainingDelayMs = KafkaFailureRouter.remainingDelayMs(record);
+    if (remainingDelayMs > 0) {
+      acknowledgment.nack(Duration.ofMillis(remainingDelayMs));
+      return;
+    }
+    if (PURCHASE_ORDER_TOPIC.equals(KafkaFailureRouter.originalTopic(record))) {
+      processPurchaseOrderRecord(record);
+    } else {
+      processConsultationRecord(record);
+    }
+    acknowledgment.acknowledge();
+  }
+
+  private void processPurchaseOrderRecord(ConsumerRecord<String, String> record) {
+    PurchaseOrderEvent purchaseOrderEvent = parsePurchaseOrderRecord(record);
+    if (purchaseOrderEvent != null) {
+      handlePurchaseOrderEvent(purchaseOrderEvent);
+    }
+  }
+
+  /**
+   * Returns null if the event is invalid, the record is moved to the dead letter topic
+   */
+  private PurchaseOrderEvent parsePurchaseOrderRecord(ConsumerRecord<String, String> record) {
+    try {
+      return parsePurchaseOrderEvent(record);
+    } catch (Exception exception) {
+      kafkaFailureRouter.deadLetter(record, exception);
+      return null;
+    }
+  }
+
+  private PurchaseOrderEvent parsePurchaseOrderEvent(ConsumerRecord<String, String> record) throws JsonProcessingException {
+    KafkaEventDto<PurchaseOrderIncomingDto> kafkaEventDto =
+        this.paymentUtil.mapToPurchaseOrderIncomingDto(record.value());
+    if (kafkaEventDto == null) {
+      throw new InternalPaymentException("Failed parsing consumed event, " + record.value());
+    }
+    PurchaseOrderIncomingDto purchaseOrderIncomingDto = kafkaEventDto.getDetails();
+    if (purchaseOrderIncomingDto.getPaymentTransaction() == null) {
+      throw new InternalPaymentException("Missing payment transaction, " + record.value());
+    }
+    KafkaEventType kafkaEventType =
+        KafkaEventType.valueOf(kafkaEventDto.getEventType().toUpperCase());
+
+    // Validate due amount if not delete event type, because in delete events no changes on amount
+    if (!KafkaEventType.DELETE.equals(kafkaEventType)) {
+      paymentUtil.validateAmount(purchaseOrderIncomingDto.getPaymentTransaction().getAmount());
+    }
+    return new PurchaseOrderEvent(kafkaEventType, purchaseOrderIncomingDto, record);
+  }
+
+  /**
+   * Apply one event in its own transaction, a failed event is forwarded to the retry topics
+   */
+  private void handlePurchaseOrderEvent(PurchaseOrderEvent purchaseOrderEvent) {
+    try {
+      // Serialized with the webhooks and pay-now requests of the same purchase order
+      PaymentTransactionDto paymentTransactionDto = purchaseOrderEvent.details().getPaymentTransaction();
+      purchaseOrderLocks.run(paymentTransactionDto.getReferenceId(), paymentTransactionDto.getReferenceType(),
+          () -> optimisticRetry.run(PURCHASE_ORDER_EVENT_OPERATION,
+              () -> handlePurchaseOrderEvent(purchaseOrderEvent.kafkaEventType(), purchaseOrderEvent.details())));
     } catch (Exception exception) {
-      this.restService.postErrorMessage(String.format(ERROR_MESSAGE_TEMPLATE, PURCHASE_ORDER_TOPIC,
-          exception.getMessage(), exception.getLocalizedMessage(), event));
+      kafkaFailureRouter.retry(purchaseOrderEvent.record(), exception);
+    }
+  }
+
+  private void handlePurchaseOrderEvent(KafkaEventType kafkaEventType, PurchaseOrderIncomingDto purchaseOrderIncomingDto)
+      throws Exception {
+    switch (kafkaEventType) {
+      case CREATE -> purchaseOrderService.createPurchaseOrder(purchaseOrderIncomingDto);
+      case UPDATE -> purchaseOrderService.updatePurchaseOrder(purchaseOrderIncomingDto);
+      case DELETE -> handleDeleteEvent(purchaseOrderIncomingDto);
+    }
+  }
+
+  /**
+   * Apply the events of a batch in the current transaction, the purchase orders are looked up once
+   * and the orders created by the batch are reused by its later events
+   */
+  private Void applyPurchaseOrderBatch(List<PurchaseOrderEvent> purchaseOrderEvents) {
+    Set<String> referenceIds = new HashSet<>();
+    purchaseOrderEvents.forEach(purchaseOrderEvent -> referenceIds.add(purchaseOrderEvent.details().getPaymentTransaction().getReferenceId()));
+    Map<String, PurchaseOrder> purchaseOrders = purchaseOrderService.findByReferenceIds(referenceIds);
+    for (PurchaseOrderEvent purchaseOrderEvent : purchaseOrderEvents) {
+      switch (purchaseOrderEvent.kafkaEventType()) {
+        case CREATE, UPDATE -> purchaseOrders.put(purchaseOrderEvent.referenceKey(),
+            purchaseOrderService.upsertPurchaseOrder(purchaseOrderEvent.details(), purchaseOrders.get(purchaseOrderEvent.referenceKey())));
+        case DELETE -> handleDeleteEvent(purchaseOrderEvent.details());
+      }
+    }
+    return null;
+  }
+
+  private void handleDeleteEvent(PurchaseOrderIncomingDto purchaseOrderIncomingDto) {
+    PaymentTransactionDto paymentTransactionDto = purchaseOrderIncomingDto.getPaymentTransaction();
+    PaymentReferenceType paymentReferenceType = PaymentReferenceType.valueOf(
+        paymentTransactionDto.getReferenceType().toUpperCase());
+    if (paymentReferenceType == PaymentReferenceType.SUBSCRIPTION) {
+      purchaseOrderService.cancelRepeatPaymentAgreement(purchaseOrderIncomingDto);
+    } else {
+      purchaseOrderService.cancelLatestPaymentTransactionForReference(
+          paymentTransactionDto.getReferenceId(), paymentTransactionDto.getReferenceType());
     }
   }
 
   /**
    * Consume consultation events
    */
-  @KafkaListener(topics = {"${topic.consultation:consultation}"}, groupId = PAYMENT_GROUP_ID)
+  @KafkaListener(id = "consultationConsumer", topics = {CONSULTATION_TOPIC}, groupId = PAYMENT_GROUP_ID,
+      autoStartup = "#{'${payment.kafka.consultation.mode:single}' == 'single'}")
   public void consumeConsultationKafkaEvents(ConsumerRecord<String, String> record) {
-    String event = record.value();
+    processConsultationRecord(record);
+  }
+
+  /**
+   * Consume consultation events on the worker pool keyed by user, the events of one user keep their order
+   */
+  @KafkaListener(id = "consultationParallelConsumer", topics = {CONSULTATION_TOPIC}, groupId = PAYMENT_GROUP_ID,
+      batch = "true", autoStartup = "#{'${payment.kafka.consultation.mode:single}' == 'parallel'}")
+  public void consumeConsultationKafkaEventsParallel(List<ConsumerRecord<String, String>> records) {
+    List<ConsultationEvent> consultationEvents = new ArrayList<>(records.size());
+    records.forEach(record -> consultationEvents.add(parseConsultationRecord(record)));
+    keyedRecordProcessor.process(CONSULTATION_EVENTS, consultationEvents,
+        consultationEvent -> String.valueOf(consultationEvent.details().getUserId()), this::handleConsultationEvent);
+  }
+
+  private void processConsultationRecord(ConsumerRecord<String, String> record) {
+    ConsultationEvent consultationEvent = parseConsultationRecord(record);
+    if (consultationEvent != null) {
+      handleConsultationEvent(consultationEvent);
+    }
+  }
+
+  /**
+   * Returns null if the event can't be parsed, the record is moved to the dead letter topic
+   */
+  private ConsultationEvent parseConsultationRecord(ConsumerRecord<String, String> record) {
     try {
       KafkaEventDto<ConsultationIncomingDto> kafkaEventDto =
-          this.paymentUtil.mapToConsultationDto(event);
+          this.paymentUtil.mapToConsultationDto(record.value());
       if (kafkaEventDto == null) {
         throw new InternalPaymentException("Failed parsing consumed event, " + record.value());
       }
-      ConsultationIncomingDto consultationIncomingDto = kafkaEventDto.getDetails();
-      if (consultationIncomingDto.getStatus().equals(ConsultationStatus.COMPLETED.toString())) {
-        eventPublisher.publishEvent(consultationIncomingDto);
+      return new ConsultationEvent(kafkaEventDto.getDetails(), record);
+    } catch (Exception exception) {
+      kafkaFailureRouter.deadLetter(record, exception);
+      return null;
+    }
+  }
+
+  private void handleConsultationEvent(ConsultationEvent consultationEvent) {
+    try {
+      if (consultationEvent.details().getStatus().equals(ConsultationStatus.COMPLETED.toString())) {
+        eventPublisher.publishEvent(consultationEvent.details());
       }
     } catch (Exception exception) {
-      this.restService.postErrorMessage(String.format(ERROR_MESSAGE_TEMPLATE, "consultations",
-          exception.getMessage(), exception.getLocalizedMessage(), event));
+      kafkaFailureRouter.retry(consultationEvent.record(), exception);
+    }
+  }
+
+  /**
+   * Parsed and validated purchase order event, with the consumed record forwarded if the event fails
+   */
+  private record PurchaseOrderEvent(KafkaEventType kafkaEventType, PurchaseOrderIncomingDto details,
+                                    ConsumerRecord<String, String> record) {
+
+    String referenceKey() {
+      return PurchaseOrder.referenceKey(details.getPaymentTransaction().getReferenceId(), details.getPaymentTransaction().getReferenceType());
     }
   }
 
+  /**
+   * Parsed consultation event, with the consumed record forwarded if the event fails
+   */
+  private record ConsultationEvent(ConsultationIncomingDto details, ConsumerRecord<String, String> record) {
+  }
 }
@@ -0,0 +1,197 @@
+package com.safa.payment.service;
+
+import com.safa.payment.exception.InternalPaymentException;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.kafka.annotation.KafkaListener;
+import org.springframework.kafka.core.ConsumerFactory;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Dead letter topics of the consumed topics.
+ * Dead lettered records are reported to slack by their own consumer, so the slack latency doesn't slow down the
+ * purchase order and consultation consumers.
+ * Replay re-publishes the dead lettered records to their original topic at a limited rate, from the last replayed
+ * offset (committed by the replay consumer group), one replay at a time per instance. The replay runs on the task
+ * executor, a large replay at a low rate takes longer than a request timeout
+ *
+ * @author Qusai Safa
+ */
+@Service
+@Slf4j
+public class KafkaDeadLetterService {
+
+    public static final String ERROR_MESSAGE_TEMPLATE =
+            "Kafka Consumer Topic %s %n message: %s %n exception: %s %n event: %s";
+    public static final String REPLAYED_HEADER = "payment_replayed_from";
+
+    private static final String ALERT_GROUP_ID = "payment_dlt_alert_group_id";
+    private static final String REPLAY_GROUP_ID = "payment_dlt_replay_group_id";
+    private static final Duration POLL_TIMEOUT = Duration.ofSeconds(2);
+
+    private final RestService restService;
+    private final KafkaTemplate<String, String> kafkaTemplate;
+    private final ConsumerFactory<String, String> consumerFactory;
+    private final String consultationTopic;
+    private final Executor taskExecutor;
+    private final AtomicBoolean replayRunning = new AtomicBoolean();
+
+    @Value("${payment.kafka.dlt-replay.max-records:1000}")
+    private int maxRecords;
+
+    @Value("${payment.kafka.dlt-replay.max-rate-per-second:50}")
+    private int maxRatePerSecond;
+
+    @Value("${payment.kafka.retry.send-timeout-ms:30000}")
+    private long sendTimeoutMs;
+
+    @Autowired
+    public KafkaDeadLetterService(RestService restService, KafkaTemplate<String, String> kafkaTemplate,
+                                  ConsumerFactory<String, String> consumerFactory,
+                                  @Value("${topic.consultation:consultation}") String consultationTopic,
+                                  @Qualifier("taskExecutor") Executor taskExecutor) {
+        this.restService = restService;
+        this.kafkaTemplate = kafkaTemplate;
+        this.consumerFactory = consumerFactory;
+        this.consultationTopic = consultationTopic;
+        this.taskExecutor = taskExecutor;
+    }
+
+    /**
+     * Report the dead lettered records to slack
+     */
+    @KafkaListener(id = "deadLetterAlertConsumer", groupId = ALERT_GROUP_ID, topics = {
+            KafkaConsumerService.PURCHASE_ORDER_TOPIC + KafkaFailureRouter.DLT_SUFFIX,
+            KafkaConsumerService.CONSULTATION_TOPIC + KafkaFailureRouter.DLT_SUFFIX})
+    public void alert(ConsumerRecord<String, String> record) {
+        restService.postErrorMessage(String.format(ERROR_MESSAGE_TEMPLATE, KafkaFailureRouter.originalTopic(record),
+                KafkaFailureRouter.header(record.headers(), KafkaFailureRouter.EXCEPTION_MESSAGE_HEADER),
+                KafkaFailureRouter.header(record.headers(), KafkaFailureRouter.EXCEPTION_CLASS_HEADER), record.value()));
+    }
+
+    /**
+     * Start re-publishing up to limit dead lettered records of the topic to the topic, at most ratePerSecond records
+     * per second. Returns once the replay is started, the number of replayed records is logged when it ends
+     */
+    public void replay(String topic, int limit, int ratePerSecond) {
+        if (!KafkaConsumerService.PURCHASE_ORDER_TOPIC.equals(topic) && !consultationTopic.equals(topic)) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Unknown topic " + topic);
+        }
+        if (limit <= 0 || limit > maxRecords || ratePerSecond <= 0 || ratePerSecond > maxRatePerSecond) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, String.format(
+                    "Limit must be between 1 and %d, rate between 1 and %d per second", maxRecords, maxRatePerSecond));
+        }
+        if (!replayRunning.compareAndSet(false, true)) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT, "A replay is already running");
+        }
+        try {
+            taskExecutor.execute(() -> {
+                try {
+                    replayDeadLetterTopic(topic, limit, ratePerSecond);
+                } catch (RuntimeException e) {
+                    log.error("Replaying the dead lettered records of {} failed", topic, e);
+                } finally {
+                    replayRunning.set(false);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            replayRunning.set(false);
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "The replay can't be started now", e);
+        }
+    }
+
+    private void replayDeadLetterTopic(String topic, int limit, int ratePerSecond) {
+        String deadLetterTopic = topic + KafkaFailureRouter.DLT_SUFFIX;
+        Properties properties = new Properties();
+        properties.put(ConsumerConfig.AUTO_OFFSET_RESET_CONFIG, "earliest");
+        properties.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, "false");
+        properties.put(ConsumerConfig.MAX_POLL_RECORDS_CONFIG, String.valueOf(Math.min(limit, ratePerSecond)));
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1) / ratePerSecond;
+        int replayed = 0;
+        try (Consumer<String, String> consumer = consumerFactory.createConsumer(REPLAY_GROUP_ID, null, null, properties)) {
+            // Assigned, not subscribed, the replay starts without waiting for a group rebalance
+            List<TopicPartition> partitions = consumer.partitionsFor(deadLetterTopic).stream()
+                    .map(partitionInfo -> new TopicPartition(deadLetterTopic, partitionInfo.partition())).toList();
+            consumer.assign(partitions);
+            long next = System.nanoTime();
+            while (replayed < limit) {
+                ConsumerRecords<String, String> records = consumer.poll(POLL_TIMEOUT);
+                if (records.isEmpty()) {
+                    break;
+                }
+                Map<TopicPartition, OffsetAndMetadata> offsets = new HashMap<>();
+                try {
+                    for (ConsumerRecord<String, String> record : records) {
+                        if (replayed == limit) {
+                            break;
+                        }
+                        next = pace(next, intervalNanos);
+                        send(topic, record);
+                        offsets.put(new TopicPartition(record.topic(), record.partition()), new OffsetAndMetadata(record.offset() + 1));
+                        replayed++;
+                    }
+                } finally {
+                    // The replayed records aren't replayed again, the next replay continues after them
+                    consumer.commitSync(offsets);
+                }
+            }
+        }
+        log.info("Replayed {} dead lettered records to {}", replayed, topic);
+    }
+
+    private void send(String topic, ConsumerRecord<String, String> record) {
+        // Replayed as a new record, the retry attempts start again
+        ProducerRecord<String, String> replayed = new ProducerRecord<>(topic, record.key(), record.value());
+        replayed.headers().add(REPLAYED_HEADER, (record.topic() + "-" + record.partition() + "@" + record.offset())
+                .getBytes(StandardCharsets.UTF_8));
+        try {
+            kafkaTemplate.send(replayed).get(sendTimeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InternalPaymentException("Interrupted replaying a dead lettered record to " + topic, e);
+        } catch (ExecutionException | TimeoutException e) {
+            throw new InternalPaymentException("Failed replaying a dead lettered record to " + topic, e);
+        }
+    }
+
+    /**
+     * Wait for the send slot, returns the next one
+     */
+    private static long pace(long slot, long intervalNanos) {
+        long wait = slot - System.nanoTime();
+        if (wait > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InternalPaymentException("Interrupted replaying dead lettered records", e);
+            }
+        }
+        return Math.max(slot, System.nanoTime()) + intervalNanos;
+    }
+}
@@ -0,0 +1,173 @@
+package com.safa.payment.service;
+
+import com.safa.payment.exception.InternalPaymentException;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.ObjectUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.Headers;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Route the consumed records that failed to the retry topics and the dead letter topic, instead of dropping them.
+ * A failed record goes to &lt;topic&gt;-retry-0, then -retry-1 ... (one topic per delay of payment.kafka.retry.delays-ms,
+ * at most {@link #RETRY_TIERS}) and to &lt;topic&gt;-dlt once the retries are exhausted. Records that can't succeed
+ * (unparsable event, client error) go straight to the dead letter topic.
+ * The forwarded record keeps the original key and payload, the headers carry the original topic, partition and offset,
+ * the attempt, the time the record is due again and the last exception.
+ * The send is acknowledged before returning, so the consumed offset is only committed once the record is safe
+ *
+ * @author Qusai Safa
+ */
+@Component
+@Slf4j
+public class KafkaFailureRouter {
+
+    public static final int RETRY_TIERS = 3;
+    public static final String RETRY_TOPIC_INFIX = "-retry-";
+    public static final String DLT_SUFFIX = "-dlt";
+
+    public static final String ORIGINAL_TOPIC_HEADER = "payment_original_topic";
+    public static final String ORIGINAL_PARTITION_HEADER = "payment_original_partition";
+    public static final String ORIGINAL_OFFSET_HEADER = "payment_original_offset";
+    public static final String ATTEMPT_HEADER = "payment_retry_attempt";
+    public static final String DUE_AT_HEADER = "payment_retry_due_at";
+    public static final String EXCEPTION_CLASS_HEADER = "payment_exception_class";
+    public static final String EXCEPTION_MESSAGE_HEADER = "payment_exception_message";
+    public static final String EXCEPTION_STACKTRACE_HEADER = "payment_exception_stacktrace";
+
+    private static final String RETRIED_METRIC = "payment.kafka.retried";
+    private static final String DEAD_LETTERED_METRIC = "payment.kafka.dead_lettered";
+    private static final int MAX_STACKTRACE_LENGTH = 4000;
+
+    private final KafkaTemplate<String, String> kafkaTemplate;
+    private final MeterRegistry meterRegistry;
+    private final long[] retryDelaysMs;
+    private final long sendTimeoutMs;
+
+    @Autowired
+    public KafkaFailureRouter(KafkaTemplate<String, String> kafkaTemplate, MeterRegistry meterRegistry,
+                              @Value("${payment.kafka.retry.delays-ms:1000,10000,60000}") long[] retryDelaysMs,
+                              @Value("${payment.kafka.retry.send-timeout-ms:30000}") long sendTimeoutMs) {
+        if (retryDelaysMs.length > RETRY_TIERS) {
+            throw new IllegalArgumentException("At most " + RETRY_TIERS + " retry delays are supported");
+        }
+        this.kafkaTemplate = kafkaTemplate;
+        this.meterRegistry = meterRegistry;
+        this.retryDelaysMs = retryDelaysMs;
+        this.sendTimeoutMs = sendTimeoutMs;
+    }
+
+    /**
+     * Forward the record to the next retry topic, or to the dead letter topic if it can't succeed or has no retry left
+     */
+    public void retry(ConsumerRecord<String, String> record, Exception exception) {
+        int attempt = attempt(record);
+        if (!isRetryable(exception) || attempt >= retryDelaysMs.length) {
+            deadLetter(record, exception);
+            return;
+        }
+        String originalTopic = originalTopic(record);
+        forward(record, originalTopic + RETRY_TOPIC_INFIX + attempt, attempt + 1,
+                System.currentTimeMillis() + retryDelaysMs[attempt], exception);
+        meterRegistry.counter(RETRIED_METRIC, "topic", originalTopic, "tier", String.valueOf(attempt)).increment();
+        log.warn("Record {} of {} failed, retry {} in {} ms: {}", record.offset(), record.topic(), attempt + 1,
+                retryDelaysMs[attempt], exception.getMessage());
+    }
+
+    /**
+     * Forward the record to the dead letter topic
+     */
+    public void deadLetter(ConsumerRecord<String, String> record, Exception exception) {
+        String originalTopic = originalTopic(record);
+        forward(record, originalTopic + DLT_SUFFIX, attempt(record), 0, exception);
+        meterRegistry.counter(DEAD_LETTERED_METRIC, "topic", originalTopic).increment();
+        log.error("Record {} of {} moved to the dead letter topic: {}", record.offset(), record.topic(), exception.getMessage());
+    }
+
+    /**
+     * Time left before a retry record is due, 0 if it can be processed now
+     */
+    public static long remainingDelayMs(ConsumerRecord<String, String> record) {
+        String dueAt = header(record.headers(), DUE_AT_HEADER);
+        return dueAt == null ? 0 : Math.max(Long.parseLong(dueAt) - System.currentTimeMillis(), 0);
+    }
+
+    /**
+     * Topic the record was first consumed from
+     */
+    public static String originalTopic(ConsumerRecord<String, String> record) {
+        String originalTopic = header(record.headers(), ORIGINAL_TOPIC_HEADER);
+        return originalTopic != null ? originalTopic : record.topic();
+    }
+
+    public static String header(Headers headers, String name) {
+        Header header = headers.lastHeader(name);
+        return header == null ? null : new String(header.value(), StandardCharsets.UTF_8);
+    }
+
+    private void forward(ConsumerRecord<String, String> record, String topic, int attempt, long dueAt, Exception exception) {
+        ProducerRecord<String, String> forwarded = new ProducerRecord<>(topic, record.key(), record.value());
+        Headers headers = forwarded.headers();
+        // The original position is kept from the first failure
+        String originalTopic = header(record.headers(), ORIGINAL_TOPIC_HEADER);
+        addHeader(headers, ORIGINAL_TOPIC_HEADER, originalTopic != null ? originalTopic : record.topic());
+        addHeader(headers, ORIGINAL_PARTITION_HEADER, originalTopic != null
+                ? header(record.headers(), ORIGINAL_PARTITION_HEADER) : String.valueOf(record.partition()));
+        addHeader(headers, ORIGINAL_OFFSET_HEADER, originalTopic != null
+                ? header(record.headers(), ORIGINAL_OFFSET_HEADER) : String.valueOf(record.offset()));
+        addHeader(headers, ATTEMPT_HEADER, String.valueOf(attempt));
+        if (dueAt > 0) {
+            addHeader(headers, DUE_AT_HEADER, String.valueOf(dueAt));
+        }
+        Throwable cause = ObjectUtils.defaultIfNull(ExceptionUtils.getRootCause(exception), exception);
+        addHeader(headers, EXCEPTION_CLASS_HEADER, cause.getClass().getName());
+        addHeader(headers, EXCEPTION_MESSAGE_HEADER, String.valueOf(cause.getMessage()));
+        addHeader(headers, EXCEPTION_STACKTRACE_HEADER,
+                StringUtils.abbreviate(ExceptionUtils.getStackTrace(exception), MAX_STACKTRACE_LENGTH));
+        try {
+            kafkaTemplate.send(forwarded).get(sendTimeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InternalPaymentException("Interrupted forwarding the failed record to " + topic, e);
+        } catch (ExecutionException | TimeoutException e) {
+            // Not committed, the record is consumed again
+            throw new InternalPaymentException("Failed forwarding the failed record to " + topic, e);
+        }
+    }
+
+    private static void addHeader(Headers headers, String name, String value) {
+        if (value != null) {
+            headers.add(name, value.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static int attempt(ConsumerRecord<String, String> record) {
+        String attempt = header(record.headers(), ATTEMPT_HEADER);
+        return attempt == null ? 0 : Integer.parseInt(attempt);
+    }
+
+    /**
+     * Client errors (bad event, rejected request) fail the same way on every attempt, conflicts and busy orders don't
+     */
+    private static boolean isRetryable(Exception exception) {
+        if (exception instanceof ResponseStatusException responseStatusException) {
+            return !responseStatusException.getStatusCode().is4xxClientError()
+                    || responseStatusException.getStatusCode().value() == 409;
+        }
+        return !(exception instanceof IllegalArgumentException);
+    }
+}
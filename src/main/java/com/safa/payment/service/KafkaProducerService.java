@@ -6,27 +6,31 @@ import com.safa.payment.dto.common.PaymentTransactionDto;
 import com.safa.payment.dto.common.PaymentWarehouseEvent;
 import com.safa.payment.dto.common.ReferralOutgoingDto;
 import com.safa.payment.dto.common.RewardBalanceReportingDto;
+import com.safa.payment.entity.OutboxEvent;
 import com.safa.payment.entity.PaymentTransaction;
 import com.safa.payment.entity.PromoUsage;
 import com.safa.payment.entity.PurchaseOrder;
+import com.safa.payment.repository.OutboxEventRepository;
 import com.safa.payment.util.PaymentUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.event.EventListener;
-import org.springframework.kafka.core.KafkaTemplate;
-import org.springframework.scheduling.annotation.Async;
 import org.springframework.stereotype.Service;
 
+import java.util.Objects;
+
 /**
- * This service send kafka events to a specified topic
+ * This service send kafka events to a specified topic.
+ * Events are appended to the outbox in the transaction of the caller and published by the {@link OutboxRelay}
+ * once the transaction is committed, an event is never lost on a crash nor published for a rolled back change
  *
  * @author Qusai Safa
  */
 @Service
 public class KafkaProducerService {
 
-    private final KafkaTemplate<String, String> kafkaTemplate;
+    private final OutboxEventRepository outboxEventRepository;
     private final PaymentUtil paymentUtil;
 
     @Value("${topic.payment-transaction.name}")
@@ -47,22 +51,23 @@ public class KafkaProducerService {
 
     Logger logger = LoggerFactory.getLogger(KafkaProducerService.class);
 
-    public KafkaProducerService(PaymentUtil paymentUtil, KafkaTemplate<String, String> kafkaTemplate) {
+    public KafkaProducerService(PaymentUtil paymentUtil, OutboxEventRepository outboxEventRepository) {
         this.paymentUtil = paymentUtil;
-        this.kafkaTemplate = kafkaTemplate;
+        this.outboxEventRepository = outboxEventRepository;
     }
 
-    @Async
     public void sendPaymentTransactionEvent(final PaymentTransaction paymentTransaction, final PurchaseOrder purchaseOrder, PromoUsage promoUsage, KafkaEventType kafkaEventType) {
         final PaymentTransactionDto paymentTransactionDto = paymentUtil.createPaymentTransactionDto(paymentTransaction, purchaseOrder);
         String paymentTransactionMessage =
                 paymentUtil.buildKafkaEvent(paymentTransactionDto, kafkaEventType, PaymentUtil.PAYMENT_EVENT_NAME);
-        send(paymentTransactionTopic, paymentTransactionMessage, 3);
+        // Keyed by purchase order, the events of an order stay in order on one partition
+        String purchaseOrderKey = PurchaseOrder.referenceKey(purchaseOrder.getReferenceId(), purchaseOrder.getReferenceType());
+        send(paymentTransactionTopic, purchaseOrderKey, paymentTransactionMessage);
 
         final PaymentWarehouseEvent paymentWarehouseEvent = paymentUtil.createPaymentWarehouseEvent(paymentTransaction.getPurchaseOrder(), paymentTransaction, promoUsage);
         String paymentWarehouseMessage =
                 paymentUtil.buildKafkaEvent(paymentWarehouseEvent, kafkaEventType, PaymentUtil.PAYMENT_EVENT_NAME);
-        send(paymentWarehouseTopic, paymentWarehouseMessage, 3);
+        send(paymentWarehouseTopic, purchaseOrderKey, paymentWarehouseMessage);
 
     }
 
@@ -70,41 +75,40 @@ public class KafkaProducerService {
      * Listen to internal event for new created referral which is published by referral service
      * And after that map to kafka event and send to referral topic which will be consumed by other microservices
      */
-    @Async
     @EventListener(ReferralOutgoingDto.class)
     public void sendNewReferralEvent(ReferralOutgoingDto referral) {
         String referralMessage =
                 paymentUtil.buildKafkaEvent(referral, KafkaEventType.UPDATE, PaymentUtil.REFERRAL_EVENT_NAME);
-        send(referralTopic, referralMessage, 3);
+        // Keyed by referee, a user is referred once
+        send(referralTopic, String.valueOf(referral.getRefereeId()), referralMessage);
     }
 
 
-    @Async
     @EventListener(NotificationTransactionDto.class)
     public void sendNotificationEvent(NotificationTransactionDto notificationTransactionDto) {
         String notificationTransactionMessage =
                 paymentUtil.buildKafkaEvent(notificationTransactionDto, KafkaEventType.UPDATE, PaymentUtil.PAYMENT_EVENT_NAME);
-        send(notificationsTopic, notificationTransactionMessage, 3);
+        // Keyed by receiver, a failed notification only holds back the notifications of its receiver
+        send(notificationsTopic, Objects.toString(notificationTransactionDto.getReceiverId(), null), notificationTransactionMessage);
     }
 
-    @Async
     @EventListener(RewardBalanceReportingDto.class)
     public void sendRewardBalanceReportingDto(RewardBalanceReportingDto rewardBalanceReportingDto) {
         String rewardBalanceReportingMessage =
                 paymentUtil.buildKafkaEvent(rewardBalanceReportingDto, KafkaEventType.CREATE, PaymentUtil.PAYMENT_EVENT_NAME);
-        send(rewardsBalance, rewardBalanceReportingMessage, 3);
+        // Keyed by user, the rewards of a user stay in order
+        send(rewardsBalance, String.valueOf(rewardBalanceReportingDto.getUserId()), rewardBalanceReportingMessage);
+    }
+
+    public void send(String transactionTopic, String message) {
+        send(transactionTopic, null, message);
     }
 
-    public void send(String transactionTopic, String message, Integer retryTimes) {
-        try {
-            kafkaTemplate.send(transactionTopic, message);
-            logger.info("Send message to kafka topic({}): {}", transactionTopic, message);
-        } catch (Exception e) {
-            logger.error("Error while sending kafka event", e);
-            if (retryTimes > 0) {
-                logger.info("Retry sending the event to kafka, retry number:" + retryTimes);
-                send(transactionTopic, message, --retryTimes);
-            }
-        }
+    /**
+     * Append the event to the outbox, joins the transaction of the caller (its own transaction if there is none)
+     */
+    public void send(String transactionTopic, String key, String message) {
+        outboxEventRepository.save(new OutboxEvent(transactionTopic, key, message));
+        logger.info("Queued message for kafka topic({}) key({}): {}", transactionTopic, key, message);
     }
 }
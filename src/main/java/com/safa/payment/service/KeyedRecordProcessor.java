@@ -0,0 +1,103 @@
+package com.safa.payment.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.kafka.listener.BatchListenerFailedException;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Process the records of a kafka poll on a worker pool instead of the single listener thread of the partition.
+ * Records are grouped by key (purchase order reference, consultation user), the records of one key run one after the
+ * other in offset order while different keys run in parallel, so throughput follows the cores and not the partitions.
+ * The listener returns once every record of the poll is processed and the container commits the poll. If a record
+ * can't be processed (handler failure, listener stopped) the other keys stop at their next record and a
+ * {@link BatchListenerFailedException} is thrown for the first unprocessed record, the error handler commits the
+ * offsets before it and delivers it and the following records again. Once the error handler retries are exhausted the
+ * record is moved to the dead letter topic (see KafkaRetryConfig)
+ *
+ * @author Qusai Safa
+ */
+@Component
+@Slf4j
+public class KeyedRecordProcessor implements DisposableBean {
+
+    private final ThreadPoolTaskExecutor workerExecutor;
+
+    @Autowired
+    public KeyedRecordProcessor(@Value("${payment.kafka.keyed.pool-size:0}") int poolSize) {
+        int size = poolSize > 0 ? poolSize : Runtime.getRuntime().availableProcessors();
+        this.workerExecutor = new ThreadPoolTaskExecutor();
+        this.workerExecutor.setCorePoolSize(size);
+        this.workerExecutor.setMaxPoolSize(size);
+        this.workerExecutor.setThreadNamePrefix("Payment-kafka-worker-");
+        this.workerExecutor.initialize();
+    }
+
+    /**
+     * Process the items of a poll, item i is the parsed record i of the poll (null if the record was already handled)
+     */
+    public <T> void process(String topic, List<T> items, Function<T, String> keyOf, Consumer<T> handler) {
+        Map<String, List<Integer>> indexesByKey = new LinkedHashMap<>();
+        for (int i = 0; i < items.size(); i++) {
+            T item = items.get(i);
+            if (item != null) {
+                indexesByKey.computeIfAbsent(keyOf.apply(item), key -> new ArrayList<>()).add(i);
+            }
+        }
+        boolean[] processed = new boolean[items.size()];
+        for (int i = 0; i < items.size(); i++) {
+            processed[i] = items.get(i) == null;
+        }
+        AtomicBoolean stopped = new AtomicBoolean();
+        List<CompletableFuture<Void>> keys = new ArrayList<>(indexesByKey.size());
+        for (List<Integer> indexes : indexesByKey.values()) {
+            keys.add(CompletableFuture.runAsync(() -> {
+                for (int index : indexes) {
+                    if (stopped.get()) {
+                        return;
+                    }
+                    handler.accept(items.get(index));
+                    processed[index] = true;
+                }
+            }, workerExecutor).whenComplete((result, e) -> {
+                // The poll is delivered again from the failed record, the other keys stop at their next record
+                if (e != null) {
+                    stopped.set(true);
+                }
+            }));
+        }
+        try {
+            CompletableFuture.allOf(keys.toArray(CompletableFuture[]::new)).get();
+        } catch (ExecutionException e) {
+            log.warn("Processing a record of {} failed: {}", topic, e.getCause().getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        stopped.set(true);
+        // Wait for the keys still running, the redelivered records mustn't overtake them
+        keys.forEach(key -> key.handle((result, e) -> null).join());
+        for (int i = 0; i < processed.length; i++) {
+            if (!processed[i]) {
+                throw new BatchListenerFailedException(String.format("Record %d of the %s poll wasn't processed", i, topic), i);
+            }
+        }
+    }
+
+    @Override
+    public void destroy() {
+        workerExecutor.shutdown();
+    }
+}
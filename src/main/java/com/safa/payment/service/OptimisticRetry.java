@@ -0,0 +1,97 @@
+package com.safa.payment.service;
+
+import com.safa.payment.util.ThrowingRunnable;
+import com.safa.payment.util.ThrowingSupplier;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.OptimisticLockException;
+import lombok.extern.slf4j.Slf4j;
+import org.hibernate.StaleStateException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Run a transactional service call again when it fails on a stale versioned entity (optimistic locking conflict).
+ * Must wrap the transaction, every attempt starts a new transaction and reads the current rows,
+ * the persistence context (kept open for the web request) is cleared before retrying so no stale entity is reused.
+ * Conflicts are counted as payment.optimistic_lock.conflicts and calls failing after the last attempt as
+ * payment.optimistic_lock.exhausted, tagged with the operation
+ *
+ * @author Qusai Safa
+ */
+@Component
+@Slf4j
+public class OptimisticRetry {
+
+    private static final String CONFLICTS_METRIC = "payment.optimistic_lock.conflicts";
+    private static final String EXHAUSTED_METRIC = "payment.optimistic_lock.exhausted";
+    private static final String OPERATION_TAG = "operation";
+
+    private final EntityManager entityManager;
+    private final MeterRegistry meterRegistry;
+    private final int maxAttempts;
+    private final long backoffMs;
+
+    @Autowired
+    public OptimisticRetry(EntityManager entityManager, MeterRegistry meterRegistry,
+                           @Value("${payment.optimistic-retry.max-attempts:3}") int maxAttempts,
+                           @Value("${payment.optimistic-retry.backoff-ms:20}") long backoffMs) {
+        this.entityManager = entityManager;
+        this.meterRegistry = meterRegistry;
+        this.maxAttempts = maxAttempts;
+        this.backoffMs = backoffMs;
+    }
+
+    public <T, E extends Exception> T call(String operation, ThrowingSupplier<T, E> action) throws E {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return action.get();
+            } catch (Exception e) {
+                if (!isConflict(e)) {
+                    throw e;
+                }
+                meterRegistry.counter(CONFLICTS_METRIC, OPERATION_TAG, operation).increment();
+                if (attempt >= maxAttempts) {
+                    meterRegistry.counter(EXHAUSTED_METRIC, OPERATION_TAG, operation).increment();
+                    throw e;
+                }
+                log.info("Optimistic locking conflict on {}, attempt {} of {}: {}", operation, attempt, maxAttempts, e.getMessage());
+                entityManager.clear();
+                pause(attempt);
+            }
+        }
+    }
+
+    public <E extends Exception> void run(String operation, ThrowingRunnable<E> action) throws E {
+        call(operation, () -> {
+            action.run();
+            return null;
+        });
+    }
+
+    private static boolean isConflict(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof OptimisticLockingFailureException
+                    || cause instanceof OptimisticLockException
+                    || cause instanceof StaleStateException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Short randomized pause, so the conflicting writers don't collide again
+     */
+    private void pause(int attempt) {
+        try {
+            Thread.sleep(ThreadLocalRandom.current().nextLong(backoffMs * attempt + 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package com.safa.payment.service;
+
+import com.safa.payment.dto.SlackErrorMessageDto;
+import com.safa.payment.entity.OutboxEvent;
+import com.safa.payment.repository.OutboxEventRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.errors.RetriableException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publish the outbox events to kafka.
+ * One relay at a time (database advisory lock) locks a batch of the oldest events and sends it without waiting between
+ * records, except that the events of one topic and key are sent one after the other: an event is sent once the
+ * previous event of its key is acknowledged, and is held back if that one failed, so the events of a purchase order
+ * reach the consumers in order. Acknowledged events are deleted in the same transaction, failed and held back events
+ * stay in the outbox and are sent again by the next poll, so an event is published at least once.
+ * An event that failed max-attempts times, or with an error kafka won't recover from (e.g. record too large), is parked
+ * and reported to slack: it stays in the outbox for inspection but isn't sent anymore, so it can't hold back the events
+ * after it in its group forever. A parked event is sent again once its parked flag is cleared.
+ * The age of the oldest unpublished event is exposed as the payment.outbox.lag metric, parked events as payment.outbox.parked
+ *
+ * @author Qusai Safa
+ */
+@Component
+@Slf4j
+public class OutboxRelay {
+
+    private static final String LAG_METRIC = "payment.outbox.lag";
+    private static final String PUBLISHED_METRIC = "payment.outbox.published";
+    private static final String FAILED_METRIC = "payment.outbox.failed";
+    private static final String PARKED_METRIC = "payment.outbox.parked";
+    private static final String EVENT_PARKED = "Outbox event %d to %s parked after %d attempts, %s";
+    private static final int MAX_ERROR_LENGTH = 2000;
+    private static final long RELAY_LOCK_ID = 0x6f7574626f78L;
+    private static final char GROUP_SEPARATOR = '\u0000';
+
+    private final OutboxEventRepository outboxEventRepository;
+    private final KafkaTemplate<String, String> kafkaTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final Executor taskExecutor;
+    private final ApplicationEventPublisher eventPublisher;
+    private final AtomicLong lagMs = new AtomicLong();
+    private final AtomicLong parked = new AtomicLong();
+    private final Counter published;
+    private final Counter failed;
+
+    @Value("${payment.outbox.batch-size:100}")
+    private int batchSize;
+
+    @Value("${payment.outbox.send-timeout-ms:30000}")
+    private long sendTimeoutMs;
+
+    @Value("${payment.outbox.max-attempts:20}")
+    private int maxAttempts;
+
+    @Autowired
+    public OutboxRelay(OutboxEventRepository outboxEventRepository, KafkaTemplate<String, String> kafkaTemplate,
+                       PlatformTransactionManager transactionManager, @Qualifier("taskExecutor") Executor taskExecutor,
+                       ApplicationEventPublisher eventPublisher, MeterRegistry meterRegistry) {
+        this.outboxEventRepository = outboxEventRepository;
+        this.kafkaTemplate = kafkaTemplate;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.taskExecutor = taskExecutor;
+        this.eventPublisher = eventPublisher;
+        Gauge.builder(LAG_METRIC, lagMs, AtomicLong::get).description("Age of the oldest unpublished kafka event")
+                .baseUnit("milliseconds").register(meterRegistry);
+        this.published = Counter.builder(PUBLISHED_METRIC).description("Outbox events acknowledged by kafka").register(meterRegistry);
+        this.failed = Counter.builder(FAILED_METRIC).description("Outbox event sends that failed and will be retried").register(meterRegistry);
+        Gauge.builder(PARKED_METRIC, parked, AtomicLong::get).description("Outbox events parked after failing").register(meterRegistry);
+    }
+
+    /**
+     * Drain the outbox, batch after batch until a batch isn't full or a send failed
+     */
+    @Scheduled(fixedDelayString = "${payment.outbox.poll-interval-ms:500}")
+    public void relay() {
+        Integer acknowledged;
+        do {
+            acknowledged = transactionTemplate.execute(status -> publishBatch());
+        } while (acknowledged != null && acknowledged == batchSize);
+        Date oldest = outboxEventRepository.findOldestCreatedAt();
+        lagMs.set(oldest != null ? System.currentTimeMillis() - oldest.getTime() : 0);
+        parked.set(outboxEventRepository.countByParkedTrue());
+    }
+
+    /**
+     * Returns the number of events acknowledged by kafka
+     */
+    int publishBatch() {
+        if (!outboxEventRepository.tryRelayLock(RELAY_LOCK_ID)) {
+            return 0;
+        }
+        List<OutboxEvent> batch = outboxEventRepository.lockBatch(batchSize);
+        if (batch.isEmpty()) {
+            return 0;
+        }
+        // The events of an ordering group (same topic and key) are chained, an event is sent once the previous one
+        // of its group is acknowledged and not at all if it failed, different groups are sent concurrently
+        Map<String, CompletableFuture<?>> lastSendByGroup = new HashMap<>();
+        List<CompletableFuture<?>> sends = new ArrayList<>(batch.size());
+        for (OutboxEvent outboxEvent : batch) {
+            String group = orderingGroup(outboxEvent);
+            CompletableFuture<?> previous = lastSendByGroup.get(group);
+            CompletableFuture<?> send = previous == null
+                    ? kafkaTemplate.send(outboxEvent.getTopic(), outboxEvent.getMessageKey(), outboxEvent.getPayload())
+                    // Not chained on the producer io thread, a send may block while the producer buffer is full
+                    : previous.thenComposeAsync(result -> kafkaTemplate.send(outboxEvent.getTopic(), outboxEvent.getMessageKey(),
+                    outboxEvent.getPayload()), taskExecutor);
+            lastSendByGroup.put(group, send);
+            sends.add(send);
+        }
+        try {
+            CompletableFuture.allOf(sends.toArray(CompletableFuture[]::new)).get(sendTimeoutMs, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException | TimeoutException e) {
+            // Some sends failed or are still in flight, handled one by one below
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        List<OutboxEvent> acknowledged = new ArrayList<>(batch.size());
+        Set<String> failedGroups = new HashSet<>();
+        for (int i = 0; i < batch.size(); i++) {
+            OutboxEvent outboxEvent = batch.get(i);
+            CompletableFuture<?> send = sends.get(i);
+            String group = orderingGroup(outboxEvent);
+            if (!failedGroups.contains(group) && send.isDone() && !send.isCompletedExceptionally()) {
+                acknowledged.add(outboxEvent);
+                continue;
+            }
+            if (!failedGroups.add(group)) {
+                // Held back behind the failed event of its group, stays in the outbox
+                continue;
+            }
+            Throwable exception = send.isDone() ? send.handle((result, e) -> e).join() : null;
+            String error = exception != null ? String.valueOf(exception.getMessage()) : "Send timed out";
+            outboxEvent.setAttempts(outboxEvent.getAttempts() + 1);
+            outboxEvent.setLastError(StringUtils.abbreviate(error, MAX_ERROR_LENGTH));
+            if (outboxEvent.getAttempts() >= maxAttempts || isPermanent(exception)) {
+                park(outboxEvent, error);
+                continue;
+            }
+            failed.increment();
+            log.warn("Publishing outbox event {} to {} failed, attempt {}: {}", outboxEvent.getId(), outboxEvent.getTopic(), outboxEvent.getAttempts(), error);
+        }
+        outboxEventRepository.deleteAllInBatch(acknowledged);
+        published.increment(acknowledged.size());
+        return acknowledged.size();
+    }
+
+    private void park(OutboxEvent outboxEvent, String error) {
+        outboxEvent.setParked(true);
+        log.error("Outbox event {} to {} parked after {} attempts: {}", outboxEvent.getId(), outboxEvent.getTopic(), outboxEvent.getAttempts(), error);
+        eventPublisher.publishEvent(new SlackErrorMessageDto(String.format(EVENT_PARKED, outboxEvent.getId(),
+                outboxEvent.getTopic(), outboxEvent.getAttempts(), outboxEvent.getLastError())));
+    }
+
+    /**
+     * Errors kafka doesn't retry (record too large, invalid topic, authorization), the next attempt fails the same way.
+     * A send that timed out or failed with a retriable error (broker unavailable) isn't permanent
+     */
+    private static boolean isPermanent(Throwable exception) {
+        return exception != null && ExceptionUtils.getThrowableList(exception).stream()
+                .anyMatch(cause -> cause instanceof KafkaException)
+                && ExceptionUtils.indexOfType(exception, RetriableException.class) < 0;
+    }
+
+    private static String orderingGroup(OutboxEvent outboxEvent) {
+        return outboxEvent.getMessageKey() == null
+                ? outboxEvent.getTopic()
+                : outboxEvent.getTopic() + GROUP_SEPARATOR + outboxEvent.getMessageKey();
+    }
+}
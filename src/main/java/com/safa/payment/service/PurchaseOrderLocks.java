@@ -0,0 +1,116 @@
+package com.safa.payment.service;
+
+import com.safa.payment.entity.PurchaseOrder;
+import com.safa.payment.util.ThrowingRunnable;
+import com.safa.payment.util.ThrowingSupplier;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Serialize the mutations of one purchase order (webhooks, pay-now, hosted payment link, promo, cancel and kafka
+ * purchase order events) while mutations of different orders run in parallel.
+ * Orders are keyed by reference type and reference id and mapped to a fixed set of striped locks, so memory
+ * doesn't grow with the number of orders, two orders sharing a stripe only wait for each other.
+ * The lock must be taken outside the transaction of the mutation, so the next mutation reads the committed state.
+ * Serializes within one instance only, the waiting time is exposed as the payment.order.lock.wait metric
+ *
+ * @author Qusai Safa
+ */
+@Component
+public class PurchaseOrderLocks {
+
+    private static final String WAIT_METRIC = "payment.order.lock.wait";
+
+    private final ReentrantLock[] stripes;
+    private final long timeoutMs;
+    private final Timer waitTimer;
+
+    @Autowired
+    public PurchaseOrderLocks(@Value("${payment.order-lock.stripes:1024}") int stripes,
+                              @Value("${payment.order-lock.timeout-ms:30000}") long timeoutMs,
+                              MeterRegistry meterRegistry) {
+        // Power of two, the stripe is picked with a mask
+        int size = Integer.highestOneBit(Math.max(stripes - 1, 1)) << 1;
+        this.stripes = new ReentrantLock[size];
+        for (int i = 0; i < size; i++) {
+            this.stripes[i] = new ReentrantLock();
+        }
+        this.timeoutMs = timeoutMs;
+        this.waitTimer = Timer.builder(WAIT_METRIC).description("Time waiting for the purchase order lock").register(meterRegistry);
+    }
+
+    /**
+     * Run the action while holding the lock of the purchase order, returns the action result
+     */
+    public <T, E extends Exception> T call(String referenceId, String referenceType, ThrowingSupplier<T, E> action) throws E {
+        String key = PurchaseOrder.referenceKey(referenceId, referenceType);
+        ReentrantLock lock = stripes[stripe(key)];
+        acquire(lock, key);
+        try {
+            return action.get();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Run the action while holding the lock of the purchase order
+     */
+    public <E extends Exception> void run(String referenceId, String referenceType, ThrowingRunnable<E> action) throws E {
+        call(referenceId, referenceType, () -> {
+            action.run();
+            return null;
+        });
+    }
+
+    /**
+     * Run the action while holding the locks of all the purchase orders (keyed by {@link PurchaseOrder#referenceKey}).
+     * Stripes are always locked in ascending order, so two callers locking overlapping orders can't deadlock
+     */
+    public <T, E extends Exception> T callAll(Collection<String> referenceKeys, ThrowingSupplier<T, E> action) throws E {
+        int[] lockedStripes = referenceKeys.stream().mapToInt(this::stripe).distinct().sorted().toArray();
+        int locked = 0;
+        try {
+            for (int stripe : lockedStripes) {
+                acquire(stripes[stripe], String.valueOf(referenceKeys));
+                locked++;
+            }
+            return action.get();
+        } finally {
+            for (int i = locked - 1; i >= 0; i--) {
+                stripes[lockedStripes[i]].unlock();
+            }
+        }
+    }
+
+    private void acquire(ReentrantLock lock, String key) {
+        long start = System.nanoTime();
+        try {
+            if (!lock.tryLock(timeoutMs, TimeUnit.MILLISECONDS)) {
+                throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, String.format("Purchase order %s is busy, try again", key));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, String.format("Interrupted waiting for purchase order %s", key));
+        } finally {
+            waitTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private int stripe(String referenceKey) {
+        return spread(referenceKey.hashCode()) & (stripes.length - 1);
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+}
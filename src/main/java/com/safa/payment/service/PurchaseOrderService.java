@@ -7,27 +7,32 @@ import com.safa.payment.dto.MoneyDto;
 import com.safa.payment.dto.common.PaymentTransactionDto;
 import com.safa.payment.dto.common.PurchaseOrderIncomingDto;
 import com.safa.payment.dto.common.PurchaseOrderOutgoingDto;
-import com.safa.payment.dto.telr.TransactionDetails;
+import com.safa.payment.dto.telr.TransactionIdentifiers;
 import com.safa.payment.entity.*;
 import com.safa.payment.exception.InternalPaymentException;
+import com.safa.payment.repository.PaymentTransactionRepository;
+import com.safa.payment.repository.PurchaseOrderReference;
 import com.safa.payment.repository.PurchaseOrderRepository;
+import com.safa.payment.service.gateway.GatewayRoutingService;
+import com.safa.payment.service.gateway.HostedPaymentUrlCache;
 import com.safa.payment.service.gateway.PaymentTransactionServiceFactory;
 import com.safa.payment.service.gateway.Telr.TelrRestService;
 import com.safa.payment.util.PaymentUtil;
+import jakarta.persistence.EntityManager;
 import jakarta.transaction.Transactional;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.commons.collections4.CollectionUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Lazy;
 import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Service;
 import org.springframework.web.server.ResponseStatusException;
 
 import java.math.BigDecimal;
-import java.util.Comparator;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 
 /**
@@ -41,45 +46,79 @@ import java.util.Optional;
 @Slf4j
 public class PurchaseOrderService {
 
+    private static final List<String> PAID_STATUS_CODES = List.of(
+            PaymentTransactionPaymentStatus.AUTHORIZED.getShortCode(), PaymentTransactionPaymentStatus.HOLD_AUTHORIZED.getShortCode());
+
     private final PurchaseOrderRepository purchaseOrderRepository;
+    private final PaymentTransactionRepository paymentTransactionRepository;
     private final PaymentTransactionServiceFactory paymentTransactionServiceFactory;
     private final PromoService promoService;
     private final PaymentUtil paymentUtil;
     private final TelrRestService restService;
-
-    @Value("${default.payment.gateway:TELR}")
-    private String defaultPaymentGateway;
+    private final HostedPaymentUrlCache hostedPaymentUrlCache;
+    private final GatewayRoutingService gatewayRoutingService;
+    private final EntityManager entityManager;
 
     @Autowired
     @Lazy
     public PurchaseOrderService(
             PurchaseOrderRepository purchaseOrderRepository,
+            PaymentTransactionRepository paymentTransactionRepository,
             PaymentUtil paymentUtil,
             PromoService promoService, TelrRestService restService,
-            PaymentTransactionServiceFactory paymentTransactionServiceFactory) {
+            PaymentTransactionServiceFactory paymentTransactionServiceFactory, HostedPaymentUrlCache hostedPaymentUrlCache,
+            GatewayRoutingService gatewayRoutingService, EntityManager entityManager) {
         this.purchaseOrderRepository = purchaseOrderRepository;
+        this.paymentTransactionRepository = paymentTransactionRepository;
         this.paymentUtil = paymentUtil;
         this.promoService = promoService;
         this.restService = restService;
         this.paymentTransactionServiceFactory = paymentTransactionServiceFactory;
+        this.hostedPaymentUrlCache = hostedPaymentUrlCache;
+        this.gatewayRoutingService = gatewayRoutingService;
+        this.entityManager = entityManager;
     }
 
     /**
      * Create purchase order (cart order), this record will be used to create the payment url
+     * The payment gateway of the new order is chosen by the gateway routing
      */
     public void createPurchaseOrder(final PurchaseOrderIncomingDto purchaseOrderIncomingDto) {
         final PurchaseOrder purchaseOrder =
-                this.purchaseOrderRepository.findByReferenceIdAndReferenceTypeIgnoreCase(
+                this.purchaseOrderRepository.findByReferenceIdAndReferenceType(
                         purchaseOrderIncomingDto.getPaymentTransaction().getReferenceId(),
-                        purchaseOrderIncomingDto.getPaymentTransaction().getReferenceType());
-        if (purchaseOrder != null) {
-            updatePurchaseOrderDueAmount(
-                    purchaseOrderIncomingDto.getPaymentTransaction(), purchaseOrder, purchaseOrderIncomingDto.isSendAutoNotification());
-        } else {
-            final PurchaseOrder newPurchaseOrder = this.paymentUtil.mapToPurchaseOrder(purchaseOrderIncomingDto);
-            final PurchaseOrder savedPurchaseOrder = this.purchaseOrderRepository.saveAndFlush(newPurchaseOrder);
-            this.paymentTransactionServiceFactory.getInstance(PaymentGateway.valueOf(this.defaultPaymentGateway)).initPaymentTransaction(savedPurchaseOrder, purchaseOrderIncomingDto.isSendAutoNotification());
+                        PurchaseOrder.normalizeReferenceType(purchaseOrderIncomingDto.getPaymentTransaction().getReferenceType()));
+        upsertPurchaseOrder(purchaseOrderIncomingDto, purchaseOrder);
+    }
+
+    /**
+     * Update the due amount of the existing purchase order, or create the purchase order if there is none,
+     * the existing order is looked up by the caller (e.g. once for a batch of orders). Returns the purchase order
+     */
+    public PurchaseOrder upsertPurchaseOrder(final PurchaseOrderIncomingDto purchaseOrderIncomingDto, PurchaseOrder existingPurchaseOrder) {
+        if (existingPurchaseOrder != null) {
+            return updatePurchaseOrderDueAmount(
+                    purchaseOrderIncomingDto.getPaymentTransaction(), existingPurchaseOrder, purchaseOrderIncomingDto.isSendAutoNotification());
+        }
+        final PurchaseOrder newPurchaseOrder = this.paymentUtil.mapToPurchaseOrder(purchaseOrderIncomingDto);
+        newPurchaseOrder.setPaymentGateway(this.gatewayRoutingService.selectGateway());
+        final PurchaseOrder savedPurchaseOrder = this.purchaseOrderRepository.save(newPurchaseOrder);
+        this.paymentTransactionServiceFactory.getInstance(savedPurchaseOrder.getPaymentGateway()).initPaymentTransaction(savedPurchaseOrder, purchaseOrderIncomingDto.isSendAutoNotification());
+        return savedPurchaseOrder;
+    }
+
+    /**
+     * Purchase orders with the reference ids by their {@link PurchaseOrder#referenceKey}, loaded with one query
+     */
+    public Map<String, PurchaseOrder> findByReferenceIds(Collection<String> referenceIds) {
+        Map<String, PurchaseOrder> purchaseOrders = new HashMap<>();
+        if (referenceIds.isEmpty()) {
+            return purchaseOrders;
         }
+        for (PurchaseOrder purchaseOrder : purchaseOrderRepository.findByReferenceIdIn(referenceIds)) {
+            purchaseOrders.put(PurchaseOrder.referenceKey(purchaseOrder.getReferenceId(), purchaseOrder.getReferenceType()), purchaseOrder);
+        }
+        return purchaseOrders;
     }
 
     /**
@@ -88,8 +127,8 @@ public class PurchaseOrderService {
      */
     public PurchaseOrderOutgoingDto applyPromoForPurchaseOrder(final IncomingDto incomingDto) throws Exception {
         PurchaseOrder purchaseOrder =
-                this.purchaseOrderRepository.findByReferenceIdAndReferenceTypeIgnoreCase(
-                        incomingDto.getReferenceId(), incomingDto.getReferenceType());
+                this.purchaseOrderRepository.findByReferenceIdAndReferenceType(
+                        incomingDto.getReferenceId(), PurchaseOrder.normalizeReferenceType(incomingDto.getReferenceType()));
         if (purchaseOrder == null) {
             throw new Exception(
                     "Purchase order not found, reference id: "
@@ -114,7 +153,9 @@ public class PurchaseOrderService {
             purchaseOrder.setAmountAfterDiscount(amountAfterDiscount);
             purchaseOrder.setPromoCode(promo.getCode());
             purchaseOrder.setDiscount(promo.getDiscount());
-            this.purchaseOrderRepository.saveAndFlush(purchaseOrder);
+            this.purchaseOrderRepository.save(purchaseOrder);
+            // The amount changed, the cached gateway order has the old amount
+            invalidateHostedPaymentUrls(purchaseOrder);
             // If full discount, send kafka event to backend service with success payment status
             if (discount == 100) {
                 PromoUsage promoUsage = promoService.savePromoUsage(purchaseOrder, promo, true);
@@ -137,8 +178,8 @@ public class PurchaseOrderService {
             throw new Exception("missing payment transaction details");
         }
         PurchaseOrder oldPurchaseOrder =
-                purchaseOrderRepository.findByReferenceIdAndReferenceTypeIgnoreCase(
-                        paymentTransactionDto.getReferenceId(), paymentTransactionDto.getReferenceType());
+                purchaseOrderRepository.findByReferenceIdAndReferenceType(
+                        paymentTransactionDto.getReferenceId(), PurchaseOrder.normalizeReferenceType(paymentTransactionDto.getReferenceType()));
         // Update purchase order
         if (oldPurchaseOrder != null) {
             updatePurchaseOrderDueAmount(paymentTransactionDto, oldPurchaseOrder, purchaseOrderIncomingDto.isSendAutoNotification());
@@ -156,8 +197,8 @@ public class PurchaseOrderService {
     public void cancelRepeatPaymentAgreement(PurchaseOrderIncomingDto purchaseOrderIncomingDto) {
         PaymentTransactionDto paymentTransactionDto = purchaseOrderIncomingDto.getPaymentTransaction();
         PurchaseOrder purchaseOrder =
-                purchaseOrderRepository.findByReferenceIdAndReferenceTypeIgnoreCase(
-                        paymentTransactionDto.getReferenceId(), paymentTransactionDto.getReferenceType());
+                purchaseOrderRepository.findByReferenceIdAndReferenceType(
+                        paymentTransactionDto.getReferenceId(), PurchaseOrder.normalizeReferenceType(paymentTransactionDto.getReferenceType()));
 
         // if the purchase order is not of repeat payment type, so no agreement is created for this purchase order, and this mean the agreement is not created in telr.
         if (purchaseOrder.getBillingInterval() == null) {
@@ -183,9 +224,9 @@ public class PurchaseOrderService {
         // Get transaction details by calling telr transaction service, in order to get the payment agreement id.
         String transactionReference = paidTransaction.getTransactionReference();
         //TODO: Move this logic to Gateways services
-        TransactionDetails transactionDetails = restService.getPaymentTransactionDetails(transactionReference);
+        TransactionIdentifiers transactionIdentifiers = restService.getPaymentTransactionDetails(transactionReference);
 
-        String agreementId = transactionDetails.getAgreementId();
+        String agreementId = transactionIdentifiers.getAgreementId();
         if (agreementId == null) {
             // Please
             throw new InternalPaymentException(String.format("Cancel payment agreement Failed, couldn't find the agreement id for transaction id %s,purchase order reference id %s, and reference type %s", transactionReference, paymentTransactionDto.getReferenceId(), paymentTransactionDto.getReferenceType()));
@@ -202,8 +243,26 @@ public class PurchaseOrderService {
             PaymentTransactionDto paymentTransactionDto, PurchaseOrder oldPurchaseOrder, boolean sendAutoNotification) {
         MoneyDto moneyDto = paymentTransactionDto.getAmount();
         oldPurchaseOrder.setAmount(new Money(moneyDto.getValue(), moneyDto.getCurrency()));
+        invalidateHostedPaymentUrls(oldPurchaseOrder);
         this.paymentTransactionServiceFactory.getInstance(oldPurchaseOrder.getPaymentGateway()).initPaymentTransaction(oldPurchaseOrder, sendAutoNotification);
-        return purchaseOrderRepository.saveAndFlush(oldPurchaseOrder);
+        return purchaseOrderRepository.save(oldPurchaseOrder);
+    }
+
+    /**
+     * Drop the cached and pre-warmed gateway urls of the purchase order, they were created with the old amount
+     */
+    private void invalidateHostedPaymentUrls(PurchaseOrder purchaseOrder) {
+        hostedPaymentUrlCache.invalidate(purchaseOrder.getId());
+        paymentTransactionRepository.clearHostedPaymentUrls(purchaseOrder.getId());
+    }
+
+    /**
+     * Move a purchase order that didn't start a payment yet to another payment gateway
+     */
+    public void switchPaymentGateway(PurchaseOrder purchaseOrder, PaymentGateway paymentGateway) {
+        purchaseOrder.setPaymentGateway(paymentGateway);
+        invalidateHostedPaymentUrls(purchaseOrder);
+        purchaseOrderRepository.save(purchaseOrder);
     }
 
     public PurchaseOrder findByReference(String referenceId, String referenceType) {
@@ -212,7 +271,7 @@ public class PurchaseOrderService {
 
     public PurchaseOrder findByReference(String referenceId, String referenceType, boolean shouldExist) {
         PurchaseOrder purchaseOrder =
-                purchaseOrderRepository.findByReferenceIdAndReferenceTypeIgnoreCase(referenceId, referenceType.toLowerCase());
+                purchaseOrderRepository.findByReferenceIdAndReferenceType(referenceId, PurchaseOrder.normalizeReferenceType(referenceType));
         if (purchaseOrder == null) {
             if (shouldExist) {
                 throw new ResponseStatusException(
@@ -254,12 +313,7 @@ public class PurchaseOrderService {
             return null;
         }
         // Get the last updated transaction
-        PaymentTransaction paymentTransaction = null;
-        List<PaymentTransaction> transactions = purchaseOrder.getPaymentTransactions();
-        if (!CollectionUtils.isEmpty(transactions)) {
-            Comparator<PaymentTransaction> updatedAtComparator = Comparator.comparing(PaymentTransaction::getUpdatedAt);
-            paymentTransaction = transactions.stream().max(updatedAtComparator).orElse(null);
-        }
+        PaymentTransaction paymentTransaction = findLatestPaymentTransaction(purchaseOrder);
 
         if (paymentTransaction == null) {
             if (shouldExist) {
@@ -273,6 +327,52 @@ public class PurchaseOrderService {
         return paymentUtil.createPaymentTransactionDto(paymentTransaction, purchaseOrder);
     }
 
+    /**
+     * Last updated transaction of the purchase order, null if it has no transactions
+     */
+    public PaymentTransaction findLatestPaymentTransaction(PurchaseOrder purchaseOrder) {
+        // Primary key read of the latest transaction pointer, orders written before the pointer existed query the history
+        if (purchaseOrder.getLatestTransactionId() != null) {
+            return paymentTransactionRepository.findById(purchaseOrder.getLatestTransactionId()).orElse(null);
+        }
+        return paymentTransactionRepository.findFirstByPurchaseOrderIdOrderByUpdatedAtDesc(purchaseOrder.getId());
+    }
+
+    /**
+     * True if the purchase order was paid (authorized or hold authorized) by any of its transactions
+     */
+    public boolean isPaid(PurchaseOrder purchaseOrder) {
+        if (purchaseOrder.getLatestTransactionId() != null) {
+            return Boolean.TRUE.equals(purchaseOrder.getPaid());
+        }
+        return paymentTransactionRepository.existsByPurchaseOrderIdAndTransactionStatusIn(purchaseOrder.getId(), PAID_STATUS_CODES);
+    }
+
+    /**
+     * Point the purchase order at the transaction just written, must run in the transaction that wrote it.
+     * A managed purchase order is written with its versioned update at flush, batched with the other writes of the
+     * transaction (a bulk update would flush the session on every call). A detached one is updated right away
+     */
+    public void updateLatestTransaction(PurchaseOrder purchaseOrder, PaymentTransaction paymentTransaction) {
+        String status = paymentTransaction.getTransactionStatus();
+        boolean paid = PAID_STATUS_CODES.contains(status);
+        if (!entityManager.contains(purchaseOrder)) {
+            purchaseOrderRepository.updateLatestTransaction(purchaseOrder.getId(), paymentTransaction.getId(), status, paid);
+        }
+        purchaseOrder.setLatestTransactionId(paymentTransaction.getId());
+        purchaseOrder.setLatestStatus(status);
+        purchaseOrder.setPaid(paid || Boolean.TRUE.equals(purchaseOrder.getPaid()));
+    }
+
+    /**
+     * True if the purchase order has transactions and all of them are ready for payment (no payment was started)
+     */
+    public boolean isReadyForPayment(PurchaseOrder purchaseOrder) {
+        String readyForPayment = PaymentTransactionPaymentStatus.READY_FOR_PAYMENT.getShortCode();
+        return paymentTransactionRepository.countByPurchaseOrderId(purchaseOrder.getId()) > 0
+                && !paymentTransactionRepository.existsByPurchaseOrderIdAndTransactionStatusNot(purchaseOrder.getId(), readyForPayment);
+    }
+
     public PurchaseOrder findByUuid(String uuid) {
         PurchaseOrder purchaseOrder = purchaseOrderRepository.findByUuid(uuid);
         if (purchaseOrder == null) {
@@ -282,14 +382,18 @@ public class PurchaseOrderService {
         return purchaseOrder;
     }
 
+    public PurchaseOrderReference findReferenceByUuid(String uuid) {
+        PurchaseOrderReference purchaseOrderReference = purchaseOrderRepository.findReferenceByUuid(uuid);
+        if (purchaseOrderReference == null) {
+            log.error("Invalid order uuid({})", uuid);
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, String.format("Invalid order uuid(%s)", uuid));
+        }
+        return purchaseOrderReference;
+    }
+
     public void cancelLatestPaymentTransactionForReference(String referenceId, String referenceType) {
         PurchaseOrder purchaseOrder = findByReference(referenceId, referenceType);
-        PaymentTransaction paymentTransaction = null;
-        List<PaymentTransaction> transactions = purchaseOrder.getPaymentTransactions();
-        if (!org.springframework.util.CollectionUtils.isEmpty(transactions)) {
-            Comparator<PaymentTransaction> updatedAtComparator = Comparator.comparing(PaymentTransaction::getUpdatedAt);
-            paymentTransaction = transactions.stream().max(updatedAtComparator).orElse(null);
-        }
+        PaymentTransaction paymentTransaction = findLatestPaymentTransaction(purchaseOrder);
         if (paymentTransaction == null) {
             throw new ResponseStatusException(
                     HttpStatus.NOT_FOUND, String.format("No payment transactions where found for reference id: %s and referenceType: %s", referenceId, referenceType));
@@ -1,12 +1,13 @@
 package com.safa.payment.service;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.safa.payment.config.HttpClientConfig;
 import com.safa.payment.dto.SlackErrorMessageDto;
 import com.safa.payment.dto.SlackPostMessage;
 import com.safa.payment.dto.telr.ErrorDto;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.boot.web.client.RestTemplateBuilder;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.context.event.EventListener;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
@@ -32,8 +33,8 @@ public class RestService {
     @Value("${slack.token:}")
     private String slackToken;
 
-    public RestService(RestTemplateBuilder restTemplateBuilder) {
-        this.restTemplate = restTemplateBuilder.build();
+    public RestService(@Qualifier(HttpClientConfig.SLACK_REST_TEMPLATE) RestTemplate restTemplate) {
+        this.restTemplate = restTemplate;
     }
 
 
@@ -0,0 +1,92 @@
+package com.safa.payment.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.safa.payment.util.BloomFilter;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+
+/**
+ * In memory front of the webhook inbox unique event key, drops redelivered webhooks without a database round trip.
+ * A bloom filter answers "never seen" for new events, for the events it has probably seen an exact set of the
+ * recent event keys confirms the duplicate. Events the memory can't confirm (older than the recent set, seen by
+ * another instance or a bloom false positive) go to the inbox insert, where the unique event key is the final word.
+ * The bloom filter is rotated in two generations so it covers the latest expected-insertions events at the
+ * configured false positive probability.
+ * Duplicates are counted as payment.webhook.duplicates tagged with the layer that dropped them
+ *
+ * @author Qusai Safa
+ */
+@Component
+public class WebhookDeduplicator {
+
+    private static final String DUPLICATES_METRIC = "payment.webhook.duplicates";
+
+    private final int expectedInsertions;
+    private final double falsePositiveProbability;
+    private final Cache<String, Boolean> recentEventKeys;
+    private final Counter memoryDuplicates;
+    private final Counter storeDuplicates;
+    private volatile BloomFilter currentFilter;
+    private volatile BloomFilter previousFilter;
+
+    @Autowired
+    public WebhookDeduplicator(@Value("${payment.webhook-dedup.expected-insertions:1000000}") int expectedInsertions,
+                               @Value("${payment.webhook-dedup.false-positive-probability:0.01}") double falsePositiveProbability,
+                               @Value("${payment.webhook-dedup.recent-size:100000}") long recentSize,
+                               @Value("${payment.webhook-dedup.recent-ttl-hours:24}") long recentTtlHours,
+                               MeterRegistry meterRegistry) {
+        this.expectedInsertions = expectedInsertions;
+        this.falsePositiveProbability = falsePositiveProbability;
+        this.currentFilter = new BloomFilter(expectedInsertions, falsePositiveProbability);
+        this.previousFilter = currentFilter;
+        this.recentEventKeys = Caffeine.newBuilder()
+                .expireAfterWrite(Duration.ofHours(recentTtlHours))
+                .maximumSize(recentSize)
+                .build();
+        this.memoryDuplicates = Counter.builder(DUPLICATES_METRIC).tag("layer", "memory").register(meterRegistry);
+        this.storeDuplicates = Counter.builder(DUPLICATES_METRIC).tag("layer", "store").register(meterRegistry);
+    }
+
+    /**
+     * True only if the event key is known to be already received, false means it must be checked by the inbox insert
+     */
+    public boolean isDuplicate(String eventKey) {
+        if (!currentFilter.mightContain(eventKey) && !previousFilter.mightContain(eventKey)) {
+            return false;
+        }
+        if (recentEventKeys.getIfPresent(eventKey) == null) {
+            return false;
+        }
+        memoryDuplicates.increment();
+        return true;
+    }
+
+    /**
+     * Remember an event key stored in the inbox, or rejected by the inbox as already stored
+     */
+    public void markReceived(String eventKey, boolean duplicate) {
+        if (duplicate) {
+            storeDuplicates.increment();
+        }
+        recentEventKeys.put(eventKey, Boolean.TRUE);
+        BloomFilter filter = currentFilter;
+        filter.put(eventKey);
+        if (filter.insertions() >= expectedInsertions) {
+            rotate(filter);
+        }
+    }
+
+    private synchronized void rotate(BloomFilter full) {
+        if (currentFilter != full) {
+            return;
+        }
+        previousFilter = full;
+        currentFilter = new BloomFilter(expectedInsertions, falsePositiveProbability);
+    }
+}
@@ -0,0 +1,298 @@
+package com.safa.payment.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.safa.payment.common.PaymentGateway;
+import com.safa.payment.common.WebhookInboxStatus;
+import com.safa.payment.dto.SlackErrorMessageDto;
+import com.safa.payment.dto.noon.NoonTransactionIncomingDto;
+import com.safa.payment.dto.telr.CartIdentifier;
+import com.safa.payment.dto.telr.TelrPaymentTransactionIncomingDto;
+import com.safa.payment.entity.WebhookInbox;
+import com.safa.payment.exception.InternalPaymentException;
+import com.safa.payment.exception.PaymentTransactionException;
+import com.safa.payment.repository.PaymentTransactionRepository;
+import com.safa.payment.repository.PurchaseOrderReference;
+import com.safa.payment.repository.WebhookInboxRepository;
+import com.safa.payment.service.gateway.Noon.NoonPaymentTransactionService;
+import com.safa.payment.service.gateway.Telr.TelrPaymentTransactionService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Durable inbox of the gateway payment webhooks.
+ * A webhook is verified, appended to the webhook_inbox table and acknowledged right away, the gateway call
+ * doesn't wait for the transaction update and kafka events.
+ * A scheduled worker locks due webhooks in batches (for update skip locked, so several instances can drain the inbox),
+ * processes them on a worker pool and retries failures with exponential backoff and jitter,
+ * webhooks of the same order are processed in order and under the {@link PurchaseOrderLocks} of the purchase order.
+ * Redelivered webhooks are dropped by the {@link WebhookDeduplicator} before the signature check when they are
+ * known, otherwise by the unique event key.
+ * Backlog depth, retries and the age of the oldest webhook waiting for a retry are exposed as metrics
+ *
+ * @author Qusai Safa
+ */
+@Service
+@Slf4j
+public class WebhookInboxService implements DisposableBean {
+
+    private static final String BACKLOG_METRIC = "payment.webhook.inbox.backlog";
+    private static final String FAILED_METRIC = "payment.webhook.inbox.failed";
+    private static final String RETRIES_METRIC = "payment.webhook.inbox.retries";
+    private static final String OLDEST_RETRY_AGE_METRIC = "payment.webhook.inbox.oldest_retry_age";
+    private static final String KEY_SEPARATOR = ":";
+    private static final String TELR_WEBHOOK_OPERATION = "telr_webhook";
+    private static final String NOON_WEBHOOK_OPERATION = "noon_webhook";
+    private static final int MAX_ERROR_LENGTH = 2000;
+    private static final String WEBHOOK_PROCESSING_FAILED = "Processing %s payment webhook failed after %d attempts, event %s, %s";
+
+    private final WebhookInboxRepository webhookInboxRepository;
+    private final WebhookDeduplicator webhookDeduplicator;
+    private final PaymentTransactionRepository paymentTransactionRepository;
+    private final PurchaseOrderLocks purchaseOrderLocks;
+    private final OptimisticRetry optimisticRetry;
+    private final TelrPaymentTransactionService telrPaymentTransactionService;
+    private final NoonPaymentTransactionService noonPaymentTransactionService;
+    private final ObjectMapper objectMapper;
+    private final ApplicationEventPublisher eventPublisher;
+    private final TransactionTemplate transactionTemplate;
+    private final ThreadPoolTaskExecutor workerExecutor;
+    private final AtomicLong backlog = new AtomicLong();
+    private final AtomicLong oldestRetryAgeMs = new AtomicLong();
+    private final Counter failed;
+    private final MeterRegistry meterRegistry;
+
+    @Value("${payment.webhook-inbox.batch-size:50}")
+    private int batchSize;
+
+    @Value("${payment.webhook-inbox.max-attempts:8}")
+    private int maxAttempts;
+
+    @Value("${payment.webhook-inbox.retry-delay-ms:5000}")
+    private long retryDelayMs;
+
+    @Value("${payment.webhook-inbox.max-retry-delay-ms:300000}")
+    private long maxRetryDelayMs;
+
+    @Value("${payment.webhook-inbox.visibility-timeout-ms:60000}")
+    private long visibilityTimeoutMs;
+
+    @Autowired
+    public WebhookInboxService(WebhookInboxRepository webhookInboxRepository, WebhookDeduplicator webhookDeduplicator,
+                               PaymentTransactionRepository paymentTransactionRepository, PurchaseOrderLocks purchaseOrderLocks,
+                               OptimisticRetry optimisticRetry,
+                               TelrPaymentTransactionService telrPaymentTransactionService,
+                               NoonPaymentTransactionService noonPaymentTransactionService,
+                               ObjectMapper objectMapper, ApplicationEventPublisher eventPublisher,
+                               PlatformTransactionManager transactionManager, MeterRegistry meterRegistry,
+                               @Value("${payment.webhook-inbox.workers:4}") int workers) {
+        this.webhookInboxRepository = webhookInboxRepository;
+        this.webhookDeduplicator = webhookDeduplicator;
+        this.paymentTransactionRepository = paymentTransactionRepository;
+        this.purchaseOrderLocks = purchaseOrderLocks;
+        this.optimisticRetry = optimisticRetry;
+        this.telrPaymentTransactionService = telrPaymentTransactionService;
+        this.noonPaymentTransactionService = noonPaymentTransactionService;
+        this.objectMapper = objectMapper;
+        this.eventPublisher = eventPublisher;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.workerExecutor = new ThreadPoolTaskExecutor();
+        this.workerExecutor.setCorePoolSize(workers);
+        this.workerExecutor.setMaxPoolSize(workers);
+        this.workerExecutor.setThreadNamePrefix("Payment-webhook-");
+        this.workerExecutor.initialize();
+        Gauge.builder(BACKLOG_METRIC, backlog, AtomicLong::get).description("Webhooks waiting to be processed").register(meterRegistry);
+        this.failed = Counter.builder(FAILED_METRIC).description("Webhooks that reached max attempts").register(meterRegistry);
+        Gauge.builder(OLDEST_RETRY_AGE_METRIC, oldestRetryAgeMs, AtomicLong::get).description("Age of the oldest webhook waiting for a retry")
+                .baseUnit("milliseconds").register(meterRegistry);
+        this.meterRegistry = meterRegistry;
+    }
+
+    /**
+     * Verify the Telr webhook signature and append it to the inbox
+     */
+    public void receiveTelrWebhook(TelrPaymentTransactionIncomingDto transactionIncomingDto) {
+        String eventKey = eventKey(PaymentGateway.TELR,
+                String.join(KEY_SEPARATOR, transactionIncomingDto.getTran_ref(), transactionIncomingDto.getTran_status()));
+        if (webhookDeduplicator.isDuplicate(eventKey)) {
+            return;
+        }
+        try {
+            telrPaymentTransactionService.validateTransactionSignature(transactionIncomingDto);
+        } catch (Exception e) {
+            throw new PaymentTransactionException("Invalid Telr payment webhook", e);
+        }
+        CartIdentifier cartIdentifier = telrPaymentTransactionService.getTelrCartIdentifier(transactionIncomingDto.getTran_cartid());
+        append(PaymentGateway.TELR, eventKey,
+                String.join(KEY_SEPARATOR, cartIdentifier.getReferenceType().getName(), cartIdentifier.getReferenceId()),
+                transactionIncomingDto);
+    }
+
+    /**
+     * Verify the Noon webhook signature and append it to the inbox
+     */
+    public void receiveNoonWebhook(NoonTransactionIncomingDto transactionIncomingDto) {
+        String eventKey = eventKey(PaymentGateway.NOON, StringUtils.isNotEmpty(transactionIncomingDto.getEventId())
+                ? transactionIncomingDto.getEventId()
+                : String.join(KEY_SEPARATOR, transactionIncomingDto.getOrderId(), transactionIncomingDto.getOrderStatus(), transactionIncomingDto.getTimeStamp()));
+        if (webhookDeduplicator.isDuplicate(eventKey)) {
+            return;
+        }
+        try {
+            noonPaymentTransactionService.validateTransactionSignature(transactionIncomingDto);
+        } catch (Exception e) {
+            throw new PaymentTransactionException("Invalid Noon payment webhook", e);
+        }
+        append(PaymentGateway.NOON, eventKey, transactionIncomingDto.getOrderId(), transactionIncomingDto);
+    }
+
+    private void append(PaymentGateway gateway, String eventKey, String orderKey, Object transactionIncomingDto) {
+        WebhookInbox webhookInbox = new WebhookInbox();
+        webhookInbox.setGateway(gateway);
+        webhookInbox.setEventKey(eventKey);
+        webhookInbox.setOrderKey(gateway.name() + KEY_SEPARATOR + orderKey);
+        webhookInbox.setStatus(WebhookInboxStatus.PENDING);
+        webhookInbox.setNextAttemptAt(new Date());
+        try {
+            webhookInbox.setPayload(objectMapper.writeValueAsString(transactionIncomingDto));
+            webhookInboxRepository.saveAndFlush(webhookInbox);
+            webhookDeduplicator.markReceived(eventKey, false);
+        } catch (JsonProcessingException e) {
+            throw new InternalPaymentException("Failed serializing payment webhook " + transactionIncomingDto, e);
+        } catch (DataIntegrityViolationException e) {
+            // Same event key, the gateway redelivered a webhook we already have
+            log.info("Duplicate {} payment webhook ignored, event {}", gateway, eventKey);
+            webhookDeduplicator.markReceived(eventKey, true);
+        }
+    }
+
+    private static String eventKey(PaymentGateway gateway, String gatewayEventKey) {
+        return gateway.name() + KEY_SEPARATOR + gatewayEventKey;
+    }
+
+    /**
+     * Drain the due webhooks, batch after batch until no due webhook is left
+     */
+    @Scheduled(fixedDelayString = "${payment.webhook-inbox.poll-interval-ms:1000}")
+    public void processInbox() {
+        int processed;
+        do {
+            List<WebhookInbox> batch = lockDueBatch();
+            processed = batch.size();
+            CompletableFuture<?>[] futures = batch.stream()
+                    .map(webhookInbox -> CompletableFuture.runAsync(() -> process(webhookInbox), workerExecutor))
+                    .toArray(CompletableFuture[]::new);
+            CompletableFuture.allOf(futures).join();
+        } while (processed == batchSize);
+        backlog.set(webhookInboxRepository.countByStatusIn(EnumSet.of(WebhookInboxStatus.PENDING, WebhookInboxStatus.PROCESSING)));
+        Date oldestPendingRetry = webhookInboxRepository.findOldestPendingRetry();
+        oldestRetryAgeMs.set(oldestPendingRetry != null ? System.currentTimeMillis() - oldestPendingRetry.getTime() : 0);
+    }
+
+    /**
+     * Lock the next due batch and mark it as processing until the visibility timeout,
+     * a batch left by a stopped worker is claimed again after the timeout
+     */
+    private List<WebhookInbox> lockDueBatch() {
+        return transactionTemplate.execute(status -> {
+            Date now = new Date();
+            List<WebhookInbox> batch = webhookInboxRepository.lockDueBatch(now, batchSize);
+            Date visibleAt = new Date(now.getTime() + visibilityTimeoutMs);
+            for (WebhookInbox webhookInbox : batch) {
+                webhookInbox.setStatus(WebhookInboxStatus.PROCESSING);
+                webhookInbox.setNextAttemptAt(visibleAt);
+            }
+            return webhookInboxRepository.saveAll(batch);
+        });
+    }
+
+    private void process(WebhookInbox webhookInbox) {
+        webhookInbox.setAttempts(webhookInbox.getAttempts() + 1);
+        try {
+            switch (webhookInbox.getGateway()) {
+                case TELR -> {
+                    TelrPaymentTransactionIncomingDto transactionIncomingDto =
+                            objectMapper.readValue(webhookInbox.getPayload(), TelrPaymentTransactionIncomingDto.class);
+                    CartIdentifier cartIdentifier = telrPaymentTransactionService.getTelrCartIdentifier(transactionIncomingDto.getTran_cartid());
+                    purchaseOrderLocks.run(cartIdentifier.getReferenceId(), cartIdentifier.getReferenceType().getName(),
+                            () -> optimisticRetry.run(TELR_WEBHOOK_OPERATION, () -> telrPaymentTransactionService.applyPaymentTransaction(transactionIncomingDto)));
+                }
+                case NOON -> {
+                    NoonTransactionIncomingDto transactionIncomingDto =
+                            objectMapper.readValue(webhookInbox.getPayload(), NoonTransactionIncomingDto.class);
+                    PurchaseOrderReference reference = paymentTransactionRepository.findPurchaseOrderReference(transactionIncomingDto.getOrderId());
+                    if (reference == null) {
+                        // Unknown order, fails with not found and is retried
+                        noonPaymentTransactionService.applyPaymentTransaction(transactionIncomingDto);
+                    } else {
+                        purchaseOrderLocks.run(reference.getReferenceId(), reference.getReferenceType(),
+                                () -> optimisticRetry.run(NOON_WEBHOOK_OPERATION, () -> noonPaymentTransactionService.applyPaymentTransaction(transactionIncomingDto)));
+                    }
+                }
+                default -> throw new IllegalArgumentException("Invalid Gateway: " + webhookInbox.getGateway());
+            }
+            webhookInbox.setStatus(WebhookInboxStatus.DONE);
+            webhookInbox.setLastError(null);
+        } catch (Exception e) {
+            onFailure(webhookInbox, e);
+        }
+        webhookInboxRepository.save(webhookInbox);
+    }
+
+    /**
+     * Schedule the retry of a failed webhook, or mark it as failed and report it once the attempts are exhausted
+     */
+    void onFailure(WebhookInbox webhookInbox, Exception e) {
+        String error = StringUtils.abbreviate(String.valueOf(e.getMessage()), MAX_ERROR_LENGTH);
+        webhookInbox.setLastError(error);
+        if (webhookInbox.getAttempts() >= maxAttempts) {
+            webhookInbox.setStatus(WebhookInboxStatus.FAILED);
+            failed.increment();
+            log.error("Payment webhook {} failed after {} attempts", webhookInbox.getEventKey(), webhookInbox.getAttempts(), e);
+            eventPublisher.publishEvent(new SlackErrorMessageDto(String.format(WEBHOOK_PROCESSING_FAILED,
+                    webhookInbox.getGateway(), webhookInbox.getAttempts(), webhookInbox.getEventKey(), error)));
+            return;
+        }
+        long delayMs = retryDelay(webhookInbox.getAttempts(), retryDelayMs, maxRetryDelayMs);
+        log.warn("Payment webhook {} attempt {} failed, retrying in {} ms: {}", webhookInbox.getEventKey(), webhookInbox.getAttempts(), delayMs, error);
+        meterRegistry.counter(RETRIES_METRIC, "gateway", webhookInbox.getGateway().name().toLowerCase()).increment();
+        webhookInbox.setStatus(WebhookInboxStatus.PENDING);
+        webhookInbox.setNextAttemptAt(new Date(System.currentTimeMillis() + delayMs));
+    }
+
+    /**
+     * Exponential backoff from retry-delay-ms capped at max-retry-delay-ms, with jitter in the upper half of the delay
+     * so webhooks that failed together (e.g. database outage) don't all retry at the same time
+     */
+    static long retryDelay(int attempts, long retryDelayMs, long maxRetryDelayMs) {
+        long delayMs = retryDelayMs << Math.min(attempts - 1, 20);
+        delayMs = Math.min(delayMs, maxRetryDelayMs);
+        long half = delayMs / 2;
+        return half + ThreadLocalRandom.current().nextLong(half + 1);
+    }
+
+    @Override
+    public void destroy() {
+        workerExecutor.shutdown();
+    }
+}
@@ -1,6 +1,7 @@
 package com.safa.payment.service.gateway;
 
 import com.safa.payment.common.KafkaEventType;
+import com.safa.payment.common.PaymentGateway;
 import com.safa.payment.common.PaymentTransactionPaymentStatus;
 import com.safa.payment.dto.NotificationTransactionDto;
 import com.safa.payment.dto.common.HostedPaymentOutGoingDto;
@@ -14,10 +15,12 @@ import com.safa.payment.service.PromoService;
 import com.safa.payment.service.PurchaseOrderService;
 import com.safa.payment.service.RestService;
 import com.safa.payment.util.PaymentUtil;
+import com.safa.payment.util.SingleFlight;
 import jakarta.transaction.Transactional;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.context.annotation.Lazy;
 import org.springframework.http.HttpStatus;
@@ -26,8 +29,10 @@ import org.springframework.web.server.ResponseStatusException;
 
 import java.math.BigDecimal;
 import java.util.Date;
-import java.util.List;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This service responsible for creating payment url and handle the communication with payment
@@ -40,6 +45,10 @@ import java.util.concurrent.atomic.AtomicReference;
 @Slf4j
 public abstract class CommonPaymentTransactionService implements IPaymentTransactionService {
 
+    private static final Set<PaymentTransactionPaymentStatus> READY_STATUSES = EnumSet.of(PaymentTransactionPaymentStatus.READY_FOR_PAYMENT);
+    private static final Set<String> PAYABLE_STATUS_CODES = Set.of(PaymentTransactionPaymentStatus.READY_FOR_PAYMENT.getShortCode(),
+            PaymentTransactionPaymentStatus.INITIATED.getShortCode());
+
     private static final String READY_FOR_PAYMENT_DESCRIPTION = "Ready for payment";
     private static final String FULL_DISCOUNT_DESCRIPTION = "Promo code covers the due amount";
     protected final PaymentTransactionRepository paymentTransactionRepository;
@@ -49,6 +58,15 @@ public abstract class CommonPaymentTransactionService implements IPaymentTransac
     protected final ApplicationEventPublisher eventPublisher;
     protected final RestService restService;
     protected final PromoService promoService;
+    protected final HostedPaymentUrlCache hostedPaymentUrlCache;
+    protected final GatewayResilience gatewayResilience;
+    protected final GatewayRoutingService gatewayRoutingService;
+    protected final PaymentTransactionTransitions paymentTransactionTransitions;
+    // Concurrent pay-now hits for the same purchase order share one validation and gateway call
+    private final SingleFlight<Long, String> hostedPaymentUrlRequests = new SingleFlight<>();
+
+    @Value("${payment.prewarm.url-ttl-minutes:25}")
+    private long prewarmedUrlTtlMinutes;
 
     @Autowired
     @Lazy
@@ -58,7 +76,9 @@ public abstract class CommonPaymentTransactionService implements IPaymentTransac
             PaymentUtil paymentUtil,
             PurchaseOrderService purchaseOrderService,
             RestService restService, PromoService promoService,
-            ApplicationEventPublisher eventPublisher) {
+            ApplicationEventPublisher eventPublisher, HostedPaymentUrlCache hostedPaymentUrlCache,
+            GatewayResilience gatewayResilience, GatewayRoutingService gatewayRoutingService,
+            PaymentTransactionTransitions paymentTransactionTransitions) {
         this.paymentTransactionRepository = paymentTransactionRepository;
         this.kafkaProducerService = kafkaProducerService;
         this.paymentUtil = paymentUtil;
@@ -66,6 +86,10 @@ public abstract class CommonPaymentTransactionService implements IPaymentTransac
         this.eventPublisher = eventPublisher;
         this.restService = restService;
         this.promoService = promoService;
+        this.hostedPaymentUrlCache = hostedPaymentUrlCache;
+        this.gatewayResilience = gatewayResilience;
+        this.gatewayRoutingService = gatewayRoutingService;
+        this.paymentTransactionTransitions = paymentTransactionTransitions;
     }
 
 
@@ -97,12 +121,14 @@ public abstract class CommonPaymentTransactionService implements IPaymentTransac
                         PaymentTransactionPaymentStatus.READY_FOR_PAYMENT.getShortCode(),
                         READY_FOR_PAYMENT_DESCRIPTION);
         paymentTransaction.setPurchaseOrder(purchaseOrder);
-        paymentTransaction = this.paymentTransactionRepository.saveAndFlush(paymentTransaction);
+        paymentTransaction = saveLatestPaymentTransaction(paymentTransaction, purchaseOrder);
         if (sendAutoNotification) {
             NotificationTransactionDto notificationTransactionDto = paymentUtil.createNotificationTransactionDto(paymentTransaction);
             eventPublisher.publishEvent(notificationTransactionDto);
         }
         kafkaProducerService.sendPaymentTransactionEvent(paymentTransaction, purchaseOrder, null, KafkaEventType.CREATE);
+        // Handled after commit by HostedPaymentPrewarmer when pre-warming is enabled
+        eventPublisher.publishEvent(new HostedPaymentPrewarmEvent(purchaseOrder.getId(), purchaseOrder.getPaymentGateway()));
     }
 
     /**
@@ -117,38 +143,173 @@ public abstract class CommonPaymentTransactionService implements IPaymentTransac
                         PaymentTransactionPaymentStatus.AUTHORIZED.getShortCode(),
                         FULL_DISCOUNT_DESCRIPTION);
         paymentTransaction.setPurchaseOrder(purchaseOrder);
-        paymentTransaction = this.paymentTransactionRepository.saveAndFlush(paymentTransaction);
+        paymentTransaction = saveLatestPaymentTransaction(paymentTransaction, purchaseOrder);
         kafkaProducerService.sendPaymentTransactionEvent(paymentTransaction, purchaseOrder, promoUsage, KafkaEventType.UPDATE);
     }
 
     public abstract HostedPaymentOutGoingDto getPayNowUrlByReference(String referenceId, String referenceType);
 
     /**
-     * Check if purchase order is already paid and change status for ready for payment
-     */
-    public PaymentTransaction validateOrderTransactionsStatus(List<PaymentTransaction> paymentTransactions, final PurchaseOrder purchaseOrder) {
-        AtomicReference<PaymentTransaction> latestPaymentTransactionRef = new AtomicReference<>();
-        paymentTransactions.forEach(
-                (transaction) -> {
-                    if (PaymentTransactionPaymentStatus.AUTHORIZED.getShortCode().equals(transaction.getTransactionStatus())
-                            || PaymentTransactionPaymentStatus.HOLD_AUTHORIZED
-                            .getShortCode()
-                            .equals(transaction.getTransactionStatus())) {
-                        throw new ResponseStatusException(
-                                HttpStatus.CONFLICT,
-                                "This order was successfully paid before, you cannot pay again for same order");
-                    }
-                    if (PaymentTransactionPaymentStatus.READY_FOR_PAYMENT.getShortCode().equals(transaction.getTransactionStatus())) {
-                        transaction.setTransactionStatus(PaymentTransactionPaymentStatus.INITIATED.getShortCode());
-                        this.paymentTransactionRepository.saveAndFlush(transaction);
-                        kafkaProducerService.sendPaymentTransactionEvent(transaction, purchaseOrder, null, KafkaEventType.CREATE);
-                    }
-                    if (latestPaymentTransactionRef.get() == null || transaction.getUpdatedAt().after(latestPaymentTransactionRef.get().getUpdatedAt())) {
-                        latestPaymentTransactionRef.set(transaction);
-                    }
-                });
-
-        PaymentTransaction latestPaymentTransaction = latestPaymentTransactionRef.get();
+     * Same as getPayNowUrlByReference, but the gateway call (if any) doesn't block the calling thread
+     */
+    @Override
+    public CompletableFuture<HostedPaymentOutGoingDto> getPayNowUrlByReferenceAsync(String referenceId, String referenceType) {
+        log.info(
+                "Hosted payment request, referenceId {}, referenceType {}", referenceId, referenceType);
+
+        PurchaseOrder purchaseOrder = getPurchaseOrder(referenceId, referenceType, true);
+        if (StringUtils.isNotEmpty(purchaseOrder.getUuid())) {
+            return CompletableFuture.completedFuture(new HostedPaymentOutGoingDto(this.paymentUtil.getPayNowUrl(purchaseOrder.getUuid())));
+        }
+        return createHostedPaymentUrlAsync(purchaseOrder).thenApply(HostedPaymentOutGoingDto::new);
+    }
+
+    /**
+     * Validate the order transactions then create the hosted payment url through the payment gateway.
+     * A url already created for the same order attempt is reused without validation or gateway call,
+     * the cache is invalidated on any change that makes it stale.
+     * Concurrent callers for the same order wait for the call in flight and get its url.
+     */
+    @Override
+    public String createHostedPaymentUrl(final PurchaseOrder purchaseOrder) {
+        final int requestNumber = getRequestNumber(purchaseOrder);
+        String cachedUrl = getCachedHostedPaymentUrl(purchaseOrder, requestNumber);
+        if (cachedUrl != null) {
+            return cachedUrl;
+        }
+        return hostedPaymentUrlRequests.executeSync(purchaseOrder.getId(), () -> {
+            PaymentTransaction latestPaymentTransaction = validateOrderTransactionsStatus(purchaseOrder);
+            String prewarmedUrl = getPrewarmedHostedPaymentUrl(latestPaymentTransaction);
+            String url = prewarmedUrl != null ? prewarmedUrl
+                    : gatewayResilience.call(getPaymentGateway(), () -> requestHostedPaymentUrl(purchaseOrder, latestPaymentTransaction, requestNumber));
+            hostedPaymentUrlCache.put(purchaseOrder.getId(), requestNumber, url, expiresAt(latestPaymentTransaction));
+            return url;
+        });
+    }
+
+    /**
+     * Validate the order transactions on the calling thread, then send the gateway request without blocking.
+     * The returned future is completed by the http client once the gateway responds.
+     */
+    @Override
+    public CompletableFuture<String> createHostedPaymentUrlAsync(final PurchaseOrder purchaseOrder) {
+        final int requestNumber = getRequestNumber(purchaseOrder);
+        String cachedUrl = getCachedHostedPaymentUrl(purchaseOrder, requestNumber);
+        if (cachedUrl != null) {
+            return CompletableFuture.completedFuture(cachedUrl);
+        }
+        return hostedPaymentUrlRequests.execute(purchaseOrder.getId(), () -> {
+            PaymentTransaction latestPaymentTransaction = validateOrderTransactionsStatus(purchaseOrder);
+            String prewarmedUrl = getPrewarmedHostedPaymentUrl(latestPaymentTransaction);
+            if (prewarmedUrl != null) {
+                hostedPaymentUrlCache.put(purchaseOrder.getId(), requestNumber, prewarmedUrl, expiresAt(latestPaymentTransaction));
+                return CompletableFuture.completedFuture(prewarmedUrl);
+            }
+            return gatewayResilience.callAsync(getPaymentGateway(), () -> requestHostedPaymentUrlAsync(purchaseOrder, latestPaymentTransaction, requestNumber))
+                    .thenApply(url -> {
+                        hostedPaymentUrlCache.put(purchaseOrder.getId(), requestNumber, url, expiresAt(latestPaymentTransaction));
+                        return url;
+                    });
+        });
+    }
+
+    /**
+     * The cached url of the order attempt, null if none or the order can't be paid anymore.
+     * The cache is local to the instance, the order may have been paid or cancelled through another instance:
+     * a hit is only used while the latest transaction (pointer columns loaded with the order) still waits for payment,
+     * otherwise the order goes through the full validation which rejects it
+     */
+    private String getCachedHostedPaymentUrl(PurchaseOrder purchaseOrder, int requestNumber) {
+        String cachedUrl = hostedPaymentUrlCache.get(purchaseOrder.getId(), requestNumber);
+        if (cachedUrl == null) {
+            return null;
+        }
+        if (Boolean.TRUE.equals(purchaseOrder.getPaid()) || !PAYABLE_STATUS_CODES.contains(purchaseOrder.getLatestStatus())) {
+            hostedPaymentUrlCache.invalidate(purchaseOrder.getId());
+            return null;
+        }
+        return cachedUrl;
+    }
+
+    private static Date expiresAt(PaymentTransaction paymentTransaction) {
+        return paymentTransaction != null ? paymentTransaction.getExpiresAt() : null;
+    }
+
+    /**
+     * Create the gateway order before the user clicks pay-now and store its url on the ready for payment transaction.
+     * The transaction status is not changed, the click still validates the order and sends the INITIATED event,
+     * only the gateway call is skipped. The gateway reference and the url are stored with explicit updates,
+     * the loaded transaction isn't modified so no stale version is written back.
+     */
+    @Override
+    public void prewarmHostedPaymentUrl(Long purchaseOrderId) {
+        PurchaseOrder purchaseOrder = purchaseOrderService.findPurchaseOrderById(purchaseOrderId, true);
+        PaymentTransaction latestPaymentTransaction = getLatestPaymentTransaction(purchaseOrder);
+        // Only orders waiting for the first click, a clicked or paid order already has its gateway order
+        if (latestPaymentTransaction == null
+                || !PaymentTransactionPaymentStatus.READY_FOR_PAYMENT.getShortCode().equals(latestPaymentTransaction.getTransactionStatus())
+                || getPrewarmedHostedPaymentUrl(latestPaymentTransaction) != null) {
+            return;
+        }
+        // Don't pile up on a failing gateway, the circuit breaker rejects right away while open
+        final PaymentTransaction readyPaymentTransaction = latestPaymentTransaction;
+        String url = gatewayResilience.call(getPaymentGateway(),
+                () -> requestHostedPaymentUrl(purchaseOrder, readyPaymentTransaction, getRequestNumber(purchaseOrder)));
+        this.paymentTransactionRepository.updateHostedPaymentUrl(latestPaymentTransaction.getId(), url,
+                new Date(System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(prewarmedUrlTtlMinutes)));
+        log.info("Hosted payment url pre-warmed for purchase order {}", purchaseOrderId);
+    }
+
+    /**
+     * The url created by the pre-warm stage for this transaction, null if none or expired
+     */
+    protected String getPrewarmedHostedPaymentUrl(PaymentTransaction paymentTransaction) {
+        if (paymentTransaction == null || paymentTransaction.getHostedPaymentUrl() == null
+                || paymentTransaction.getHostedPaymentUrlExpiresAt() == null
+                || !paymentTransaction.getHostedPaymentUrlExpiresAt().after(new Date())) {
+            return null;
+        }
+        return paymentTransaction.getHostedPaymentUrl();
+    }
+
+    /**
+     * The payment gateway this service creates orders with
+     */
+    public abstract PaymentGateway getPaymentGateway();
+
+    /**
+     * Send the create order request to the payment gateway and return the hosted payment page url
+     */
+    protected abstract String requestHostedPaymentUrl(PurchaseOrder purchaseOrder, PaymentTransaction latestPaymentTransaction, int requestNumber);
+
+    protected abstract CompletableFuture<String> requestHostedPaymentUrlAsync(PurchaseOrder purchaseOrder, PaymentTransaction latestPaymentTransaction, int requestNumber);
+
+    /**
+     * To support multiple request in case if the first payment failed.
+     */
+    protected int getRequestNumber(PurchaseOrder purchaseOrder) {
+        long transactionsCount = paymentTransactionRepository.countByPurchaseOrderId(purchaseOrder.getId());
+        return transactionsCount == 0 ? 1 : (int) transactionsCount;
+    }
+
+    /**
+     * Check if purchase order is already paid and change status for ready for payment.
+     * Reads the paid flag from the purchase order and the latest transaction by its primary key, not the history
+     */
+    public PaymentTransaction validateOrderTransactionsStatus(final PurchaseOrder purchaseOrder) {
+        if (purchaseOrderService.isPaid(purchaseOrder)) {
+            throw new ResponseStatusException(
+                    HttpStatus.CONFLICT,
+                    "This order was successfully paid before, you cannot pay again for same order");
+        }
+        PaymentTransaction latestPaymentTransaction = getLatestPaymentTransaction(purchaseOrder);
+        // Only the request winning the READY -> INITIATED transition sends the CREATE event
+        if (latestPaymentTransaction != null
+                && PaymentTransactionPaymentStatus.READY_FOR_PAYMENT.getShortCode().equals(latestPaymentTransaction.getTransactionStatus())
+                && paymentTransactionTransitions.transition(latestPaymentTransaction, PaymentTransactionPaymentStatus.INITIATED, READY_STATUSES)) {
+            kafkaProducerService.sendPaymentTransactionEvent(latestPaymentTransaction, purchaseOrder, null, KafkaEventType.CREATE);
+        }
+
         if (latestPaymentTransaction != null && PaymentTransactionPaymentStatus.CANCELLED.getShortCode().equals(latestPaymentTransaction.getTransactionStatus())) {
             throw new ResponseStatusException(
                     HttpStatus.GONE,
@@ -161,17 +322,61 @@ public abstract class CommonPaymentTransactionService implements IPaymentTransac
         return latestPaymentTransaction;
     }
 
-    public abstract String createHostedPaymentUrl(PurchaseOrder order);
-
     public abstract void cancelPaymentTransaction(PaymentTransaction paymentTransaction);
 
+    /**
+     * Cancel the transaction unless it was paid (or refunded/reversed) in the meantime, cancelling twice is a no-op
+     */
+    protected void cancelTransactionStatus(PaymentTransaction paymentTransaction) {
+        if (PaymentTransactionPaymentStatus.CANCELLED.getShortCode().equals(paymentTransaction.getTransactionStatus())) {
+            return;
+        }
+        if (!paymentTransactionTransitions.transition(paymentTransaction, PaymentTransactionPaymentStatus.CANCELLED,
+                PaymentTransactionTransitions.CANCELLABLE_STATUSES)) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT,
+                    String.format("Payment transaction %d can't be cancelled, its status was changed", paymentTransaction.getId()));
+        }
+        hostedPaymentUrlCache.invalidate(paymentTransaction.getPurchaseOrder().getId());
+    }
+
+    /**
+     * Latest payment transaction of the purchase order, the current payment attempt
+     */
+    protected PaymentTransaction getLatestPaymentTransaction(PurchaseOrder purchaseOrder) {
+        return purchaseOrderService.findLatestPaymentTransaction(purchaseOrder);
+    }
+
+    /**
+     * Save the transaction and make it the latest transaction of the purchase order, in the same database transaction
+     */
+    protected PaymentTransaction saveLatestPaymentTransaction(PaymentTransaction paymentTransaction, PurchaseOrder purchaseOrder) {
+        // Flushed with the other writes of the transaction, the id is assigned from the pooled sequence on save
+        PaymentTransaction savedPaymentTransaction = this.paymentTransactionRepository.save(paymentTransaction);
+        purchaseOrderService.updateLatestTransaction(purchaseOrder, savedPaymentTransaction);
+        return savedPaymentTransaction;
+    }
+
     public void updateOrSavePaymentTransaction(PaymentTransaction newPaymentTransaction, PaymentTransaction oldPaymentTransaction, PurchaseOrder purchaseOrder) {
+        // Repeated statuses are idempotent, nothing changed since the last update
+        if (paymentTransactionTransitions.isRepeatedUpdate(oldPaymentTransaction, newPaymentTransaction.getTransactionStatus())) {
+            log.info("Ignored repeated {} payment transaction update of purchase order {} in status {}", getPaymentGateway(),
+                    purchaseOrder.getId(), oldPaymentTransaction.getTransactionStatus());
+            return;
+        }
+        // Out of order gateway updates are dropped before any write or event, e.g. initiated received after authorized
+        if (!paymentTransactionTransitions.isAllowedUpdate(getPaymentGateway(), oldPaymentTransaction, newPaymentTransaction.getTransactionStatus())) {
+            log.warn("Ignored {} payment transaction update of purchase order {} from status {} to {}", getPaymentGateway(),
+                    purchaseOrder.getId(), oldPaymentTransaction.getTransactionStatus(), newPaymentTransaction.getTransactionStatus());
+            return;
+        }
         // First latest transaction, save to current initiated transaction, for other transaction Create new record
-        if (purchaseOrder.getPaymentTransactions().size() == 1
+        if (paymentTransactionRepository.countByPurchaseOrderId(purchaseOrder.getId()) == 1
                 && StringUtils.isNotEmpty(newPaymentTransaction.getCardLast4())) {
             // Override/update the initiated payment transaction with payment transaction details from gateway incoming dto
             if (oldPaymentTransaction.getTransactionStatus().equals(PaymentTransactionPaymentStatus.READY_FOR_PAYMENT.getShortCode())) {
                 newPaymentTransaction.setId(oldPaymentTransaction.getId());
+                // Fails if the initiated transaction was changed since it was read
+                newPaymentTransaction.setVersion(oldPaymentTransaction.getVersion());
             }
         }
         String status = newPaymentTransaction.getTransactionStatus();
@@ -182,7 +387,9 @@ public abstract class CommonPaymentTransactionService implements IPaymentTransac
             promoUsage = this.promoService.setPromoCodeSuccessfullyUsed(purchaseOrder.getId(), promoCode);
         }
         newPaymentTransaction.setPurchaseOrder(purchaseOrder);
-        newPaymentTransaction = this.paymentTransactionRepository.saveAndFlush(newPaymentTransaction);
+        newPaymentTransaction = saveLatestPaymentTransaction(newPaymentTransaction, purchaseOrder);
+        hostedPaymentUrlCache.invalidate(purchaseOrder.getId());
+        gatewayRoutingService.recordPaymentOutcome(getPaymentGateway(), status);
         kafkaProducerService.sendPaymentTransactionEvent(newPaymentTransaction, purchaseOrder, promoUsage, KafkaEventType.UPDATE);
     }
 
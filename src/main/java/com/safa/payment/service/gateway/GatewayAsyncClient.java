@@ -0,0 +1,93 @@
+package com.safa.payment.service.gateway;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.hc.client5.http.async.methods.SimpleHttpRequest;
+import org.apache.hc.client5.http.async.methods.SimpleHttpResponse;
+import org.apache.hc.client5.http.async.methods.SimpleRequestBuilder;
+import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
+import org.apache.hc.core5.concurrent.FutureCallback;
+import org.apache.hc.core5.http.ContentType;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Non-blocking json client for payment gateway calls, requests are multiplexed on the http client io reactor
+ * so no thread is held while waiting for the gateway response.
+ *
+ * @author Qusai Safa
+ */
+public class GatewayAsyncClient {
+
+    private final String name;
+    private final CloseableHttpAsyncClient httpAsyncClient;
+    private final ObjectMapper objectMapper;
+
+    public GatewayAsyncClient(String name, CloseableHttpAsyncClient httpAsyncClient, ObjectMapper objectMapper) {
+        this.name = name;
+        this.httpAsyncClient = httpAsyncClient;
+        this.objectMapper = objectMapper;
+    }
+
+    /**
+     * Post the body as json and complete with the raw response body
+     */
+    public CompletableFuture<byte[]> post(String url, Object body, HttpHeaders headers) {
+        final byte[] requestBody;
+        try {
+            requestBody = objectMapper.writeValueAsBytes(body);
+        } catch (JsonProcessingException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        SimpleRequestBuilder requestBuilder = SimpleRequestBuilder.post(url)
+                .setBody(requestBody, ContentType.APPLICATION_JSON);
+        if (headers != null) {
+            headers.forEach((header, values) -> values.forEach(value -> requestBuilder.addHeader(header, value)));
+        }
+        return execute(requestBuilder.build());
+    }
+
+    /**
+     * Post the body as json and map the json response to the response type
+     */
+    public <T> CompletableFuture<T> postForObject(String url, Object body, HttpHeaders headers, Class<T> responseType) {
+        return post(url, body, headers).thenApply(responseBody -> {
+            try {
+                return objectMapper.readValue(responseBody, responseType);
+            } catch (Exception e) {
+                throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, String.format("Invalid response from %s %s", name, e.getMessage()));
+            }
+        });
+    }
+
+    private CompletableFuture<byte[]> execute(SimpleHttpRequest request) {
+        CompletableFuture<byte[]> future = new CompletableFuture<>();
+        httpAsyncClient.execute(request, new FutureCallback<>() {
+            @Override
+            public void completed(SimpleHttpResponse response) {
+                if (response.getCode() >= 300) {
+                    future.completeExceptionally(new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR,
+                            String.format("Error response from %s, status %d, body %s", name, response.getCode(), response.getBodyText())));
+                    return;
+                }
+                future.complete(response.getBodyBytes() != null ? response.getBodyBytes() : new byte[0]);
+            }
+
+            @Override
+            public void failed(Exception ex) {
+                future.completeExceptionally(new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR,
+                        String.format("Request to %s failed, %s", name, ex.getMessage()), ex));
+            }
+
+            @Override
+            public void cancelled() {
+                future.completeExceptionally(new CancellationException(String.format("Request to %s cancelled", name)));
+            }
+        });
+        return future;
+    }
+}
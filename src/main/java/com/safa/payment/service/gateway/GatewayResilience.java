@@ -0,0 +1,139 @@
+package com.safa.payment.service.gateway;
+
+import com.safa.payment.common.PaymentGateway;
+import io.github.resilience4j.bulkhead.Bulkhead;
+import io.github.resilience4j.bulkhead.BulkheadConfig;
+import io.github.resilience4j.bulkhead.BulkheadFullException;
+import io.github.resilience4j.bulkhead.BulkheadRegistry;
+import io.github.resilience4j.circuitbreaker.CallNotPermittedException;
+import io.github.resilience4j.circuitbreaker.CircuitBreaker;
+import io.github.resilience4j.circuitbreaker.CircuitBreakerConfig;
+import io.github.resilience4j.circuitbreaker.CircuitBreakerRegistry;
+import io.github.resilience4j.micrometer.tagged.TaggedBulkheadMetrics;
+import io.github.resilience4j.micrometer.tagged.TaggedCircuitBreakerMetrics;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Supplier;
+
+/**
+ * Bulkhead and circuit breaker per payment gateway around the create order calls.
+ * The bulkhead caps the concurrent calls to a gateway, the circuit breaker opens on a high error or slow call rate,
+ * in both cases the call is rejected right away with 503 instead of waiting for the gateway timeout.
+ * Client errors (4xx) are not counted as gateway failures.
+ * Settings are read from payment.resilience.*, state and calls are exposed as resilience4j.* metrics tagged by gateway
+ *
+ * @author Qusai Safa
+ */
+@Component
+@Slf4j
+public class GatewayResilience {
+
+    private static final String PROPERTY_PREFIX = "payment.resilience.";
+    private static final String TRANSITION_METRIC = "payment.gateway.circuit.transitions";
+
+    private final Map<PaymentGateway, CircuitBreaker> circuitBreakers = new EnumMap<>(PaymentGateway.class);
+    private final Map<PaymentGateway, Bulkhead> bulkheads = new EnumMap<>(PaymentGateway.class);
+
+    @Autowired
+    public GatewayResilience(Environment environment, MeterRegistry meterRegistry) {
+        CircuitBreakerConfig circuitBreakerConfig = CircuitBreakerConfig.custom()
+                .slidingWindowType(CircuitBreakerConfig.SlidingWindowType.COUNT_BASED)
+                .slidingWindowSize(getProperty(environment, "sliding-window-size", Integer.class, 50))
+                .minimumNumberOfCalls(getProperty(environment, "minimum-calls", Integer.class, 20))
+                .failureRateThreshold(getProperty(environment, "failure-rate-threshold", Float.class, 50f))
+                .slowCallRateThreshold(getProperty(environment, "slow-call-rate-threshold", Float.class, 50f))
+                .slowCallDurationThreshold(Duration.ofMillis(getProperty(environment, "slow-call-duration-ms", Long.class, 5000L)))
+                .waitDurationInOpenState(Duration.ofMillis(getProperty(environment, "open-state-duration-ms", Long.class, 30000L)))
+                .permittedNumberOfCallsInHalfOpenState(getProperty(environment, "half-open-calls", Integer.class, 5))
+                .automaticTransitionFromOpenToHalfOpenEnabled(true)
+                .ignoreExceptions(BulkheadFullException.class)
+                .recordException(e -> !(e instanceof ResponseStatusException responseStatusException
+                        && responseStatusException.getStatusCode().is4xxClientError()))
+                .build();
+        BulkheadConfig bulkheadConfig = BulkheadConfig.custom()
+                .maxConcurrentCalls(getProperty(environment, "max-concurrent-calls", Integer.class, 25))
+                .maxWaitDuration(Duration.ofMillis(getProperty(environment, "max-wait-ms", Long.class, 0L)))
+                .build();
+        CircuitBreakerRegistry circuitBreakerRegistry = CircuitBreakerRegistry.of(circuitBreakerConfig);
+        BulkheadRegistry bulkheadRegistry = BulkheadRegistry.of(bulkheadConfig);
+
+        for (PaymentGateway gateway : PaymentGateway.values()) {
+            String name = gateway.name().toLowerCase();
+            CircuitBreaker circuitBreaker = circuitBreakerRegistry.circuitBreaker(name);
+            circuitBreaker.getEventPublisher().onStateTransition(event -> {
+                log.warn("Payment gateway {} circuit breaker {}", name, event.getStateTransition());
+                meterRegistry.counter(TRANSITION_METRIC, "name", name,
+                        "from", event.getStateTransition().getFromState().name(),
+                        "to", event.getStateTransition().getToState().name()).increment();
+            });
+            circuitBreakers.put(gateway, circuitBreaker);
+            bulkheads.put(gateway, bulkheadRegistry.bulkhead(name));
+        }
+        TaggedCircuitBreakerMetrics.ofCircuitBreakerRegistry(circuitBreakerRegistry).bindTo(meterRegistry);
+        TaggedBulkheadMetrics.ofBulkheadRegistry(bulkheadRegistry).bindTo(meterRegistry);
+    }
+
+    /**
+     * Run the blocking gateway call through the gateway bulkhead and circuit breaker
+     */
+    public <T> T call(PaymentGateway gateway, Supplier<T> call) {
+        try {
+            return CircuitBreaker.decorateSupplier(circuitBreakers.get(gateway), Bulkhead.decorateSupplier(bulkheads.get(gateway), call)).get();
+        } catch (CallNotPermittedException | BulkheadFullException e) {
+            throw unavailable(gateway, e);
+        }
+    }
+
+    /**
+     * Run the non-blocking gateway call through the gateway bulkhead and circuit breaker,
+     * the bulkhead permit is held until the returned future completes
+     */
+    public <T> CompletableFuture<T> callAsync(PaymentGateway gateway, Supplier<CompletableFuture<T>> call) {
+        return CircuitBreaker.decorateCompletionStage(circuitBreakers.get(gateway), Bulkhead.decorateCompletionStage(bulkheads.get(gateway), call::get))
+                .get()
+                .toCompletableFuture()
+                .exceptionally(error -> {
+                    Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                    if (cause instanceof CallNotPermittedException || cause instanceof BulkheadFullException) {
+                        throw unavailable(gateway, cause);
+                    }
+                    throw error instanceof CompletionException completionException ? completionException : new CompletionException(cause);
+                });
+    }
+
+    /**
+     * False while the gateway circuit is open, calls would be rejected
+     */
+    public boolean isAvailable(PaymentGateway gateway) {
+        CircuitBreaker.State state = circuitBreakers.get(gateway).getState();
+        return state != CircuitBreaker.State.OPEN && state != CircuitBreaker.State.FORCED_OPEN;
+    }
+
+    /**
+     * Events of every call to the gateway (success, error and elapsed time)
+     */
+    public CircuitBreaker.EventPublisher getEventPublisher(PaymentGateway gateway) {
+        return circuitBreakers.get(gateway).getEventPublisher();
+    }
+
+    private ResponseStatusException unavailable(PaymentGateway gateway, Throwable cause) {
+        log.warn("Payment gateway {} call rejected: {}", gateway, cause.getMessage());
+        return new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE,
+                String.format("Payment gateway %s is unavailable, please try again later", gateway), cause);
+    }
+
+    private static <T> T getProperty(Environment environment, String key, Class<T> type, T defaultValue) {
+        return environment.getProperty(PROPERTY_PREFIX + key, type, defaultValue);
+    }
+}
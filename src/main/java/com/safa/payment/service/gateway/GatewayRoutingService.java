@@ -0,0 +1,217 @@
+package com.safa.payment.service.gateway;
+
+import com.safa.payment.common.PaymentGateway;
+import com.safa.payment.common.PaymentTransactionPaymentStatus;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Choose the payment gateway of new purchase orders.
+ * Every gateway has a sliding window model of its create order calls (latency and errors) and of its payment
+ * outcomes from the webhooks (authorized vs declined/error). New orders are assigned by weighted random selection,
+ * the weight of a gateway is its call success rate * payment success rate / mean latency, bounded by
+ * payment.routing.min-share and payment.routing.max-share so no gateway is starved of traffic (and of fresh samples).
+ * A gateway with an open circuit gets no new orders.
+ * Disabled by default, then every order gets default.payment.gateway
+ *
+ * @author Qusai Safa
+ */
+@Service
+public class GatewayRoutingService {
+
+    private static final String SHARE_METRIC = "payment.routing.share";
+    private static final String LATENCY_METRIC = "payment.routing.latency";
+
+    private final GatewayResilience gatewayResilience;
+    private final PaymentGateway defaultPaymentGateway;
+    private final boolean enabled;
+    private final double minShare;
+    private final double maxShare;
+    private final long expectedLatencyMs;
+    private final Map<PaymentGateway, GatewayStats> gatewayStats = new EnumMap<>(PaymentGateway.class);
+    private final Map<PaymentGateway, Double> lastShares = new ConcurrentHashMap<>();
+
+    @Autowired
+    public GatewayRoutingService(GatewayResilience gatewayResilience, MeterRegistry meterRegistry,
+                                 @Value("${default.payment.gateway:TELR}") String defaultPaymentGateway,
+                                 @Value("${payment.routing.enabled:false}") boolean enabled,
+                                 @Value("${payment.routing.window-size:100}") int windowSize,
+                                 @Value("${payment.routing.min-share:0.1}") double minShare,
+                                 @Value("${payment.routing.max-share:0.9}") double maxShare,
+                                 @Value("${payment.routing.expected-latency-ms:1000}") long expectedLatencyMs) {
+        this.gatewayResilience = gatewayResilience;
+        this.defaultPaymentGateway = PaymentGateway.valueOf(defaultPaymentGateway);
+        this.enabled = enabled;
+        this.minShare = minShare;
+        this.maxShare = maxShare;
+        this.expectedLatencyMs = expectedLatencyMs;
+        for (PaymentGateway gateway : PaymentGateway.values()) {
+            GatewayStats stats = new GatewayStats(windowSize);
+            gatewayStats.put(gateway, stats);
+            lastShares.put(gateway, gateway == this.defaultPaymentGateway ? 1.0 : 0.0);
+            gatewayResilience.getEventPublisher(gateway)
+                    .onSuccess(event -> stats.recordCall(event.getElapsedDuration().toMillis(), true))
+                    .onError(event -> stats.recordCall(event.getElapsedDuration().toMillis(), false));
+            String name = gateway.name().toLowerCase();
+            Gauge.builder(SHARE_METRIC, lastShares, shares -> shares.get(gateway)).tag("name", name).register(meterRegistry);
+            Gauge.builder(LATENCY_METRIC, stats, s -> s.meanLatency(expectedLatencyMs)).tag("name", name).baseUnit("milliseconds").register(meterRegistry);
+        }
+    }
+
+    /**
+     * Gateway for a new purchase order
+     */
+    public PaymentGateway selectGateway() {
+        if (!enabled) {
+            return defaultPaymentGateway;
+        }
+        PaymentGateway[] gateways = PaymentGateway.values();
+        double[] scores = new double[gateways.length];
+        for (int i = 0; i < gateways.length; i++) {
+            scores[i] = gatewayResilience.isAvailable(gateways[i]) ? gatewayStats.get(gateways[i]).score(expectedLatencyMs) : 0;
+        }
+        double[] shares = boundShares(scores, minShare, maxShare);
+        double random = ThreadLocalRandom.current().nextDouble();
+        double cumulative = 0;
+        PaymentGateway selected = null;
+        for (int i = 0; i < gateways.length; i++) {
+            lastShares.put(gateways[i], shares[i]);
+            cumulative += shares[i];
+            if (selected == null && shares[i] > 0 && random < cumulative) {
+                selected = gateways[i];
+            }
+        }
+        return selected != null ? selected : defaultPaymentGateway;
+    }
+
+    /**
+     * Feed the final payment status reported by the gateway webhook
+     */
+    public void recordPaymentOutcome(PaymentGateway gateway, String transactionStatus) {
+        if (PaymentTransactionPaymentStatus.isSuccessStatus(transactionStatus)) {
+            gatewayStats.get(gateway).recordPayment(true);
+        } else if (PaymentTransactionPaymentStatus.DECLINED.getShortCode().equals(transactionStatus)
+                || PaymentTransactionPaymentStatus.ERROR.getShortCode().equals(transactionStatus)) {
+            gatewayStats.get(gateway).recordPayment(false);
+        }
+    }
+
+    /**
+     * Normalize the scores to traffic shares, gateways with a positive score get a share within [min, max].
+     * A share clamped to a bound is fixed and the rest is split again between the other gateways
+     */
+    static double[] boundShares(double[] scores, double min, double max) {
+        double[] shares = new double[scores.length];
+        boolean[] fixed = new boolean[scores.length];
+        for (int i = 0; i < scores.length; i++) {
+            fixed[i] = scores[i] <= 0;
+        }
+        double remaining = 1.0;
+        for (int round = 0; round < scores.length; round++) {
+            double freeScore = 0;
+            for (int i = 0; i < scores.length; i++) {
+                if (!fixed[i]) {
+                    freeScore += scores[i];
+                }
+            }
+            if (freeScore <= 0) {
+                break;
+            }
+            for (int i = 0; i < scores.length; i++) {
+                if (!fixed[i]) {
+                    shares[i] = remaining * scores[i] / freeScore;
+                }
+            }
+            boolean clamped = false;
+            for (int i = 0; i < scores.length && !clamped; i++) {
+                if (!fixed[i] && (shares[i] < min || shares[i] > max)) {
+                    shares[i] = shares[i] < min ? min : max;
+                    fixed[i] = true;
+                    remaining -= shares[i];
+                    clamped = true;
+                }
+            }
+            if (!clamped) {
+                break;
+            }
+        }
+        // Bounds can't be met (e.g. only one gateway available), give everything to the available gateways
+        double total = Arrays.stream(shares).sum();
+        if (total > 0 && Math.abs(total - 1.0) > 1e-9) {
+            for (int i = 0; i < shares.length; i++) {
+                shares[i] = shares[i] / total;
+            }
+        }
+        return shares;
+    }
+
+    /**
+     * Ring buffers of the latest calls and payment outcomes of one gateway
+     */
+    static final class GatewayStats {
+
+        private final long[] callLatencies;
+        private final boolean[] callSucceeded;
+        private final boolean[] paymentSucceeded;
+        private int callCount;
+        private int callIndex;
+        private int paymentCount;
+        private int paymentIndex;
+
+        GatewayStats(int windowSize) {
+            this.callLatencies = new long[windowSize];
+            this.callSucceeded = new boolean[windowSize];
+            this.paymentSucceeded = new boolean[windowSize];
+        }
+
+        synchronized void recordCall(long latencyMs, boolean succeeded) {
+            callLatencies[callIndex] = latencyMs;
+            callSucceeded[callIndex] = succeeded;
+            callIndex = (callIndex + 1) % callLatencies.length;
+            callCount = Math.min(callCount + 1, callLatencies.length);
+        }
+
+        synchronized void recordPayment(boolean succeeded) {
+            paymentSucceeded[paymentIndex] = succeeded;
+            paymentIndex = (paymentIndex + 1) % paymentSucceeded.length;
+            paymentCount = Math.min(paymentCount + 1, paymentSucceeded.length);
+        }
+
+        synchronized double meanLatency(long expectedLatencyMs) {
+            if (callCount == 0) {
+                return expectedLatencyMs;
+            }
+            long total = 0;
+            for (int i = 0; i < callCount; i++) {
+                total += callLatencies[i];
+            }
+            return (double) total / callCount;
+        }
+
+        synchronized double score(long expectedLatencyMs) {
+            // Laplace smoothing, an empty or small window doesn't drop the gateway to zero
+            double callSuccessRate = (count(callSucceeded, callCount) + 1.0) / (callCount + 2.0);
+            double paymentSuccessRate = (count(paymentSucceeded, paymentCount) + 1.0) / (paymentCount + 2.0);
+            return callSuccessRate * paymentSuccessRate / Math.max(meanLatency(expectedLatencyMs), 1.0);
+        }
+
+        private static int count(boolean[] outcomes, int size) {
+            int succeeded = 0;
+            for (int i = 0; i < size; i++) {
+                if (outcomes[i]) {
+                    succeeded++;
+                }
+            }
+            return succeeded;
+        }
+    }
+}
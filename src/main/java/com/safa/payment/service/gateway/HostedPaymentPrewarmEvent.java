@@ -0,0 +1,11 @@
+package com.safa.payment.service.gateway;
+
+import com.safa.payment.common.PaymentGateway;
+
+/**
+ * Published when a purchase order gets a new ready for payment transaction
+ *
+ * @author Qusai Safa
+ */
+public record HostedPaymentPrewarmEvent(Long purchaseOrderId, PaymentGateway paymentGateway) {
+}
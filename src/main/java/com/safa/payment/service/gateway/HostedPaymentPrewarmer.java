@@ -0,0 +1,81 @@
+package com.safa.payment.service.gateway;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionPhase;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Pre-warm stage of the pay-now flow, creates the Telr/Noon order in the background once a purchase order
+ * is ready for payment, so the pay-now click is answered from the database without calling the gateway.
+ * Runs after the purchase order transaction commits, on its own bounded pool; pre-warming is best effort,
+ * a skipped or failed pre-warm only means the click creates the gateway order as before.
+ * Enabled with payment.prewarm.enabled=true
+ *
+ * @author Qusai Safa
+ */
+@Component
+@Slf4j
+@ConditionalOnProperty(name = "payment.prewarm.enabled", havingValue = "true")
+public class HostedPaymentPrewarmer implements DisposableBean {
+
+    private static final String METRIC_NAME = "payment.hosted_url.prewarm";
+
+    private final PaymentTransactionServiceFactory paymentTransactionServiceFactory;
+    private final ThreadPoolTaskExecutor prewarmExecutor;
+    private final Counter succeeded;
+    private final Counter failed;
+    private final Counter rejected;
+
+    @Autowired
+    public HostedPaymentPrewarmer(@Lazy PaymentTransactionServiceFactory paymentTransactionServiceFactory,
+                                  @Value("${payment.prewarm.pool-size:4}") int poolSize,
+                                  @Value("${payment.prewarm.queue-capacity:1000}") int queueCapacity,
+                                  MeterRegistry meterRegistry) {
+        this.paymentTransactionServiceFactory = paymentTransactionServiceFactory;
+        this.prewarmExecutor = new ThreadPoolTaskExecutor();
+        this.prewarmExecutor.setCorePoolSize(poolSize);
+        this.prewarmExecutor.setMaxPoolSize(poolSize);
+        this.prewarmExecutor.setQueueCapacity(queueCapacity);
+        this.prewarmExecutor.setThreadNamePrefix("Payment-prewarm-");
+        this.prewarmExecutor.initialize();
+        this.succeeded = meterRegistry.counter(METRIC_NAME, "result", "success");
+        this.failed = meterRegistry.counter(METRIC_NAME, "result", "failure");
+        this.rejected = meterRegistry.counter(METRIC_NAME, "result", "rejected");
+    }
+
+    @TransactionalEventListener(value = HostedPaymentPrewarmEvent.class, phase = TransactionPhase.AFTER_COMMIT, fallbackExecution = true)
+    public void onPurchaseOrderReady(HostedPaymentPrewarmEvent event) {
+        try {
+            prewarmExecutor.execute(() -> prewarm(event));
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            log.warn("Pre-warm queue is full, skipped purchase order {}", event.purchaseOrderId());
+        }
+    }
+
+    private void prewarm(HostedPaymentPrewarmEvent event) {
+        try {
+            paymentTransactionServiceFactory.getInstance(event.paymentGateway()).prewarmHostedPaymentUrl(event.purchaseOrderId());
+            succeeded.increment();
+        } catch (Exception e) {
+            failed.increment();
+            log.warn("Pre-warm failed for purchase order {}, the gateway order will be created on pay-now: {}", event.purchaseOrderId(), e.getMessage());
+        }
+    }
+
+    @Override
+    public void destroy() {
+        prewarmExecutor.shutdown();
+    }
+}
@@ -0,0 +1,67 @@
+package com.safa.payment.service.gateway;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.Date;
+
+/**
+ * Cache of the gateway hosted payment page url for the latest payment attempt of a purchase order.
+ * Reloading the pay-now link (or a notification client prefetching it) reuses the gateway order instead of creating a new one.
+ * Entries live at most the gateway session lifetime and the transaction expiry, and are invalidated when the order
+ * transactions or amount change. The cache is local to the instance, an entry isn't invalidated by a change processed
+ * by another instance (e.g. the payment webhook), so a hit is only used after re-checking the purchase order.
+ *
+ * @author Qusai Safa
+ */
+@Component
+public class HostedPaymentUrlCache {
+
+    private static final String CACHE_NAME = "hosted_payment_url";
+
+    private final Cache<Long, HostedPaymentUrl> cache;
+
+    @Autowired
+    public HostedPaymentUrlCache(@Value("${payment.hosted-url-cache.ttl-minutes:10}") long ttlMinutes,
+                                 @Value("${payment.hosted-url-cache.max-size:10000}") long maxSize,
+                                 MeterRegistry meterRegistry) {
+        this.cache = Caffeine.newBuilder()
+                .expireAfterWrite(Duration.ofMinutes(ttlMinutes))
+                .maximumSize(maxSize)
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, CACHE_NAME);
+    }
+
+    /**
+     * Get the cached url for the purchase order attempt, null if not cached, created for another attempt or expired
+     */
+    public String get(Long purchaseOrderId, int requestNumber) {
+        HostedPaymentUrl hostedPaymentUrl = cache.getIfPresent(purchaseOrderId);
+        if (hostedPaymentUrl == null || hostedPaymentUrl.requestNumber() != requestNumber
+                || (hostedPaymentUrl.expiresAt() != null && !hostedPaymentUrl.expiresAt().after(new Date()))) {
+            return null;
+        }
+        return hostedPaymentUrl.url();
+    }
+
+    /**
+     * Cache the url of the attempt, expiresAt is the expiry of the payment transaction (null if it doesn't expire)
+     */
+    public void put(Long purchaseOrderId, int requestNumber, String url, Date expiresAt) {
+        cache.put(purchaseOrderId, new HostedPaymentUrl(requestNumber, url, expiresAt));
+    }
+
+    public void invalidate(Long purchaseOrderId) {
+        cache.invalidate(purchaseOrderId);
+    }
+
+    private record HostedPaymentUrl(int requestNumber, String url, Date expiresAt) {
+    }
+}
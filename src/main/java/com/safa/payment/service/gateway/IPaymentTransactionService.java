@@ -5,7 +5,7 @@ import com.safa.payment.entity.PaymentTransaction;
 import com.safa.payment.entity.PromoUsage;
 import com.safa.payment.entity.PurchaseOrder;
 
-import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * @author Amoon
@@ -21,9 +21,15 @@ public interface IPaymentTransactionService {
 
     HostedPaymentOutGoingDto getPayNowUrlByReference(String referenceId, String referenceType);
 
-    PaymentTransaction validateOrderTransactionsStatus(List<PaymentTransaction> paymentTransactions, final PurchaseOrder purchaseOrder);
+    CompletableFuture<HostedPaymentOutGoingDto> getPayNowUrlByReferenceAsync(String referenceId, String referenceType);
+
+    PaymentTransaction validateOrderTransactionsStatus(final PurchaseOrder purchaseOrder);
 
     String createHostedPaymentUrl(PurchaseOrder order);
 
+    CompletableFuture<String> createHostedPaymentUrlAsync(PurchaseOrder order);
+
+    void prewarmHostedPaymentUrl(Long purchaseOrderId);
+
     void cancelPaymentTransaction(PaymentTransaction paymentTransaction);
 }
@@ -5,7 +5,7 @@ import com.safa.payment.common.PaymentReferenceType;
 import com.safa.payment.common.PaymentTransactionPaymentStatus;
 import com.safa.payment.common.noon.NoonPaymentActionType;
 import com.safa.payment.common.noon.NoonPaymentStatus;
-import com.safa.payment.dto.SlackErrorMessageDto;
+import com.safa.payment.config.HttpClientConfig;
 import com.safa.payment.dto.common.HostedPaymentOutGoingDto;
 import com.safa.payment.dto.noon.*;
 import com.safa.payment.entity.Money;
@@ -19,6 +19,12 @@ import com.safa.payment.service.PromoService;
 import com.safa.payment.service.PurchaseOrderService;
 import com.safa.payment.service.RestService;
 import com.safa.payment.service.gateway.CommonPaymentTransactionService;
+import com.safa.payment.service.gateway.HostedPaymentUrlCache;
+import com.safa.payment.service.gateway.PaymentTransactionTransitions;
+import com.safa.payment.service.gateway.GatewayAsyncClient;
+import com.safa.payment.service.gateway.GatewayResilience;
+import com.safa.payment.service.gateway.GatewayRoutingService;
+import com.safa.payment.service.gateway.WebhookSignatureVerifier;
 import com.safa.payment.util.PaymentUtil;
 import jakarta.transaction.Transactional;
 import lombok.extern.slf4j.Slf4j;
@@ -26,21 +32,17 @@ import org.apache.commons.lang3.StringUtils;
 import org.springframework.beans.BeanUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.boot.web.client.RestTemplateBuilder;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.context.annotation.Lazy;
 import org.springframework.http.*;
 import org.springframework.stereotype.Service;
-import org.springframework.util.CollectionUtils;
 import org.springframework.web.client.RestTemplate;
 import org.springframework.web.server.ResponseStatusException;
 
-import javax.crypto.Mac;
-import javax.crypto.spec.SecretKeySpec;
-import java.nio.charset.StandardCharsets;
-import java.util.Base64;
-import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 /**
  * This service responsible for creating payment url and handle the communication with payment
@@ -52,24 +54,21 @@ import java.util.List;
 @Service
 @Transactional
 public class NoonPaymentTransactionService extends CommonPaymentTransactionService {
-    public static final String SEPARATOR = ",";
     public static final String API_OPERATION = "INITIATE";
     public static final String WEB = "WEB";
     public static final String EN = "en";
     public static final String ORDER = "order";
-    public static final String RESULT = "result";
-    public static final String POST_URL = "postUrl";
-    public static final String CHECKOUT_DATA = "checkoutData";
     public static final String PAY = "pay";
     public static final String ID = "id";
-    public static final String ERROR_CODE = "errorCode";
+    public static final String VERSION = "version";
     public static final String ALPHABETICAL_REGEX = "[\\d\\W_]";
-    public static final String HMAC_SHA_512 = "HmacSHA512";
     public static final String MERCHANT_REF = "MerchantRef";
-    public static final String PROCESSING_NOON_PAYMENT_WEBHOOK_REQUEST_FAILED = "Processing Noon payment webhook request failed, %s";
 
     private final RestTemplate restTemplate;
-
+    private final GatewayAsyncClient asyncClient;
+    private final Executor taskExecutor;
+    private final NoonResponseDecoder noonResponseDecoder;
+    private final WebhookSignatureVerifier webhookSignatureVerifier;
 
     @Value("${noon.hosted-payment.url:}")
     String hostedPaymentUrl;
@@ -77,8 +76,6 @@ public class NoonPaymentTransactionService extends CommonPaymentTransactionServi
     String authKey;
     @Value("${noon.environment.mode:}")
     String environmentMode;
-    @Value("${noon.secretKey:}")
-    String noonSecretKey;
 
     @Value("${noon.returnUrl:}")
     String returnUrl;
@@ -95,33 +92,65 @@ public class NoonPaymentTransactionService extends CommonPaymentTransactionServi
             PaymentUtil paymentUtil,
             PurchaseOrderService purchaseOrderService,
             RestService restService,
-            ApplicationEventPublisher eventPublisher, PromoService promoService, RestTemplateBuilder restTemplateBuilder) {
-        super(paymentTransactionRepository, kafkaProducerService, paymentUtil, purchaseOrderService, restService, promoService, eventPublisher);
-        this.restTemplate = restTemplateBuilder.build();
+            ApplicationEventPublisher eventPublisher, PromoService promoService, @Qualifier(HttpClientConfig.NOON_REST_TEMPLATE) RestTemplate restTemplate,
+            @Qualifier(HttpClientConfig.NOON_ASYNC_CLIENT) GatewayAsyncClient asyncClient, @Qualifier("taskExecutor") Executor taskExecutor,
+            HostedPaymentUrlCache hostedPaymentUrlCache, GatewayResilience gatewayResilience,
+            GatewayRoutingService gatewayRoutingService, NoonResponseDecoder noonResponseDecoder,
+            WebhookSignatureVerifier webhookSignatureVerifier, PaymentTransactionTransitions paymentTransactionTransitions) {
+        super(paymentTransactionRepository, kafkaProducerService, paymentUtil, purchaseOrderService, restService, promoService, eventPublisher, hostedPaymentUrlCache, gatewayResilience, gatewayRoutingService, paymentTransactionTransitions);
+        this.restTemplate = restTemplate;
+        this.asyncClient = asyncClient;
+        this.taskExecutor = taskExecutor;
+        this.noonResponseDecoder = noonResponseDecoder;
+        this.webhookSignatureVerifier = webhookSignatureVerifier;
+    }
+
+    @Override
+    public PaymentGateway getPaymentGateway() {
+        return PaymentGateway.NOON;
     }
 
     /**
-     * Create hosted payment url from the purchase order reference id and reference type
+     * Create noon order for the purchase order and return the hosted payment page url
      *
      * @see <a *
      * href="https://docs.noonpayments.com/start/introduction/">...</a>
      */
-    public String createHostedPaymentUrl(final PurchaseOrder purchaseOrder) {
-        final List<PaymentTransaction> paymentTransactions = purchaseOrder.getPaymentTransactions();
-        PaymentTransaction latestPaymentTransaction = validateOrderTransactionsStatus(paymentTransactions, purchaseOrder);
-        // To support multiple request in case if the first payment failed.
-        int requestNumber = 1;
-        if (!CollectionUtils.isEmpty(paymentTransactions)) {
-            requestNumber = paymentTransactions.size();
-        }
+    @Override
+    protected String requestHostedPaymentUrl(PurchaseOrder purchaseOrder, PaymentTransaction latestPaymentTransaction, int requestNumber) {
+        HostedPaymentRequestDto paymentRequestDto =
+                buildHostedPaymentThirdPartyRequest(purchaseOrder, latestPaymentTransaction.getId(), requestNumber);
+        NoonPaymentResponseDto responseDto = sendHostedPaymentRequest(paymentRequestDto, String.format("%s%s", hostedPaymentUrl, ORDER), createOrderHeaders(purchaseOrder), PaymentGateway.NOON);
+        // Saved with an explicit update, the transaction may be detached (initiated by the status transition) and
+        // the noon webhooks find the transaction by this reference
+        this.paymentTransactionRepository.updateTransactionReference(latestPaymentTransaction.getId(), String.valueOf(responseDto.getOrderId()));
+        return responseDto.getPostUrl();
+    }
+
+    /**
+     * Non-blocking version of requestHostedPaymentUrl, the request transaction is committed before noon responds,
+     * so the noon order id is saved with a separate update on the task executor (not on the http client io thread)
+     */
+    @Override
+    protected CompletableFuture<String> requestHostedPaymentUrlAsync(PurchaseOrder purchaseOrder, PaymentTransaction latestPaymentTransaction, int requestNumber) {
         HostedPaymentRequestDto paymentRequestDto =
                 buildHostedPaymentThirdPartyRequest(purchaseOrder, latestPaymentTransaction.getId(), requestNumber);
+        log.info(
+                "Sending async request to hosted payment gateway in order to get page URL, request details: {} {}",
+                paymentRequestDto.toString(), PaymentGateway.NOON);
+        return this.asyncClient.post(String.format("%s%s", hostedPaymentUrl, ORDER), paymentRequestDto, createOrderHeaders(purchaseOrder))
+                .thenApply(noonResponseDecoder::decodeOrderResponse)
+                .thenApplyAsync(responseDto -> {
+                    this.paymentTransactionRepository.updateTransactionReference(latestPaymentTransaction.getId(), String.valueOf(responseDto.getOrderId()));
+                    return responseDto.getPostUrl();
+                }, taskExecutor);
+    }
+
+    private HttpHeaders createOrderHeaders(PurchaseOrder purchaseOrder) {
         HttpHeaders headers = new HttpHeaders();
         headers.add(HttpHeaders.AUTHORIZATION, String.format("Key_%s %s", environmentMode, authKey));
         headers.add(MERCHANT_REF, purchaseOrder.getReferenceId());
-        NoonPaymentResponseDto responseDto = sendHostedPaymentRequest(paymentRequestDto, String.format("%s%s", hostedPaymentUrl, ORDER), headers, PaymentGateway.NOON);
-        latestPaymentTransaction.setTransactionReference(String.valueOf(responseDto.getOrderId()));
-        return responseDto.getPostUrl();
+        return headers;
     }
 
     /**
@@ -132,12 +161,12 @@ public class NoonPaymentTransactionService extends CommonPaymentTransactionServi
      */
     public String getPaymentStatusPageUrl(long orderId) {
         // Get Payment details for the order
-        NoonPaymentOrderDetailsResponseDto paymentDetails = sendGetOrderPaymentDetails(orderId);
+        NoonPaymentResponseDto paymentDetails = sendGetOrderPaymentDetails(orderId);
         try {
             // If success payment return success payment html page url
-            if (NoonPaymentStatus.isSuccessStatus(paymentDetails.getResult().getOrder().getStatus())) {
+            if (NoonPaymentStatus.isSuccessStatus(paymentDetails.getOrderStatus())) {
                 return this.paymentUtil.getAuthorizedPageURL();
-            } else if (NoonPaymentStatus.isCancelledStatus(paymentDetails.getResult().getOrder().getStatus())) {
+            } else if (NoonPaymentStatus.isCancelledStatus(paymentDetails.getOrderStatus())) {
                 return this.paymentUtil.getCancelledPageURL();
             }
         } catch (Exception ex) {
@@ -147,15 +176,15 @@ public class NoonPaymentTransactionService extends CommonPaymentTransactionServi
     }
 
     /**
-     * Get payment details(status, user details, card details) using Noon GET ORDER API (order/orderId).
+     * Get the order status using Noon GET ORDER API (order/orderId), the response is decoded from the stream.
      */
-    public NoonPaymentOrderDetailsResponseDto sendGetOrderPaymentDetails(long orderId) {
+    public NoonPaymentResponseDto sendGetOrderPaymentDetails(long orderId) {
         try {
             HttpHeaders headers = new HttpHeaders();
             headers.add(HttpHeaders.AUTHORIZATION, String.format("Key_%s %s", environmentMode, authKey));
-            HttpEntity requestEntity = new HttpEntity(headers);
-            ResponseEntity<NoonPaymentOrderDetailsResponseDto> response = this.restTemplate.exchange(String.format("%s%s/%s", hostedPaymentUrl, ORDER, orderId), HttpMethod.GET, requestEntity, NoonPaymentOrderDetailsResponseDto.class);
-            return response.getBody();
+            HttpEntity<Void> requestEntity = new HttpEntity<>(headers);
+            return this.restTemplate.execute(String.format("%s%s/%s", hostedPaymentUrl, ORDER, orderId), HttpMethod.GET,
+                    this.restTemplate.httpEntityCallback(requestEntity), response -> noonResponseDecoder.decodeOrderDetails(response.getBody()));
         } catch (Exception ex) {
             throw new PaymentTransactionException(String.format("Failed getting noon order payment details for order id %d", orderId), ex);
         }
@@ -167,15 +196,14 @@ public class NoonPaymentTransactionService extends CommonPaymentTransactionServi
         log.info(
                 "Sending request to hosted payment gateway in order to get page URL, request details: {} {}",
                 hostedPaymentRequestDto.toString(), paymentGateway);
-        HttpEntity requestEntity = new HttpEntity(hostedPaymentRequestDto, headers);
-        ResponseEntity responseEntity = this.restTemplate.exchange(hostedPaymentUrl, HttpMethod.POST, requestEntity, Object.class);
-        return handleNoonResponse(responseEntity);
+        HttpEntity<HostedPaymentRequestDto> requestEntity = new HttpEntity<>(hostedPaymentRequestDto, headers);
+        return this.restTemplate.execute(hostedPaymentUrl, HttpMethod.POST,
+                this.restTemplate.httpEntityCallback(requestEntity), response -> noonResponseDecoder.decodeOrderResponse(response.getBody()));
     }
 
     @Override
     public void cancelPaymentTransaction(PaymentTransaction paymentTransaction) {
-        paymentTransaction.setTransactionStatus(PaymentTransactionPaymentStatus.CANCELLED.getShortCode());
-        this.paymentTransactionRepository.saveAndFlush(paymentTransaction);
+        cancelTransactionStatus(paymentTransaction);
     }
 
     /**
@@ -263,107 +291,47 @@ public class NoonPaymentTransactionService extends CommonPaymentTransactionServi
         return requestDto;
     }
 
-    public NoonPaymentResponseDto handleNoonResponse(ResponseEntity responseEntity) {
-        NoonPaymentResponseDto noonPaymentResponseDto;
-        try {
-            if (responseEntity.getBody() == null) {
-                throw new ResponseStatusException(
-                        HttpStatus.INTERNAL_SERVER_ERROR, "Invalid response from Noon {}");
-            }
-            LinkedHashMap results = (LinkedHashMap) ((LinkedHashMap) responseEntity.getBody()).get(RESULT);
-            noonPaymentResponseDto = new NoonPaymentResponseDto();
-            Object errorCode = ((LinkedHashMap) (results.get(ORDER))).get(ERROR_CODE);
-            noonPaymentResponseDto.setErrorCode((Integer) errorCode);
-            noonPaymentResponseDto.setPostUrl((String) ((LinkedHashMap) (results.get(CHECKOUT_DATA))).get(POST_URL));
-            noonPaymentResponseDto.setOrderId((Long) ((LinkedHashMap) (results.get(ORDER))).get(ID));
-        } catch (Exception e) {
-            throw new ResponseStatusException(
-                    HttpStatus.INTERNAL_SERVER_ERROR, "Invalid response from Noon " + e.getMessage());
-        }
-        return noonPaymentResponseDto;
-    }
-
-    public void processPaymentTransaction(NoonTransactionIncomingDto transactionIncomingDto, int maxRetries) {
-        try {
-            validateTransactionSignature(transactionIncomingDto);
-            PaymentTransaction oldPaymentTransaction = this.paymentTransactionRepository.findByTransactionReference(transactionIncomingDto.getOrderId());
+    /**
+     * Apply the payment status of a Noon webhook, called by the webhook inbox worker once the signature is verified.
+     * Failures are thrown, the inbox retries the webhook
+     */
+    public void applyPaymentTransaction(NoonTransactionIncomingDto transactionIncomingDto) {
+        PaymentTransaction oldPaymentTransaction = this.paymentTransactionRepository.findByTransactionReference(transactionIncomingDto.getOrderId());
 
-            if (oldPaymentTransaction == null) {
-                throw new ResponseStatusException(HttpStatus.NOT_FOUND, String.format("No payment transaction found with reference payment order id (%s). Noon payment incoming webhook request (%s)", transactionIncomingDto.getOrderId(), transactionIncomingDto));
-            }
-            // For noon payment, we receive cancel status when the user click on cancel button in noon payment screen
-            // And this will cancel the payment link, so we ignore this status to avoid canceling the payment link.
-            if (NoonPaymentStatus.isCancelledStatus(transactionIncomingDto.getOrderStatus())) {
-                return;
-            }
+        if (oldPaymentTransaction == null) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, String.format("No payment transaction found with reference payment order id (%s). Noon payment incoming webhook request (%s)", transactionIncomingDto.getOrderId(), transactionIncomingDto));
+        }
+        // For noon payment, we receive cancel status when the user click on cancel button in noon payment screen
+        // And this will cancel the payment link, so we ignore this status to avoid canceling the payment link.
+        if (NoonPaymentStatus.isCancelledStatus(transactionIncomingDto.getOrderStatus())) {
+            return;
+        }
 
-            PaymentTransaction newPaymentTransaction = new PaymentTransaction();
-            // Copy old PaymentTransaction into a new PaymentTransaction
-            BeanUtils.copyProperties(oldPaymentTransaction, newPaymentTransaction, ID);
-            // Match Noon's status to PaymentTransactionPaymentStatus
-            String paymentStatus = NoonPaymentStatus.getPaymentTransactionPaymentStatus(transactionIncomingDto.getOrderStatus()).getShortCode();
-            newPaymentTransaction.setTransactionStatus(paymentStatus);
-            PurchaseOrder purchaseOrder =
-                    purchaseOrderService.findPurchaseOrderById(newPaymentTransaction.getPurchaseOrder().getId(), true);
-
-            if (PaymentTransactionPaymentStatus.isSuccessStatus(paymentStatus)) {
-                if (purchaseOrder.getAmountAfterDiscount() != null) {
-                    newPaymentTransaction.setTransactionAmount(purchaseOrder.getAmountAfterDiscount().getValue());
-                    newPaymentTransaction.setTransactionCurrency(purchaseOrder.getAmountAfterDiscount().getCurrency());
-                } else {
-                    newPaymentTransaction.setTransactionAmount(purchaseOrder.getAmount().getValue());
-                    newPaymentTransaction.setTransactionCurrency(purchaseOrder.getAmount().getCurrency());
-                }
-            }
-            // Update payment transaction and send kafka event
-            updateOrSavePaymentTransaction(newPaymentTransaction, oldPaymentTransaction, purchaseOrder);
-        } catch (Exception e) {
-            if (maxRetries > 0) {
-                processPaymentTransaction(transactionIncomingDto, maxRetries - 1);
+        PaymentTransaction newPaymentTransaction = new PaymentTransaction();
+        // Copy old PaymentTransaction into a new PaymentTransaction
+        BeanUtils.copyProperties(oldPaymentTransaction, newPaymentTransaction, ID, VERSION);
+        // Match Noon's status to PaymentTransactionPaymentStatus
+        String paymentStatus = NoonPaymentStatus.getPaymentTransactionPaymentStatus(transactionIncomingDto.getOrderStatus()).getShortCode();
+        newPaymentTransaction.setTransactionStatus(paymentStatus);
+        PurchaseOrder purchaseOrder =
+                purchaseOrderService.findPurchaseOrderById(newPaymentTransaction.getPurchaseOrder().getId(), true);
+
+        if (PaymentTransactionPaymentStatus.isSuccessStatus(paymentStatus)) {
+            if (purchaseOrder.getAmountAfterDiscount() != null) {
+                newPaymentTransaction.setTransactionAmount(purchaseOrder.getAmountAfterDiscount().getValue());
+                newPaymentTransaction.setTransactionCurrency(purchaseOrder.getAmountAfterDiscount().getCurrency());
             } else {
-                log.error(e.getLocalizedMessage());
-                eventPublisher.publishEvent(new SlackErrorMessageDto(String.format(PROCESSING_NOON_PAYMENT_WEBHOOK_REQUEST_FAILED, e.getLocalizedMessage())));
+                newPaymentTransaction.setTransactionAmount(purchaseOrder.getAmount().getValue());
+                newPaymentTransaction.setTransactionCurrency(purchaseOrder.getAmount().getCurrency());
             }
         }
+        // Update payment transaction and send kafka event
+        updateOrSavePaymentTransaction(newPaymentTransaction, oldPaymentTransaction, purchaseOrder);
     }
 
 
-    public void validateTransactionSignature(NoonTransactionIncomingDto transactionIncomingDto) throws Exception {
-        // #1 Create signature message from incoming response
-        String signature = transactionIncomingDto.getOrderId()
-                + SEPARATOR
-                + transactionIncomingDto.getOrderStatus()
-                + SEPARATOR
-                + transactionIncomingDto.getEventId()
-                + SEPARATOR
-                + transactionIncomingDto.getEventType()
-                + SEPARATOR
-                + transactionIncomingDto.getTimeStamp();
-        if (transactionIncomingDto.getAttemptNumber() != null) {
-            // provided only for orders initiated with the allowedRetry field, after the 1st failed attempt.
-            signature = signature
-                    + SEPARATOR
-                    + transactionIncomingDto.getOriginalOrderId()
-                    + SEPARATOR
-                    + transactionIncomingDto.getMerchantOrderReference()
-                    + SEPARATOR
-                    + transactionIncomingDto.getAttemptNumber();
-        }
-        // #2 Generate signature using secret
-        // Convert the secret to bytes
-        byte[] secretBytes = this.noonSecretKey.getBytes(StandardCharsets.UTF_8);
-        // #3 Create an HMAC-SHA512 key
-        SecretKeySpec secretKey = new SecretKeySpec(secretBytes, HMAC_SHA_512);
-        // #4  Initialize the HMAC-SHA512 algorithm
-        Mac mac = Mac.getInstance(HMAC_SHA_512);
-        mac.init(secretKey);
-        // #5 Calculate the HMAC
-        byte[] hmacBytes = mac.doFinal(signature.getBytes());
-        // #6 Encode the HMAC in Base64
-        String hashInBase64 = Base64.getEncoder().encodeToString(hmacBytes);
-
-        // #7 Compare incoming signature with generated one
-        if (!StringUtils.equals(transactionIncomingDto.getSignature(), hashInBase64)) {
+    public void validateTransactionSignature(NoonTransactionIncomingDto transactionIncomingDto) {
+        if (!webhookSignatureVerifier.verifyNoon(transactionIncomingDto)) {
             throw new InternalPaymentException("Invalid payment transaction signature:" + transactionIncomingDto);
         }
     }
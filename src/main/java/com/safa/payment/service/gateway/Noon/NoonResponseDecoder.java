@@ -0,0 +1,202 @@
+package com.safa.payment.service.gateway.Noon;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.safa.payment.dto.noon.NoonPaymentResponseDto;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Streaming decoder of Noon order responses (create order and get order).
+ * Reads only the fields we use (result.order.id, result.order.status, result.order.errorCode and
+ * result.checkoutData.postUrl) straight from the response stream and skips the rest,
+ * instead of binding the whole response to nested maps.
+ * A missing required field, or a field with an unexpected type, fails with a message naming the field.
+ *
+ * @author Qusai Safa
+ */
+@Component
+public class NoonResponseDecoder {
+
+    private static final String RESULT_CODE = "resultCode";
+    private static final String MESSAGE = "message";
+    private static final String RESULT = "result";
+    private static final String ORDER = "order";
+    private static final String CHECKOUT_DATA = "checkoutData";
+    private static final String ID = "id";
+    private static final String STATUS = "status";
+    private static final String ERROR_CODE = "errorCode";
+    private static final String POST_URL = "postUrl";
+
+    private final JsonFactory jsonFactory;
+
+    @Autowired
+    public NoonResponseDecoder(ObjectMapper objectMapper) {
+        this.jsonFactory = objectMapper.getFactory();
+    }
+
+    /**
+     * Decode the create order (INITIATE) response, order id and checkout post url are required
+     */
+    public NoonPaymentResponseDto decodeOrderResponse(InputStream body) {
+        NoonPaymentResponseDto responseDto = decode(body);
+        requireField(responseDto.getOrderId(), "result.order.id");
+        requireField(responseDto.getPostUrl(), "result.checkoutData.postUrl");
+        return responseDto;
+    }
+
+    public NoonPaymentResponseDto decodeOrderResponse(byte[] body) {
+        NoonPaymentResponseDto responseDto = decode(body);
+        requireField(responseDto.getOrderId(), "result.order.id");
+        requireField(responseDto.getPostUrl(), "result.checkoutData.postUrl");
+        return responseDto;
+    }
+
+    /**
+     * Decode the get order response, order id and status are required
+     */
+    public NoonPaymentResponseDto decodeOrderDetails(InputStream body) {
+        NoonPaymentResponseDto responseDto = decode(body);
+        requireField(responseDto.getOrderId(), "result.order.id");
+        requireField(responseDto.getOrderStatus(), "result.order.status");
+        return responseDto;
+    }
+
+    private NoonPaymentResponseDto decode(InputStream body) {
+        if (body == null) {
+            throw invalidResponse("empty body");
+        }
+        try (JsonParser parser = jsonFactory.createParser(body)) {
+            return readResponse(parser);
+        } catch (IOException e) {
+            throw invalidResponse(e.getMessage());
+        }
+    }
+
+    private NoonPaymentResponseDto decode(byte[] body) {
+        if (body == null || body.length == 0) {
+            throw invalidResponse("empty body");
+        }
+        try (JsonParser parser = jsonFactory.createParser(body)) {
+            return readResponse(parser);
+        } catch (IOException e) {
+            throw invalidResponse(e.getMessage());
+        }
+    }
+
+    private NoonPaymentResponseDto readResponse(JsonParser parser) throws IOException {
+        expect(parser.nextToken(), JsonToken.START_OBJECT, "response");
+        NoonPaymentResponseDto responseDto = new NoonPaymentResponseDto();
+        Integer resultCode = null;
+        String message = null;
+        boolean hasResult = false;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken token = parser.nextToken();
+            if (RESULT_CODE.equals(field) && token.isNumeric()) {
+                resultCode = parser.getIntValue();
+            } else if (MESSAGE.equals(field) && token == JsonToken.VALUE_STRING) {
+                message = parser.getText();
+            } else if (RESULT.equals(field) && token == JsonToken.START_OBJECT) {
+                hasResult = true;
+                readResult(parser, responseDto);
+            } else {
+                parser.skipChildren();
+            }
+        }
+        if (!hasResult) {
+            throw invalidResponse(resultCode != null
+                    ? String.format("no result, resultCode %d, message %s", resultCode, message)
+                    : "missing field result");
+        }
+        return responseDto;
+    }
+
+    private void readResult(JsonParser parser, NoonPaymentResponseDto responseDto) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken token = parser.nextToken();
+            if (ORDER.equals(field) && token == JsonToken.START_OBJECT) {
+                readOrder(parser, responseDto);
+            } else if (CHECKOUT_DATA.equals(field) && token == JsonToken.START_OBJECT) {
+                readCheckoutData(parser, responseDto);
+            } else {
+                parser.skipChildren();
+            }
+        }
+    }
+
+    private void readOrder(JsonParser parser, NoonPaymentResponseDto responseDto) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken token = parser.nextToken();
+            if (ID.equals(field)) {
+                // Noon sends the order id as a json number, small ids fit an int, read it as long regardless
+                if (token == JsonToken.VALUE_NUMBER_INT) {
+                    responseDto.setOrderId(parser.getLongValue());
+                } else if (token == JsonToken.VALUE_STRING) {
+                    responseDto.setOrderId(parseLong(parser.getText(), "result.order.id"));
+                } else if (token != JsonToken.VALUE_NULL) {
+                    throw unexpectedType("result.order.id", token);
+                }
+            } else if (STATUS.equals(field) && token == JsonToken.VALUE_STRING) {
+                responseDto.setOrderStatus(parser.getText());
+            } else if (ERROR_CODE.equals(field) && token.isNumeric()) {
+                responseDto.setErrorCode(parser.getIntValue());
+            } else {
+                parser.skipChildren();
+            }
+        }
+    }
+
+    private void readCheckoutData(JsonParser parser, NoonPaymentResponseDto responseDto) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken token = parser.nextToken();
+            if (POST_URL.equals(field)) {
+                if (token == JsonToken.VALUE_STRING) {
+                    responseDto.setPostUrl(parser.getText());
+                } else if (token != JsonToken.VALUE_NULL) {
+                    throw unexpectedType("result.checkoutData.postUrl", token);
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+    }
+
+    private static long parseLong(String value, String field) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw invalidResponse(String.format("field %s is not a number: %s", field, value));
+        }
+    }
+
+    private static void expect(JsonToken actual, JsonToken expected, String field) {
+        if (actual != expected) {
+            throw unexpectedType(field, actual);
+        }
+    }
+
+    private static void requireField(Object value, String field) {
+        if (value == null) {
+            throw invalidResponse("missing field " + field);
+        }
+    }
+
+    private static ResponseStatusException unexpectedType(String field, JsonToken token) {
+        return invalidResponse(String.format("unexpected %s for field %s", token, field));
+    }
+
+    private static ResponseStatusException invalidResponse(String reason) {
+        return new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Invalid response from Noon, " + reason);
+    }
+}
@@ -5,8 +5,10 @@ import com.safa.payment.entity.PurchaseOrder;
 import com.safa.payment.service.PurchaseOrderService;
 import com.safa.payment.service.gateway.Noon.NoonPaymentTransactionService;
 import com.safa.payment.service.gateway.Telr.TelrPaymentTransactionService;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 /**
@@ -16,16 +18,25 @@ import org.springframework.stereotype.Component;
 @Component
 public class PaymentTransactionServiceFactory {
 
+    private static final String FAILOVER_METRIC = "payment.gateway.failover";
+
     private final PurchaseOrderService purchaseOrderService;
     private final TelrPaymentTransactionService telrPaymentTransactionService;
     private final NoonPaymentTransactionService noonPaymentTransactionService;
+    private final GatewayResilience gatewayResilience;
+    private final MeterRegistry meterRegistry;
 
+    @Value("${payment.failover.enabled:false}")
+    private boolean failoverEnabled;
 
     @Autowired
-    public PaymentTransactionServiceFactory(PurchaseOrderService purchaseOrderService, TelrPaymentTransactionService telrPaymentTransactionService, NoonPaymentTransactionService noonPaymentTransactionService) {
+    public PaymentTransactionServiceFactory(PurchaseOrderService purchaseOrderService, TelrPaymentTransactionService telrPaymentTransactionService, NoonPaymentTransactionService noonPaymentTransactionService,
+                                            GatewayResilience gatewayResilience, MeterRegistry meterRegistry) {
         this.purchaseOrderService = purchaseOrderService;
         this.telrPaymentTransactionService = telrPaymentTransactionService;
         this.noonPaymentTransactionService = noonPaymentTransactionService;
+        this.gatewayResilience = gatewayResilience;
+        this.meterRegistry = meterRegistry;
     }
 
     public IPaymentTransactionService getInstance(PaymentGateway gateway) {
@@ -40,14 +51,38 @@ public class PaymentTransactionServiceFactory {
         }
     }
 
+    /**
+     * Get the service to create the payment for the order with.
+     * When failover is enabled and the order gateway circuit is open, an order that didn't start a payment yet
+     * (all its transactions are ready for payment) is moved to the other gateway, if that one is available
+     */
+    public IPaymentTransactionService getInstanceForPayment(PurchaseOrder order) {
+        PaymentGateway gateway = order.getPaymentGateway();
+        if (!failoverEnabled || gatewayResilience.isAvailable(gateway) || !purchaseOrderService.isReadyForPayment(order)) {
+            return getInstance(gateway);
+        }
+        PaymentGateway failoverGateway = getFailoverGateway(gateway);
+        if (!gatewayResilience.isAvailable(failoverGateway)) {
+            return getInstance(gateway);
+        }
+        log.warn("Payment gateway {} is unavailable, moving purchase order {} to {}", gateway, order.getId(), failoverGateway);
+        this.purchaseOrderService.switchPaymentGateway(order, failoverGateway);
+        meterRegistry.counter(FAILOVER_METRIC, "from", gateway.name(), "to", failoverGateway.name()).increment();
+        return getInstance(failoverGateway);
+    }
+
     public IPaymentTransactionService getInstanceByReference(String referenceId, String referenceType) {
         PurchaseOrder order = this.purchaseOrderService.findByReference(referenceId, referenceType);
-        return getInstance(order.getPaymentGateway());
+        return getInstanceForPayment(order);
     }
 
     public IPaymentTransactionService getInstanceByUuid(String uuid) {
         PurchaseOrder order = this.purchaseOrderService.findByUuid(uuid);
-        return getInstance(order.getPaymentGateway());
+        return getInstanceForPayment(order);
+    }
+
+    private PaymentGateway getFailoverGateway(PaymentGateway gateway) {
+        return gateway == PaymentGateway.TELR ? PaymentGateway.NOON : PaymentGateway.TELR;
     }
 
 }
@@ -0,0 +1,113 @@
+package com.safa.payment.service.gateway;
+
+import com.safa.payment.common.PaymentGateway;
+import com.safa.payment.common.PaymentTransactionPaymentStatus;
+import com.safa.payment.entity.PaymentTransaction;
+import com.safa.payment.entity.PurchaseOrder;
+import com.safa.payment.repository.PaymentTransactionRepository;
+import com.safa.payment.repository.PurchaseOrderRepository;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.persistence.EntityManager;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Status transitions of payment transactions as a single conditional update (compare-and-set on the current status),
+ * one round trip, no full entity write, and a concurrent transition of the same transaction can't be overwritten.
+ * Won and lost transitions are counted as payment.transaction.transitions tagged with the target status and result.
+ * Gateway updates are checked against the transitions of {@link PaymentTransactionPaymentStatus}, forbidden updates
+ * (e.g. a late initiated webhook after authorized) are counted as payment.transaction.transition.rejected,
+ * updates repeating the current status are no-ops and aren't counted
+ *
+ * @author Qusai Safa
+ */
+@Component
+public class PaymentTransactionTransitions {
+
+    /**
+     * Statuses a transaction can be cancelled from, a paid, refunded or reversed transaction is never cancelled
+     */
+    public static final Set<PaymentTransactionPaymentStatus> CANCELLABLE_STATUSES = EnumSet.of(
+            PaymentTransactionPaymentStatus.READY_FOR_PAYMENT,
+            PaymentTransactionPaymentStatus.INITIATED,
+            PaymentTransactionPaymentStatus.AUTHENTICATED,
+            PaymentTransactionPaymentStatus.DECLINED,
+            PaymentTransactionPaymentStatus.ERROR,
+            PaymentTransactionPaymentStatus.LOCKED,
+            PaymentTransactionPaymentStatus.EXPIRED);
+
+    private static final String TRANSITIONS_METRIC = "payment.transaction.transitions";
+    private static final String REJECTED_METRIC = "payment.transaction.transition.rejected";
+
+    private final PaymentTransactionRepository paymentTransactionRepository;
+    private final PurchaseOrderRepository purchaseOrderRepository;
+    private final EntityManager entityManager;
+    private final MeterRegistry meterRegistry;
+
+    @Autowired
+    public PaymentTransactionTransitions(PaymentTransactionRepository paymentTransactionRepository, PurchaseOrderRepository purchaseOrderRepository,
+                                         EntityManager entityManager, MeterRegistry meterRegistry) {
+        this.paymentTransactionRepository = paymentTransactionRepository;
+        this.purchaseOrderRepository = purchaseOrderRepository;
+        this.entityManager = entityManager;
+        this.meterRegistry = meterRegistry;
+    }
+
+    /**
+     * Move the transaction to the target status if it is in one of the expected statuses, returns true if the transition won.
+     * The in memory transaction is detached and updated with the new status and version, so it isn't written again.
+     * The latest status of the purchase order follows if this is its latest transaction
+     */
+    public boolean transition(PaymentTransaction paymentTransaction, PaymentTransactionPaymentStatus toStatus,
+                              Set<PaymentTransactionPaymentStatus> fromStatuses) {
+        List<String> fromShortCodes = fromStatuses.stream().map(PaymentTransactionPaymentStatus::getShortCode).toList();
+        Date updatedAt = new Date();
+        boolean won = paymentTransactionRepository.transitionStatus(paymentTransaction.getId(), fromShortCodes, toStatus.getShortCode(), updatedAt) == 1;
+        meterRegistry.counter(TRANSITIONS_METRIC, "to", toStatus.name().toLowerCase(), "result", won ? "won" : "lost").increment();
+        if (won) {
+            if (purchaseOrderRepository.updateLatestStatus(paymentTransaction.getId(), toStatus.getShortCode()) == 1) {
+                PurchaseOrder purchaseOrder = paymentTransaction.getPurchaseOrder();
+                if (purchaseOrder != null) {
+                    purchaseOrder.setLatestStatus(toStatus.getShortCode());
+                }
+            }
+            entityManager.detach(paymentTransaction);
+            paymentTransaction.setTransactionStatus(toStatus.getShortCode());
+            paymentTransaction.setUpdatedAt(updatedAt);
+            if (paymentTransaction.getVersion() != null) {
+                paymentTransaction.setVersion(paymentTransaction.getVersion() + 1);
+            }
+        }
+        return won;
+    }
+
+    /**
+     * True if a gateway update repeats the current status of the transaction, e.g. the Noon 3DS_RESULT_VERIFIED,
+     * AUTHORIZED and CAPTURED webhooks all map to authorized. Statuses that can follow themselves (partial reversals)
+     * aren't repeats, each one is a new update
+     */
+    public boolean isRepeatedUpdate(PaymentTransaction paymentTransaction, String toShortCode) {
+        PaymentTransactionPaymentStatus from = PaymentTransactionPaymentStatus.fromShortCode(paymentTransaction.getTransactionStatus());
+        return from != null && from.getShortCode().equals(toShortCode) && !from.canTransitionTo(from);
+    }
+
+    /**
+     * True if a gateway update can move the transaction from its current status to the new status.
+     * Statuses unknown to {@link PaymentTransactionPaymentStatus} are allowed, the update is stored as before
+     */
+    public boolean isAllowedUpdate(PaymentGateway paymentGateway, PaymentTransaction paymentTransaction, String toShortCode) {
+        PaymentTransactionPaymentStatus from = PaymentTransactionPaymentStatus.fromShortCode(paymentTransaction.getTransactionStatus());
+        PaymentTransactionPaymentStatus to = PaymentTransactionPaymentStatus.fromShortCode(toShortCode);
+        if (from == null || to == null || from.canTransitionTo(to)) {
+            return true;
+        }
+        meterRegistry.counter(REJECTED_METRIC, "gateway", paymentGateway.name().toLowerCase(), "from", from.name().toLowerCase(),
+                "to", to.name().toLowerCase()).increment();
+        return false;
+    }
+}
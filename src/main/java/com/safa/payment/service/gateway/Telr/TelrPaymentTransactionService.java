@@ -1,7 +1,7 @@
 package com.safa.payment.service.gateway.Telr;
 
+import com.safa.payment.common.PaymentGateway;
 import com.safa.payment.common.PaymentReferenceType;
-import com.safa.payment.common.PaymentTransactionPaymentStatus;
 import com.safa.payment.dto.common.HostedPaymentOutGoingDto;
 import com.safa.payment.dto.common.HostedPaymentResponseDto;
 import com.safa.payment.dto.telr.*;
@@ -16,6 +16,11 @@ import com.safa.payment.service.PromoService;
 import com.safa.payment.service.PurchaseOrderService;
 import com.safa.payment.service.RestService;
 import com.safa.payment.service.gateway.CommonPaymentTransactionService;
+import com.safa.payment.service.gateway.GatewayResilience;
+import com.safa.payment.service.gateway.GatewayRoutingService;
+import com.safa.payment.service.gateway.HostedPaymentUrlCache;
+import com.safa.payment.service.gateway.PaymentTransactionTransitions;
+import com.safa.payment.service.gateway.WebhookSignatureVerifier;
 import com.safa.payment.util.PaymentUtil;
 import jakarta.transaction.Transactional;
 import lombok.extern.slf4j.Slf4j;
@@ -28,14 +33,10 @@ import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.context.annotation.Lazy;
 import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Service;
-import org.springframework.util.CollectionUtils;
 import org.springframework.web.server.ResponseStatusException;
 
-import java.math.BigInteger;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.time.Instant;
-import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 import static com.safa.payment.util.PaymentUtil.CREATE_METHOD;
 
@@ -50,12 +51,9 @@ import static com.safa.payment.util.PaymentUtil.CREATE_METHOD;
 @Slf4j
 public class TelrPaymentTransactionService extends CommonPaymentTransactionService {
 
-    public static final String SEPARATOR = ":";
     private final Logger logger = LoggerFactory.getLogger(TelrPaymentTransactionService.class);
     private final TelrRestService telrRestService;
-    @Value("${telr.transaction.secret}")
-    private String telrTransactionSecret;
-
+    private final WebhookSignatureVerifier webhookSignatureVerifier;
     @Value("${payment.telr.test:true}")
     private boolean isTest;
 
@@ -73,24 +71,27 @@ public class TelrPaymentTransactionService extends CommonPaymentTransactionServi
             KafkaProducerService kafkaProducerService,
             PaymentUtil paymentUtil,
             PurchaseOrderService purchaseOrderService,
-            TelrRestService telrRestService, RestService restService, PromoService promoService, ApplicationEventPublisher eventPublisher) {
-        super(paymentTransactionRepository, kafkaProducerService, paymentUtil, purchaseOrderService, restService, promoService, eventPublisher);
+            TelrRestService telrRestService, RestService restService, PromoService promoService, ApplicationEventPublisher eventPublisher,
+            HostedPaymentUrlCache hostedPaymentUrlCache, GatewayResilience gatewayResilience,
+            GatewayRoutingService gatewayRoutingService, WebhookSignatureVerifier webhookSignatureVerifier,
+            PaymentTransactionTransitions paymentTransactionTransitions) {
+        super(paymentTransactionRepository, kafkaProducerService, paymentUtil, purchaseOrderService, restService, promoService, eventPublisher, hostedPaymentUrlCache, gatewayResilience, gatewayRoutingService, paymentTransactionTransitions);
         this.telrRestService = telrRestService;
+        this.webhookSignatureVerifier = webhookSignatureVerifier;
+    }
+
+    @Override
+    public PaymentGateway getPaymentGateway() {
+        return PaymentGateway.TELR;
     }
 
     /**
-     * create hosted payment url from the purchase order reference id and reference type
+     * Create telr order for the purchase order and return the hosted payment page url
      *
      * @see <a href="https://telr.com/support/knowledge-base/hosted-payment-page-integration-guide/">...</a>
      */
-    public String createHostedPaymentUrl(final PurchaseOrder purchaseOrder) {
-        final List<PaymentTransaction> paymentTransactions = purchaseOrder.getPaymentTransactions();
-        validateOrderTransactionsStatus(paymentTransactions, purchaseOrder);
-        // To support multiple request in case if the first payment failed.
-        int requestNumber = 1;
-        if (!CollectionUtils.isEmpty(paymentTransactions)) {
-            requestNumber = paymentTransactions.size();
-        }
+    @Override
+    protected String requestHostedPaymentUrl(PurchaseOrder purchaseOrder, PaymentTransaction latestPaymentTransaction, int requestNumber) {
         HostedPaymentRequestDto telrRequestDto =
                 buildHostedPaymentThirdPartyRequest(purchaseOrder, requestNumber);
         HostedPaymentResponseDto hostedPaymentResponse =
@@ -98,7 +99,18 @@ public class TelrPaymentTransactionService extends CommonPaymentTransactionServi
         validatePaymentIncomingResponse(hostedPaymentResponse);
         return hostedPaymentResponse.getOrder().getUrl();
     }
-    
+
+    @Override
+    protected CompletableFuture<String> requestHostedPaymentUrlAsync(PurchaseOrder purchaseOrder, PaymentTransaction latestPaymentTransaction, int requestNumber) {
+        HostedPaymentRequestDto telrRequestDto =
+                buildHostedPaymentThirdPartyRequest(purchaseOrder, requestNumber);
+        return this.telrRestService.sendHostedPaymentRequestAsync(telrRequestDto)
+                .thenApply(hostedPaymentResponse -> {
+                    validatePaymentIncomingResponse(hostedPaymentResponse);
+                    return hostedPaymentResponse.getOrder().getUrl();
+                });
+    }
+
 
     /**
      * Validate Response for telr API
@@ -117,11 +129,11 @@ public class TelrPaymentTransactionService extends CommonPaymentTransactionServi
     }
 
     /**
-     * Process the payment transaction request that send from telr gateway after payment process
+     * Process the payment transaction request that send from telr gateway after payment process,
+     * called by the webhook inbox worker once the signature is verified
      */
-    public void processPaymentTransaction(TelrPaymentTransactionIncomingDto transactionIncomingDto) {
+    public void applyPaymentTransaction(TelrPaymentTransactionIncomingDto transactionIncomingDto) {
         try {
-            validateTransactionSignature(transactionIncomingDto);
             PaymentTransaction newPaymentTransaction = this.paymentUtil.mapTelrTransactionToPaymentTransaction(transactionIncomingDto);
             // Extract cart Id to get reference id, reference type and request number
             CartIdentifier telrCartIdentifer =
@@ -129,8 +141,7 @@ public class TelrPaymentTransactionService extends CommonPaymentTransactionServi
             PurchaseOrder purchaseOrder =
                     purchaseOrderService.findByReference(
                             telrCartIdentifer.getReferenceId(), telrCartIdentifer.getReferenceType().getName(), true);
-            List<PaymentTransaction> transactions = purchaseOrder.getPaymentTransactions();
-            PaymentTransaction oldTransaction = transactions.get(0);
+            PaymentTransaction oldTransaction = getLatestPaymentTransaction(purchaseOrder);
             updateOrSavePaymentTransaction(newPaymentTransaction, oldTransaction, purchaseOrder);
         } catch (Exception e) {
             throw new PaymentTransactionException("Failed handling incoming update request from Telr gateway", e);
@@ -141,56 +152,7 @@ public class TelrPaymentTransactionService extends CommonPaymentTransactionServi
      * @see <a href="https://telr.com/support/knowledge-base/transaction-advice-service/">...</a>
      */
     public void validateTransactionSignature(TelrPaymentTransactionIncomingDto transactionIncomingDto) {
-        String signature =
-                telrTransactionSecret
-                        .concat(SEPARATOR)
-                        .concat(transactionIncomingDto.getTran_store())
-                        .concat(SEPARATOR)
-                        .concat(transactionIncomingDto.getTran_type())
-                        .concat(SEPARATOR)
-                        .concat(transactionIncomingDto.getTran_class())
-                        .concat(SEPARATOR)
-                        .concat(transactionIncomingDto.getTran_test())
-                        .concat(SEPARATOR)
-                        .concat(transactionIncomingDto.getTran_ref())
-                        .concat(SEPARATOR)
-                        .concat(transactionIncomingDto.getTran_prevref())
-                        .concat(SEPARATOR)
-                        .concat(transactionIncomingDto.getTran_firstref())
-                        .concat(SEPARATOR)
-                        .concat(transactionIncomingDto.getTran_order())
-                        .concat(SEPARATOR)
-                        .concat(transactionIncomingDto.getTran_currency())
-                        .concat(SEPARATOR)
-                        .concat(transactionIncomingDto.getTran_amount())
-                        .concat(SEPARATOR)
-                        .concat(transactionIncomingDto.getTran_cartid())
-                        .concat(SEPARATOR)
-                        .concat(transactionIncomingDto.getTran_desc())
-                        .concat(SEPARATOR)
-                        .concat(transactionIncomingDto.getTran_status())
-                        .concat(SEPARATOR)
-                        .concat(transactionIncomingDto.getTran_authcode())
-                        .concat(SEPARATOR)
-                        .concat(transactionIncomingDto.getTran_authmessage());
-
-        MessageDigest md;
-        try {
-            md = MessageDigest.getInstance("SHA-1");
-        } catch (NoSuchAlgorithmException e) {
-            throw new InternalPaymentException(e);
-        }
-        byte[] messageDigest = md.digest(signature.getBytes());
-        BigInteger no = new BigInteger(1, messageDigest);
-
-        // Convert message digest into hex value
-        StringBuilder hashText = new StringBuilder(no.toString(16));
-
-        // Add preceding 0s to make it 40 bit
-        while (hashText.length() < 40) {
-            hashText.insert(0, "0");
-        }
-        if (!hashText.toString().equals(transactionIncomingDto.getTran_check())) {
+        if (!webhookSignatureVerifier.verifyTelr(transactionIncomingDto)) {
             throw new InternalPaymentException("Invalid payment transaction signature:" + transactionIncomingDto);
         }
     }
@@ -218,8 +180,7 @@ public class TelrPaymentTransactionService extends CommonPaymentTransactionServi
 
     @Override
     public void cancelPaymentTransaction(PaymentTransaction paymentTransaction) {
-        paymentTransaction.setTransactionStatus(PaymentTransactionPaymentStatus.CANCELLED.getShortCode());
-        this.paymentTransactionRepository.saveAndFlush(paymentTransaction);
+        cancelTransactionStatus(paymentTransaction);
     }
 
     /**
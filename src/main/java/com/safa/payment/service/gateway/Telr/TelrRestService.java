@@ -1,14 +1,14 @@
 package com.safa.payment.service.gateway.Telr;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.dataformat.xml.XmlMapper;
 import com.safa.payment.dto.common.HostedPaymentRequestDto;
 import com.safa.payment.dto.common.HostedPaymentResponseDto;
-import com.safa.payment.dto.telr.TransactionDetails;
+import com.safa.payment.dto.telr.TransactionIdentifiers;
 import com.safa.payment.exception.InternalPaymentException;
+import com.safa.payment.service.gateway.GatewayAsyncClient;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.boot.web.client.RestTemplateBuilder;
+import com.safa.payment.config.HttpClientConfig;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
@@ -17,14 +17,16 @@ import org.springframework.stereotype.Service;
 import org.springframework.web.client.RestClientException;
 import org.springframework.web.client.RestTemplate;
 
-import java.io.IOException;
 import java.util.Base64;
+import java.util.concurrent.CompletableFuture;
 
 @Service
 @Slf4j
 public class TelrRestService {
 
     private final RestTemplate restTemplate;
+    private final GatewayAsyncClient asyncClient;
+    private final TelrTransactionDetailsReader transactionDetailsReader;
 
     @Value("${telr.hosted-payment.url}")
     String hostedPaymentUrl;
@@ -50,8 +52,12 @@ public class TelrRestService {
     private String telrServiceApiKey;
 
 
-    public TelrRestService(RestTemplateBuilder restTemplateBuilder) {
-        this.restTemplate = restTemplateBuilder.build();
+    public TelrRestService(@Qualifier(HttpClientConfig.TELR_REST_TEMPLATE) RestTemplate restTemplate,
+                           @Qualifier(HttpClientConfig.TELR_ASYNC_CLIENT) GatewayAsyncClient asyncClient,
+                           TelrTransactionDetailsReader transactionDetailsReader) {
+        this.restTemplate = restTemplate;
+        this.asyncClient = asyncClient;
+        this.transactionDetailsReader = transactionDetailsReader;
     }
 
     public HostedPaymentResponseDto sendHostedPaymentRequest(HostedPaymentRequestDto hostedPaymentRequestDto) {
@@ -62,11 +68,20 @@ public class TelrRestService {
                 hostedPaymentUrl, hostedPaymentRequestDto, HostedPaymentResponseDto.class);
     }
 
+    public CompletableFuture<HostedPaymentResponseDto> sendHostedPaymentRequestAsync(HostedPaymentRequestDto hostedPaymentRequestDto) {
+        log.info(
+                "Sending async request to Telr hosted payment gateway in order to get page URL, request details: {}",
+                hostedPaymentRequestDto.toString());
+        return this.asyncClient.postForObject(
+                hostedPaymentUrl, hostedPaymentRequestDto, null, HostedPaymentResponseDto.class);
+    }
+
     /**
-     * Get payment transaction details from telr using payment transaction reference id
+     * Get payment transaction identifiers (id, agreement id and cart id) from telr using payment transaction reference id
+     * The xml response is read from the response stream by the shared {@link TelrTransactionDetailsReader}
      * see documentation https://telr.com/support/knowledge-base/service-api/
      */
-    public TransactionDetails getPaymentTransactionDetails(String transactionReference) {
+    public TransactionIdentifiers getPaymentTransactionDetails(String transactionReference) {
         String transactionDetailsUrlWithReference = String.format(transactionDetailsUrl, transactionReference);
         HttpHeaders headers = createTelrServiceApisAuthHeader();
 
@@ -74,19 +89,14 @@ public class TelrRestService {
 
         try {
             HttpEntity<Void> requestEntity = new HttpEntity<>(headers);
-            ResponseEntity<String> responseEntity = restTemplate.exchange(transactionDetailsUrlWithReference, HttpMethod.GET, requestEntity, String.class);
-            String xmlResponse = responseEntity.getBody();
-
-            // Parse the XML response into the TransactionDetails class
-            ObjectMapper xmlMapper = new XmlMapper();
-
-            return xmlMapper.readValue(xmlResponse, TransactionDetails.class);
+            return restTemplate.execute(transactionDetailsUrlWithReference, HttpMethod.GET, restTemplate.httpEntityCallback(requestEntity),
+                    response -> transactionDetailsReader.read(response.getBody()));
         } catch (RestClientException e) {
             log.error("Error occurred while getting payment transaction details, transaction reference: {}", transactionReference, e);
             throw new InternalPaymentException(String.format("Error occurred while getting payment transaction details, transaction reference %s", transactionReference), e);
-        } catch (IOException e) {
+        } catch (InternalPaymentException e) {
             log.error("Failed parsing response from get transaction details API, transaction reference: {}", transactionReference, e);
-            throw new InternalPaymentException("Failed parsing response from get transaction details API", e);
+            throw e;
         }
     }
 
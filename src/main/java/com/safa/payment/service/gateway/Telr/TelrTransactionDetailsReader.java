@@ -0,0 +1,93 @@
+package com.safa.payment.service.gateway.Telr;
+
+import com.safa.payment.dto.telr.TransactionIdentifiers;
+import com.safa.payment.exception.InternalPaymentException;
+import org.springframework.stereotype.Component;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.InputStream;
+
+/**
+ * Streaming (StAX) reader of the Telr transaction details xml.
+ * The xml input factory is created and configured once and shared, it is thread safe once configured.
+ * Only the identifiers we use are read (id, agreementid and cartid), the reader stops as soon as they are found.
+ *
+ * @author Qusai Safa
+ */
+@Component
+public class TelrTransactionDetailsReader {
+
+    private static final String ID = "id";
+    private static final String AGREEMENT_ID = "agreementid";
+    private static final String CART_ID = "cartid";
+    private static final int FIELDS_COUNT = 3;
+    // Fields are children of the root transaction element
+    private static final int FIELD_DEPTH = 2;
+
+    private final XMLInputFactory xmlInputFactory;
+
+    public TelrTransactionDetailsReader() {
+        this.xmlInputFactory = XMLInputFactory.newFactory();
+        this.xmlInputFactory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        this.xmlInputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, false);
+        this.xmlInputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        this.xmlInputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+
+    public TransactionIdentifiers read(InputStream body) {
+        if (body == null) {
+            throw new InternalPaymentException("Failed parsing response from get transaction details API, empty body");
+        }
+        XMLStreamReader reader = null;
+        try {
+            reader = xmlInputFactory.createXMLStreamReader(body);
+            TransactionIdentifiers transactionIdentifiers = new TransactionIdentifiers();
+            int depth = 0;
+            int found = 0;
+            while (found < FIELDS_COUNT && reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.END_ELEMENT) {
+                    depth--;
+                } else if (event == XMLStreamConstants.START_ELEMENT && ++depth == FIELD_DEPTH) {
+                    String field = reader.getLocalName();
+                    if (ID.equals(field)) {
+                        transactionIdentifiers.setId(readText(reader));
+                    } else if (AGREEMENT_ID.equals(field)) {
+                        transactionIdentifiers.setAgreementId(readText(reader));
+                    } else if (CART_ID.equals(field)) {
+                        transactionIdentifiers.setCartId(readText(reader));
+                    } else {
+                        continue;
+                    }
+                    // getElementText consumed the end element
+                    depth--;
+                    found++;
+                }
+            }
+            return transactionIdentifiers;
+        } catch (XMLStreamException e) {
+            throw new InternalPaymentException("Failed parsing response from get transaction details API", e);
+        } finally {
+            close(reader);
+        }
+    }
+
+    private static String readText(XMLStreamReader reader) throws XMLStreamException {
+        String text = reader.getElementText().trim();
+        return text.isEmpty() ? null : text;
+    }
+
+    private static void close(XMLStreamReader reader) {
+        if (reader == null) {
+            return;
+        }
+        try {
+            reader.close();
+        } catch (XMLStreamException ignored) {
+            // Nothing left to read
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package com.safa.payment.service.gateway;
+
+import com.safa.payment.dto.noon.NoonTransactionIncomingDto;
+import com.safa.payment.dto.telr.TelrPaymentTransactionIncomingDto;
+import com.safa.payment.exception.InternalPaymentException;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Verify the gateway webhook signatures.
+ * Telr: lowercase hex SHA-1 of secret:tran_store:...:tran_authmessage, compared with tran_check.
+ * Noon: base64 HMAC-SHA512 of orderId,orderStatus,eventId,eventType,timeStamp[,originalOrderId,merchantOrderReference,attemptNumber]
+ * keyed with the Noon secret, compared with signature.
+ * Each thread keeps its own digest, pre-keyed mac and buffers, the signed message is encoded straight into the buffer
+ * and the expected signature is compared in constant time without building intermediate strings.
+ *
+ * @author Qusai Safa
+ */
+@Component
+public class WebhookSignatureVerifier {
+
+    private static final String SHA_1 = "SHA-1";
+    private static final String HMAC_SHA_512 = "HmacSHA512";
+    private static final byte TELR_SEPARATOR = ':';
+    private static final byte NOON_SEPARATOR = ',';
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+    // Noon signs null fields as the "null" text
+    private static final String NULL = "null";
+    private static final int INITIAL_BUFFER_SIZE = 512;
+
+    private final String telrTransactionSecret;
+    private final SecretKeySpec noonSecretKey;
+    private final ThreadLocal<SignatureState> telrState;
+    private final ThreadLocal<SignatureState> noonState;
+
+    @Autowired
+    public WebhookSignatureVerifier(@Value("${telr.transaction.secret}") String telrTransactionSecret,
+                                    @Value("${noon.secretKey:}") String noonSecretKey) {
+        this.telrTransactionSecret = telrTransactionSecret;
+        this.noonSecretKey = StringUtils.isEmpty(noonSecretKey)
+                ? null
+                : new SecretKeySpec(noonSecretKey.getBytes(StandardCharsets.UTF_8), HMAC_SHA_512);
+        this.telrState = ThreadLocal.withInitial(() -> new SignatureState(newSha1(), null));
+        this.noonState = ThreadLocal.withInitial(() -> new SignatureState(null, newNoonMac()));
+    }
+
+    /**
+     * True if tran_check matches the signed Telr fields, a missing field fails the verification
+     */
+    public boolean verifyTelr(TelrPaymentTransactionIncomingDto dto) {
+        String[] fields = {telrTransactionSecret, dto.getTran_store(), dto.getTran_type(), dto.getTran_class(),
+                dto.getTran_test(), dto.getTran_ref(), dto.getTran_prevref(), dto.getTran_firstref(), dto.getTran_order(),
+                dto.getTran_currency(), dto.getTran_amount(), dto.getTran_cartid(), dto.getTran_desc(),
+                dto.getTran_status(), dto.getTran_authcode(), dto.getTran_authmessage()};
+        SignatureState state = telrState.get();
+        state.length = 0;
+        for (int i = 0; i < fields.length; i++) {
+            if (fields[i] == null) {
+                return false;
+            }
+            if (i > 0) {
+                state.append(TELR_SEPARATOR);
+            }
+            state.append(fields[i]);
+        }
+        state.digest.update(state.buffer, 0, state.length);
+        byte[] hash = state.digest.digest();
+        return equalsHex(hash, dto.getTran_check());
+    }
+
+    /**
+     * True if the signature matches the signed Noon fields
+     */
+    public boolean verifyNoon(NoonTransactionIncomingDto dto) {
+        if (noonSecretKey == null || dto.getSignature() == null) {
+            return false;
+        }
+        SignatureState state = noonState.get();
+        state.length = 0;
+        state.appendNullable(dto.getOrderId());
+        state.append(NOON_SEPARATOR);
+        state.appendNullable(dto.getOrderStatus());
+        state.append(NOON_SEPARATOR);
+        state.appendNullable(dto.getEventId());
+        state.append(NOON_SEPARATOR);
+        state.appendNullable(dto.getEventType());
+        state.append(NOON_SEPARATOR);
+        state.appendNullable(dto.getTimeStamp());
+        if (dto.getAttemptNumber() != null) {
+            // provided only for orders initiated with the allowedRetry field, after the 1st failed attempt.
+            state.append(NOON_SEPARATOR);
+            state.appendNullable(dto.getOriginalOrderId());
+            state.append(NOON_SEPARATOR);
+            state.appendNullable(dto.getMerchantOrderReference());
+            state.append(NOON_SEPARATOR);
+            state.appendNullable(dto.getAttemptNumber());
+        }
+        state.mac.update(state.buffer, 0, state.length);
+        byte[] hmac = state.mac.doFinal();
+        int encodedLength = Base64.getEncoder().encode(hmac, state.encoded);
+        return equalsAscii(state.encoded, encodedLength, dto.getSignature());
+    }
+
+    /**
+     * Constant time comparison of the lowercase hex of the hash with the expected string
+     */
+    private static boolean equalsHex(byte[] hash, String expected) {
+        if (expected == null || expected.length() != hash.length * 2) {
+            return false;
+        }
+        int diff = 0;
+        for (int i = 0; i < hash.length; i++) {
+            diff |= HEX[(hash[i] >> 4) & 0xF] ^ expected.charAt(2 * i);
+            diff |= HEX[hash[i] & 0xF] ^ expected.charAt(2 * i + 1);
+        }
+        return diff == 0;
+    }
+
+    /**
+     * Constant time comparison of the ascii bytes with the expected string
+     */
+    private static boolean equalsAscii(byte[] actual, int length, String expected) {
+        if (expected.length() != length) {
+            return false;
+        }
+        int diff = 0;
+        for (int i = 0; i < length; i++) {
+            diff |= actual[i] ^ expected.charAt(i);
+        }
+        return diff == 0;
+    }
+
+    private static MessageDigest newSha1() {
+        try {
+            return MessageDigest.getInstance(SHA_1);
+        } catch (GeneralSecurityException e) {
+            throw new InternalPaymentException(e);
+        }
+    }
+
+    private Mac newNoonMac() {
+        if (noonSecretKey == null) {
+            return null;
+        }
+        try {
+            Mac mac = Mac.getInstance(HMAC_SHA_512);
+            // The mac keeps the key after doFinal, it is initialized once per thread
+            mac.init(noonSecretKey);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new InternalPaymentException(e);
+        }
+    }
+
+    /**
+     * Per thread digest or mac, and the buffer the signed message is utf-8 encoded into
+     */
+    private static final class SignatureState {
+
+        private final MessageDigest digest;
+        private final Mac mac;
+        private final byte[] encoded = new byte[128];
+        private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+        private int length;
+
+        SignatureState(MessageDigest digest, Mac mac) {
+            this.digest = digest;
+            this.mac = mac;
+        }
+
+        void appendNullable(String value) {
+            append(value != null ? value : NULL);
+        }
+
+        void append(byte value) {
+            ensureCapacity(1);
+            buffer[length++] = value;
+        }
+
+        void append(String value) {
+            // Every char takes at most 3 utf-8 bytes (a surrogate pair takes 4 for 2 chars)
+            ensureCapacity(value.length() * 3);
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c < 0x80) {
+                    buffer[length++] = (byte) c;
+                } else if (c < 0x800) {
+                    buffer[length++] = (byte) (0xC0 | (c >> 6));
+                    buffer[length++] = (byte) (0x80 | (c & 0x3F));
+                } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                    buffer[length++] = (byte) (0xF0 | (codePoint >> 18));
+                    buffer[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                    buffer[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                    buffer[length++] = (byte) (0x80 | (codePoint & 0x3F));
+                } else if (Character.isSurrogate(c)) {
+                    // Unpaired surrogate, encoded as '?' like String.getBytes
+                    buffer[length++] = '?';
+                } else {
+                    buffer[length++] = (byte) (0xE0 | (c >> 12));
+                    buffer[length++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                    buffer[length++] = (byte) (0x80 | (c & 0x3F));
+                }
+            }
+        }
+
+        private void ensureCapacity(int extra) {
+            if (length + extra > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + extra));
+            }
+        }
+    }
+}
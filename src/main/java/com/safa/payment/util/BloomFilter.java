@@ -0,0 +1,81 @@
+package com.safa.payment.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread safe bloom filter of strings, sized for the expected insertions and false positive probability.
+ * {@link #mightContain(String)} false means the value was never added, true means it probably was.
+ */
+public class BloomFilter {
+
+    private final AtomicLongArray bits;
+    private final int bitSize;
+    private final int hashCount;
+    private final AtomicInteger insertions = new AtomicInteger();
+
+    public BloomFilter(int expectedInsertions, double falsePositiveProbability) {
+        long optimalBits = (long) Math.ceil(-expectedInsertions * Math.log(falsePositiveProbability) / (Math.log(2) * Math.log(2)));
+        this.bitSize = (int) Math.min(Math.max(optimalBits, Long.SIZE), Integer.MAX_VALUE - Long.SIZE);
+        this.hashCount = Math.max(1, (int) Math.round((double) bitSize / expectedInsertions * Math.log(2)));
+        this.bits = new AtomicLongArray((bitSize + Long.SIZE - 1) / Long.SIZE);
+    }
+
+    public void put(String value) {
+        long hash = hash(value);
+        int hash1 = (int) hash;
+        int hash2 = (int) (hash >>> 32);
+        for (int i = 1; i <= hashCount; i++) {
+            setBit(index(hash1 + i * hash2));
+        }
+        insertions.incrementAndGet();
+    }
+
+    public boolean mightContain(String value) {
+        long hash = hash(value);
+        int hash1 = (int) hash;
+        int hash2 = (int) (hash >>> 32);
+        for (int i = 1; i <= hashCount; i++) {
+            int index = index(hash1 + i * hash2);
+            if ((bits.get(index / Long.SIZE) & (1L << index)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int insertions() {
+        return insertions.get();
+    }
+
+    private int index(int combinedHash) {
+        // Flip negative hashes, Kirsch-Mitzenmacher double hashing
+        return (combinedHash < 0 ? ~combinedHash : combinedHash) % bitSize;
+    }
+
+    private void setBit(int index) {
+        int word = index / Long.SIZE;
+        long mask = 1L << index;
+        long current;
+        do {
+            current = bits.get(word);
+            if ((current & mask) != 0) {
+                return;
+            }
+        } while (!bits.compareAndSet(word, current, current | mask));
+    }
+
+    /**
+     * 64 bit FNV-1a over the chars, finished with the splitmix64 mixer so both halves are well distributed
+     */
+    private static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash = (hash ^ (hash >>> 30)) * 0xbf58476d1ce4e5b9L;
+        hash = (hash ^ (hash >>> 27)) * 0x94d049bb133111ebL;
+        return hash ^ (hash >>> 31);
+    }
+}
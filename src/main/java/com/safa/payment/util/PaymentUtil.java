@@ -45,6 +45,26 @@ public class PaymentUtil {
 
     public static final String CREATE_METHOD = "create";
     private static final String PAYMENT_NOTIFICATION_REFERENCE_FORMAT = "PAYMENT_%s_NOTIFICATION";
+    // Payment status by the char of the transaction status short code
+    private static final PaymentStatus[] PAYMENT_STATUS_BY_CODE = new PaymentStatus[128];
+
+    static {
+        PAYMENT_STATUS_BY_CODE['A'] = PaymentStatus.SUCCESS;
+        PAYMENT_STATUS_BY_CODE['H'] = PaymentStatus.SUCCESS;
+        PAYMENT_STATUS_BY_CODE['R'] = PaymentStatus.READY_FOR_PAYMENT;
+        PAYMENT_STATUS_BY_CODE['E'] = PaymentStatus.FAILED;
+        PAYMENT_STATUS_BY_CODE[':'] = PaymentStatus.FAILED;
+        PAYMENT_STATUS_BY_CODE['D'] = PaymentStatus.REFUSED;
+        PAYMENT_STATUS_BY_CODE['C'] = PaymentStatus.CANCELLED;
+        PAYMENT_STATUS_BY_CODE['I'] = PaymentStatus.INITIATED;
+        //TODO: Confirm T with noon
+        PAYMENT_STATUS_BY_CODE['T'] = PaymentStatus.INITIATED;
+        PAYMENT_STATUS_BY_CODE['F'] = PaymentStatus.REFUNDED;
+        PAYMENT_STATUS_BY_CODE['P'] = PaymentStatus.PARTIALLY_REVERSED;
+        PAYMENT_STATUS_BY_CODE['S'] = PaymentStatus.REVERSED;
+        PAYMENT_STATUS_BY_CODE['V'] = PaymentStatus.EXPIRED;
+    }
+
     private final ObjectMapper objectMapper;
 
     @Value("${sourceCountryShortCode}")
@@ -77,24 +97,11 @@ public class PaymentUtil {
     }
 
     public static String getPaymentStatus(String paymentStatus) {
-        String status;
-        switch (paymentStatus) {
-            case "A", "H" -> status = PaymentStatus.SUCCESS.getStatus();
-            case "R" -> status = PaymentStatus.READY_FOR_PAYMENT.getStatus();
-            case "E", ":" -> status = PaymentStatus.FAILED.getStatus();
-            case "D" -> status = PaymentStatus.REFUSED.getStatus();
-            case "C" -> status = PaymentStatus.CANCELLED.getStatus();
-            //TODO: Confirm T with noon
-            case "I", "T" -> status = PaymentStatus.INITIATED.getStatus();
-            case "F" -> status = PaymentStatus.REFUNDED.getStatus();
-            case "P" -> status = PaymentStatus.PARTIALLY_REVERSED.getStatus();
-            case "S" -> status = PaymentStatus.REVERSED.getStatus();
-            case "V" -> status = PaymentStatus.EXPIRED.getStatus();
-
-
-            default -> status = PaymentStatus.UNKNOWN.getStatus();
+        if (paymentStatus == null || paymentStatus.length() != 1 || paymentStatus.charAt(0) >= PAYMENT_STATUS_BY_CODE.length) {
+            return PaymentStatus.UNKNOWN.getStatus();
         }
-        return status;
+        PaymentStatus status = PAYMENT_STATUS_BY_CODE[paymentStatus.charAt(0)];
+        return status != null ? status.getStatus() : PaymentStatus.UNKNOWN.getStatus();
     }
 
     /**
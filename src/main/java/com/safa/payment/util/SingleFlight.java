@@ -0,0 +1,73 @@
+package com.safa.payment.util;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Coalesce concurrent calls for the same key, the first caller runs the call and
+ * callers arriving while it is in flight share its result instead of running it again.
+ * The key is released once the call completes, so later callers run a new call.
+ */
+public class SingleFlight<K, V> {
+
+    private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * Run the async call for the key, or join the call already in flight for it
+     */
+    public CompletableFuture<V> execute(K key, Supplier<CompletableFuture<V>> call) {
+        CompletableFuture<V> promise = new CompletableFuture<>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, promise);
+        if (existing != null) {
+            return existing.copy();
+        }
+        try {
+            call.get().whenComplete((value, error) -> complete(key, promise, value, error));
+        } catch (RuntimeException e) {
+            complete(key, promise, null, e);
+        }
+        return promise;
+    }
+
+    /**
+     * Run the blocking call for the key on the calling thread, or wait for the call already in flight for it
+     */
+    public V executeSync(K key, Supplier<V> call) {
+        CompletableFuture<V> promise = new CompletableFuture<>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, promise);
+        if (existing != null) {
+            try {
+                return existing.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException cause) {
+                    throw cause;
+                }
+                throw e;
+            }
+        }
+        try {
+            V value = call.get();
+            complete(key, promise, value, null);
+            return value;
+        } catch (RuntimeException e) {
+            complete(key, promise, null, e);
+            throw e;
+        }
+    }
+
+    public int inFlightCount() {
+        return inFlight.size();
+    }
+
+    private void complete(K key, CompletableFuture<V> promise, V value, Throwable error) {
+        // Release the key first, callers arriving after completion must not get this result
+        inFlight.remove(key, promise);
+        if (error != null) {
+            promise.completeExceptionally(error instanceof CompletionException && error.getCause() != null ? error.getCause() : error);
+        } else {
+            promise.complete(value);
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package com.safa.payment.util;
+
+/**
+ * Runnable allowed to throw the checked exception of the wrapped call
+ */
+@FunctionalInterface
+public interface ThrowingRunnable<E extends Exception> {
+
+    void run() throws E;
+}
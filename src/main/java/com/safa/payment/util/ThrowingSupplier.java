@@ -0,0 +1,10 @@
+package com.safa.payment.util;
+
+/**
+ * Supplier allowed to throw the checked exception of the wrapped call
+ */
+@FunctionalInterface
+public interface ThrowingSupplier<T, E extends Exception> {
+
+    T get() throws E;
+}
@@ -0,0 +1,75 @@
+package com.safa.payment.benchmark;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.xml.XmlMapper;
+import com.safa.payment.dto.telr.TransactionDetails;
+import com.safa.payment.dto.telr.TransactionIdentifiers;
+import com.safa.payment.service.gateway.Telr.TelrTransactionDetailsReader;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Telr transaction details decoding, the previous path (new XmlMapper per call, body read into a String)
+ * against the shared streaming reader.
+ * Run with: mvn test-compile exec:exec -Dexec.classpathScope=test -Dexec.executable=java
+ * -Dexec.args="-cp %classpath org.openjdk.jmh.Main TelrTransactionDetailsReaderBenchmark"
+ *
+ * @author Qusai Safa
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TelrTransactionDetailsReaderBenchmark {
+
+    private static final String TRANSACTION_DETAILS_XML = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+            + "<transaction>"
+            + "<id>040023303844</id>"
+            + "<prev_id>040023303800</prev_id>"
+            + "<init_id>040023303800</init_id>"
+            + "<agreementid>513285</agreementid>"
+            + "<amount>150.00</amount>"
+            + "<amount_txt>AED 150.00</amount_txt>"
+            + "<currency>AED</currency>"
+            + "<description>Payment request for purchase order id:1200</description>"
+            + "<cartid>S_1200_1_AE_1714720000</cartid>"
+            + "<test>1</test>"
+            + "<date>2024-05-03T10:15:30Z</date>"
+            + "<status><code>3</code><text>Paid</text></status>"
+            + "<auth><status>A</status><code>123456</code><message>Authorised</message></auth>"
+            + "<card><type>Visa Credit</type><last4>1111</last4><country>AE</country></card>"
+            + "</transaction>";
+
+    private byte[] body;
+    private TelrTransactionDetailsReader reader;
+    private ObjectMapper sharedXmlMapper;
+
+    @Setup
+    public void setup() {
+        body = TRANSACTION_DETAILS_XML.getBytes(StandardCharsets.UTF_8);
+        reader = new TelrTransactionDetailsReader();
+        sharedXmlMapper = new XmlMapper();
+    }
+
+    @Benchmark
+    public TransactionDetails newXmlMapperPerCall() throws Exception {
+        String xmlResponse = new String(body, StandardCharsets.UTF_8);
+        ObjectMapper xmlMapper = new XmlMapper();
+        return xmlMapper.readValue(xmlResponse, TransactionDetails.class);
+    }
+
+    @Benchmark
+    public TransactionDetails sharedXmlMapper() throws Exception {
+        return sharedXmlMapper.readValue(new ByteArrayInputStream(body), TransactionDetails.class);
+    }
+
+    @Benchmark
+    public TransactionIdentifiers streamingReader() {
+        return reader.read(new ByteArrayInputStream(body));
+    }
+}
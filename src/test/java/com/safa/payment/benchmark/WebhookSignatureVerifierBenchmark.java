@@ -0,0 +1,120 @@
+package com.safa.payment.benchmark;
+
+import com.safa.payment.dto.noon.NoonTransactionIncomingDto;
+import com.safa.payment.dto.telr.TelrPaymentTransactionIncomingDto;
+import com.safa.payment.service.gateway.WebhookSignatureVerifier;
+import org.apache.commons.lang3.StringUtils;
+import org.openjdk.jmh.annotations.*;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Webhook signature verification of both gateways, the previous per call implementations
+ * (Telr string concat + BigInteger hex, Noon Mac.getInstance/init per call) against the shared verifier.
+ * Run with: mvn test-compile exec:exec -Dexec.classpathScope=test -Dexec.executable=java
+ * -Dexec.args="-cp %classpath org.openjdk.jmh.Main WebhookSignatureVerifierBenchmark"
+ *
+ * @author Qusai Safa
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class WebhookSignatureVerifierBenchmark {
+
+    private static final String TELR_SECRET = "kR7#pQ2m-Xz9Lw4T";
+    private static final String NOON_SECRET = "b3f1c0a8d2e94f7a9c6b5e4d3a2f1e0c";
+
+    private WebhookSignatureVerifier verifier;
+    private TelrPaymentTransactionIncomingDto telrWebhook;
+    private NoonTransactionIncomingDto noonWebhook;
+
+    @Setup
+    public void setup() throws Exception {
+        verifier = new WebhookSignatureVerifier(TELR_SECRET, NOON_SECRET);
+
+        telrWebhook = new TelrPaymentTransactionIncomingDto();
+        telrWebhook.setTran_store("25798");
+        telrWebhook.setTran_type("sale");
+        telrWebhook.setTran_class("ecom");
+        telrWebhook.setTran_test("1");
+        telrWebhook.setTran_ref("040023303844");
+        telrWebhook.setTran_prevref("");
+        telrWebhook.setTran_firstref("040023303844");
+        telrWebhook.setTran_order("E5A0C7B9F2D14A6C");
+        telrWebhook.setTran_currency("AED");
+        telrWebhook.setTran_amount("150.00");
+        telrWebhook.setTran_cartid("S_1200_1_AE_1714720000");
+        telrWebhook.setTran_desc("Payment request for purchase order id:1200");
+        telrWebhook.setTran_status("A");
+        telrWebhook.setTran_authcode("123456");
+        telrWebhook.setTran_authmessage("Authorised");
+        telrWebhook.setTran_check(telrSignature(telrWebhook));
+
+        noonWebhook = new NoonTransactionIncomingDto();
+        noonWebhook.setOrderId("188026384542");
+        noonWebhook.setOrderStatus("CAPTURED");
+        noonWebhook.setEventId("3f2c9a1e-6b7d-4e8f-9a0b-1c2d3e4f5a6b");
+        noonWebhook.setEventType("Sale");
+        noonWebhook.setTimeStamp("2024-05-03T10:15:30.1234567Z");
+        noonWebhook.setSignature(noonSignature(noonWebhook));
+
+        if (!verifier.verifyTelr(telrWebhook) || !verifier.verifyNoon(noonWebhook)) {
+            throw new IllegalStateException("Verifier doesn't match the previous signature implementation");
+        }
+    }
+
+    @Benchmark
+    public boolean telrPerCall() throws Exception {
+        return telrSignature(telrWebhook).equals(telrWebhook.getTran_check());
+    }
+
+    @Benchmark
+    public boolean telrVerifier() {
+        return verifier.verifyTelr(telrWebhook);
+    }
+
+    @Benchmark
+    public boolean noonPerCall() throws Exception {
+        return StringUtils.equals(noonWebhook.getSignature(), noonSignature(noonWebhook));
+    }
+
+    @Benchmark
+    public boolean noonVerifier() {
+        return verifier.verifyNoon(noonWebhook);
+    }
+
+    private static String telrSignature(TelrPaymentTransactionIncomingDto dto) throws Exception {
+        String signature = TELR_SECRET.concat(":").concat(dto.getTran_store()).concat(":").concat(dto.getTran_type())
+                .concat(":").concat(dto.getTran_class()).concat(":").concat(dto.getTran_test())
+                .concat(":").concat(dto.getTran_ref()).concat(":").concat(dto.getTran_prevref())
+                .concat(":").concat(dto.getTran_firstref()).concat(":").concat(dto.getTran_order())
+                .concat(":").concat(dto.getTran_currency()).concat(":").concat(dto.getTran_amount())
+                .concat(":").concat(dto.getTran_cartid()).concat(":").concat(dto.getTran_desc())
+                .concat(":").concat(dto.getTran_status()).concat(":").concat(dto.getTran_authcode())
+                .concat(":").concat(dto.getTran_authmessage());
+        MessageDigest md = MessageDigest.getInstance("SHA-1");
+        BigInteger no = new BigInteger(1, md.digest(signature.getBytes()));
+        StringBuilder hashText = new StringBuilder(no.toString(16));
+        while (hashText.length() < 40) {
+            hashText.insert(0, "0");
+        }
+        return hashText.toString();
+    }
+
+    private static String noonSignature(NoonTransactionIncomingDto dto) throws Exception {
+        String signature = dto.getOrderId() + "," + dto.getOrderStatus() + "," + dto.getEventId()
+                + "," + dto.getEventType() + "," + dto.getTimeStamp();
+        Mac mac = Mac.getInstance("HmacSHA512");
+        mac.init(new SecretKeySpec(NOON_SECRET.getBytes(StandardCharsets.UTF_8), "HmacSHA512"));
+        return Base64.getEncoder().encodeToString(mac.doFinal(signature.getBytes()));
+    }
+}
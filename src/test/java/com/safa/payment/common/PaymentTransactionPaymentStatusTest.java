@@ -0,0 +1,113 @@
+package com.safa.payment.common;
+
+import com.safa.payment.common.noon.NoonPaymentStatus;
+import com.safa.payment.util.PaymentUtil;
+import org.junit.jupiter.api.Test;
+
+import static com.safa.payment.common.PaymentTransactionPaymentStatus.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Status transition table and the short code / gateway status lookups
+ *
+ * @author Qusai Safa
+ */
+class PaymentTransactionPaymentStatusTest {
+
+    @Test
+    void lateInitiatedUpdateCantOverwriteAuthorized() {
+        assertFalse(AUTHORIZED.canTransitionTo(INITIATED));
+        assertFalse(HOLD_AUTHORIZED.canTransitionTo(INITIATED));
+        assertFalse(AUTHORIZED.canTransitionTo(READY_FOR_PAYMENT));
+    }
+
+    @Test
+    void paymentAttemptMovesForward() {
+        assertTrue(READY_FOR_PAYMENT.canTransitionTo(INITIATED));
+        assertTrue(INITIATED.canTransitionTo(AUTHENTICATED));
+        assertTrue(AUTHENTICATED.canTransitionTo(AUTHORIZED));
+        assertTrue(INITIATED.canTransitionTo(DECLINED));
+        assertTrue(HOLD_AUTHORIZED.canTransitionTo(AUTHORIZED));
+        assertFalse(INITIATED.canTransitionTo(READY_FOR_PAYMENT));
+        assertFalse(AUTHENTICATED.canTransitionTo(INITIATED));
+    }
+
+    @Test
+    void failedAttemptCanBeRetried() {
+        for (PaymentTransactionPaymentStatus failed : new PaymentTransactionPaymentStatus[]{DECLINED, ERROR, LOCKED, EXPIRED}) {
+            assertTrue(failed.canTransitionTo(INITIATED), failed.name());
+            assertTrue(failed.canTransitionTo(AUTHORIZED), failed.name());
+            assertFalse(failed.canTransitionTo(REFUNDED), failed.name());
+        }
+    }
+
+    @Test
+    void paymentCompletedBeforeCancellationIsRecorded() {
+        assertTrue(CANCELLED.canTransitionTo(AUTHORIZED));
+        assertTrue(CANCELLED.canTransitionTo(HOLD_AUTHORIZED));
+        assertFalse(CANCELLED.canTransitionTo(INITIATED));
+        assertFalse(CANCELLED.canTransitionTo(DECLINED));
+    }
+
+    @Test
+    void authorizedIsOnlyRefundedOrReversed() {
+        assertTrue(AUTHORIZED.canTransitionTo(REFUNDED));
+        assertTrue(AUTHORIZED.canTransitionTo(PARTIALLY_REVERSED));
+        assertTrue(AUTHORIZED.canTransitionTo(REVERSED));
+        assertFalse(AUTHORIZED.canTransitionTo(CANCELLED));
+        assertFalse(AUTHORIZED.canTransitionTo(DECLINED));
+        assertFalse(AUTHORIZED.canTransitionTo(AUTHORIZED));
+        // Hold is released by a cancellation
+        assertTrue(HOLD_AUTHORIZED.canTransitionTo(CANCELLED));
+    }
+
+    @Test
+    void partialReversalsCanRepeat() {
+        assertTrue(PARTIALLY_REVERSED.canTransitionTo(PARTIALLY_REVERSED));
+        assertTrue(PARTIALLY_REVERSED.canTransitionTo(REFUNDED));
+        assertTrue(PARTIALLY_REVERSED.canTransitionTo(REVERSED));
+        assertFalse(PARTIALLY_REVERSED.canTransitionTo(AUTHORIZED));
+    }
+
+    @Test
+    void refundedAndReversedAreFinal() {
+        for (PaymentTransactionPaymentStatus next : values()) {
+            assertFalse(REFUNDED.canTransitionTo(next), next.name());
+            assertFalse(REVERSED.canTransitionTo(next), next.name());
+        }
+    }
+
+    @Test
+    void shortCodeLookup() {
+        for (PaymentTransactionPaymentStatus status : values()) {
+            assertSame(status, fromShortCode(status.getShortCode()));
+        }
+        assertNull(fromShortCode(null));
+        assertNull(fromShortCode(""));
+        assertNull(fromShortCode("AA"));
+        assertNull(fromShortCode("X"));
+        assertNull(fromShortCode("é"));
+    }
+
+    @Test
+    void noonStatusMapping() {
+        assertEquals(AUTHORIZED, NoonPaymentStatus.getPaymentTransactionPaymentStatus("CAPTURED"));
+        assertEquals(AUTHORIZED, NoonPaymentStatus.getPaymentTransactionPaymentStatus("3DS_RESULT_VERIFIED"));
+        assertEquals(DECLINED, NoonPaymentStatus.getPaymentTransactionPaymentStatus("REJECTED"));
+        assertEquals(ERROR, NoonPaymentStatus.getPaymentTransactionPaymentStatus("FAILED"));
+        assertEquals(PARTIALLY_REVERSED, NoonPaymentStatus.getPaymentTransactionPaymentStatus("PARTIALLY_REVERSED"));
+        assertThrows(EnumConstantNotPresentException.class, () -> NoonPaymentStatus.getPaymentTransactionPaymentStatus("UNKNOWN"));
+        assertThrows(EnumConstantNotPresentException.class, () -> NoonPaymentStatus.getPaymentTransactionPaymentStatus(null));
+    }
+
+    @Test
+    void paymentStatusOfShortCode() {
+        assertEquals(PaymentStatus.SUCCESS.getStatus(), PaymentUtil.getPaymentStatus("A"));
+        assertEquals(PaymentStatus.SUCCESS.getStatus(), PaymentUtil.getPaymentStatus("H"));
+        assertEquals(PaymentStatus.INITIATED.getStatus(), PaymentUtil.getPaymentStatus("T"));
+        assertEquals(PaymentStatus.FAILED.getStatus(), PaymentUtil.getPaymentStatus(":"));
+        assertEquals(PaymentStatus.UNKNOWN.getStatus(), PaymentUtil.getPaymentStatus("X"));
+        assertEquals(PaymentStatus.UNKNOWN.getStatus(), PaymentUtil.getPaymentStatus(null));
+        assertEquals(PaymentStatus.UNKNOWN.getStatus(), PaymentUtil.getPaymentStatus("AB"));
+    }
+}
@@ -0,0 +1,78 @@
+package com.safa.payment.config;
+
+import com.safa.payment.service.KafkaConsumerService;
+import com.safa.payment.service.KafkaFailureRouter;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.MockConsumer;
+import org.apache.kafka.clients.consumer.OffsetResetStrategy;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.junit.jupiter.api.Test;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.listener.DefaultErrorHandler;
+import org.springframework.kafka.support.SendResult;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Dead letter recovery of the listener containers error handler
+ *
+ * @author Qusai Safa
+ */
+class KafkaRetryConfigTest {
+
+    private final KafkaRetryConfig kafkaRetryConfig = new KafkaRetryConfig();
+    private final List<ProducerRecord<String, String>> sent = new ArrayList<>();
+    private final KafkaFailureRouter router = new KafkaFailureRouter(new KafkaTemplate<>(() -> {
+        throw new UnsupportedOperationException("No producer in the tests");
+    }) {
+        @Override
+        public CompletableFuture<SendResult<String, String>> send(ProducerRecord<String, String> record) {
+            sent.add(record);
+            return CompletableFuture.completedFuture(new SendResult<>(record, null));
+        }
+    }, new SimpleMeterRegistry(), new long[]{1000, 10_000, 60_000}, 1000);
+
+    @Test
+    void exhaustedRecordIsDeadLettered() {
+        DefaultErrorHandler errorHandler = kafkaRetryConfig.kafkaErrorHandler(router);
+        ConsumerRecord<String, String> record = new ConsumerRecord<>(KafkaConsumerService.PURCHASE_ORDER_TOPIC, 0, 5, "PO-1", "{}");
+
+        int deliveries = redeliverUntilRecovered(errorHandler, record);
+
+        assertTrue(deliveries > 1, "The record is redelivered before it is dead lettered");
+        assertEquals(1, sent.size());
+        assertEquals(KafkaConsumerService.PURCHASE_ORDER_TOPIC + KafkaFailureRouter.DLT_SUFFIX, sent.get(0).topic());
+        assertEquals("PO-1", sent.get(0).key());
+        assertEquals("5", KafkaFailureRouter.header(sent.get(0).headers(), KafkaFailureRouter.ORIGINAL_OFFSET_HEADER));
+    }
+
+    @Test
+    void exhaustedDeadLetterRecordIsNotForwardedAgain() {
+        DefaultErrorHandler errorHandler = kafkaRetryConfig.kafkaErrorHandler(router);
+        ConsumerRecord<String, String> record = new ConsumerRecord<>(
+                KafkaConsumerService.PURCHASE_ORDER_TOPIC + KafkaFailureRouter.DLT_SUFFIX, 0, 5, "PO-1", "{}");
+
+        redeliverUntilRecovered(errorHandler, record);
+
+        assertTrue(sent.isEmpty());
+    }
+
+    /**
+     * Fail the record until the error handler recovers it, returns the number of deliveries
+     */
+    private static int redeliverUntilRecovered(DefaultErrorHandler errorHandler, ConsumerRecord<String, String> record) {
+        MockConsumer<String, String> consumer = new MockConsumer<>(OffsetResetStrategy.EARLIEST);
+        RuntimeException failure = new IllegalStateException("slack down");
+        for (int delivery = 1; delivery <= 100; delivery++) {
+            if (errorHandler.handleOne(failure, record, consumer, null)) {
+                return delivery;
+            }
+        }
+        return fail("The record was never recovered");
+    }
+}
@@ -0,0 +1,117 @@
+package com.safa.payment.repository;
+
+import com.safa.payment.common.PaymentGateway;
+import com.safa.payment.common.WebhookInboxStatus;
+import com.safa.payment.entity.WebhookInbox;
+import org.hibernate.SessionFactory;
+import org.hibernate.boot.model.naming.CamelCaseToUnderscoresNamingStrategy;
+import org.hibernate.cfg.Configuration;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.jpa.repository.Query;
+
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Due batch of the webhook inbox worker, only the oldest unfinished webhook of an order is due.
+ * Runs the native query of the repository on an in memory database in PostgreSQL mode
+ *
+ * @author Qusai Safa
+ */
+class WebhookInboxRepositoryTest {
+
+    private static final long MINUTE_MS = 60_000;
+
+    private final SessionFactory sessionFactory = sessionFactory();
+    private final Date now = new Date();
+
+    @AfterEach
+    void close() {
+        sessionFactory.close();
+    }
+
+    @Test
+    void oneWebhookPerOrderInReceivedOrder() throws ReflectiveOperationException {
+        long firstOfA = add("A", WebhookInboxStatus.PENDING, -1);
+        long secondOfA = add("A", WebhookInboxStatus.PENDING, -1);
+        long firstOfB = add("B", WebhookInboxStatus.PENDING, -1);
+        add("A", WebhookInboxStatus.PENDING, -1);
+
+        assertEquals(List.of(firstOfA, firstOfB), lockDueBatch(10));
+
+        setStatus(firstOfA, WebhookInboxStatus.DONE);
+        assertEquals(List.of(secondOfA, firstOfB), lockDueBatch(10));
+    }
+
+    @Test
+    void webhookWaitingForRetryHoldsBackItsOrder() throws ReflectiveOperationException {
+        // The first webhook of A failed and waits for its retry, the next ones of A wait behind it
+        long retry = add("A", WebhookInboxStatus.PENDING, 5);
+        long nextOfA = add("A", WebhookInboxStatus.PENDING, -1);
+        // Claimed by a worker, visible again once its visibility timeout is over
+        add("B", WebhookInboxStatus.PROCESSING, 1);
+        add("B", WebhookInboxStatus.PENDING, -1);
+        long expiredClaim = add("C", WebhookInboxStatus.PROCESSING, -1);
+        // Finished webhooks don't hold back their order
+        add("D", WebhookInboxStatus.DONE, -1);
+        add("D", WebhookInboxStatus.FAILED, -1);
+        long nextOfD = add("D", WebhookInboxStatus.PENDING, -1);
+
+        assertEquals(List.of(expiredClaim, nextOfD), lockDueBatch(10));
+
+        setStatus(retry, WebhookInboxStatus.FAILED);
+        assertEquals(List.of(nextOfA, expiredClaim, nextOfD), lockDueBatch(10));
+    }
+
+    @Test
+    void batchSizeLimitsTheOldestFirst() throws ReflectiveOperationException {
+        long first = add("A", WebhookInboxStatus.PENDING, -1);
+        long second = add("B", WebhookInboxStatus.PENDING, -1);
+        add("C", WebhookInboxStatus.PENDING, -1);
+
+        assertEquals(List.of(first, second), lockDueBatch(2));
+    }
+
+    private long add(String orderKey, WebhookInboxStatus status, int dueInMinutes) {
+        WebhookInbox webhookInbox = new WebhookInbox();
+        webhookInbox.setGateway(PaymentGateway.NOON);
+        webhookInbox.setEventKey(UUID.randomUUID().toString());
+        webhookInbox.setOrderKey("NOON:" + orderKey);
+        webhookInbox.setPayload("{}");
+        webhookInbox.setStatus(status);
+        webhookInbox.setNextAttemptAt(new Date(now.getTime() + dueInMinutes * MINUTE_MS));
+        sessionFactory.inTransaction(session -> session.persist(webhookInbox));
+        return webhookInbox.getId();
+    }
+
+    private void setStatus(long id, WebhookInboxStatus status) {
+        sessionFactory.inTransaction(session -> session.get(WebhookInbox.class, id).setStatus(status));
+    }
+
+    /**
+     * Ids of the due batch selected by the repository query
+     */
+    private List<Long> lockDueBatch(int batchSize) throws ReflectiveOperationException {
+        String sql = WebhookInboxRepository.class.getMethod("lockDueBatch", Date.class, int.class).getAnnotation(Query.class).value();
+        return sessionFactory.fromTransaction(session -> session.createNativeQuery(sql, WebhookInbox.class)
+                .setParameter("now", now)
+                .setParameter("batchSize", batchSize)
+                .getResultList()
+                .stream()
+                .map(WebhookInbox::getId)
+                .toList());
+    }
+
+    private static SessionFactory sessionFactory() {
+        return new Configuration()
+                .addAnnotatedClass(WebhookInbox.class)
+                .setPhysicalNamingStrategy(new CamelCaseToUnderscoresNamingStrategy())
+                .setProperty("hibernate.connection.url", "jdbc:h2:mem:" + UUID.randomUUID() + ";MODE=PostgreSQL")
+                .setProperty("hibernate.hbm2ddl.auto", "create-drop")
+                .buildSessionFactory();
+    }
+}
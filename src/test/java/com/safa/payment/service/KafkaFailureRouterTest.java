@@ -0,0 +1,201 @@
+package com.safa.payment.service;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.safa.payment.exception.InternalPaymentException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.header.Headers;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.support.SendResult;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static com.safa.payment.service.KafkaFailureRouter.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Retry tier selection, forwarded headers and dead letter routing
+ *
+ * @author Qusai Safa
+ */
+class KafkaFailureRouterTest {
+
+    private static final String TOPIC = "purchase_order";
+    private static final long[] DELAYS_MS = {1000, 10_000, 60_000};
+
+    private final RecordingKafkaTemplate kafkaTemplate = new RecordingKafkaTemplate();
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final KafkaFailureRouter router = new KafkaFailureRouter(kafkaTemplate, meterRegistry, DELAYS_MS, 1000);
+
+    @Test
+    void firstFailureGoesToFirstRetryTier() {
+        long before = System.currentTimeMillis();
+        router.retry(new ConsumerRecord<>(TOPIC, 2, 42, "PO-1", "{}"), new IllegalStateException("gateway down"));
+
+        ProducerRecord<String, String> forwarded = kafkaTemplate.single();
+        assertEquals(TOPIC + RETRY_TOPIC_INFIX + 0, forwarded.topic());
+        assertEquals("PO-1", forwarded.key());
+        assertEquals("{}", forwarded.value());
+        Headers headers = forwarded.headers();
+        assertEquals(TOPIC, header(headers, ORIGINAL_TOPIC_HEADER));
+        assertEquals("2", header(headers, ORIGINAL_PARTITION_HEADER));
+        assertEquals("42", header(headers, ORIGINAL_OFFSET_HEADER));
+        assertEquals("1", header(headers, ATTEMPT_HEADER));
+        long dueAt = Long.parseLong(header(headers, DUE_AT_HEADER));
+        assertTrue(dueAt >= before + DELAYS_MS[0] && dueAt <= System.currentTimeMillis() + DELAYS_MS[0], String.valueOf(dueAt));
+        assertEquals(IllegalStateException.class.getName(), header(headers, EXCEPTION_CLASS_HEADER));
+        assertEquals("gateway down", header(headers, EXCEPTION_MESSAGE_HEADER));
+        assertTrue(header(headers, EXCEPTION_STACKTRACE_HEADER).startsWith(IllegalStateException.class.getName()));
+        assertEquals(1, meterRegistry.get("payment.kafka.retried").tag("topic", TOPIC).tag("tier", "0").counter().count());
+    }
+
+    @Test
+    void retryRecordMovesToNextTierAndKeepsOriginalPosition() {
+        ConsumerRecord<String, String> retryRecord = retryRecord(1);
+        router.retry(retryRecord, new IllegalStateException("still down"));
+
+        ProducerRecord<String, String> forwarded = kafkaTemplate.single();
+        assertEquals(TOPIC + RETRY_TOPIC_INFIX + 1, forwarded.topic());
+        assertEquals(TOPIC, header(forwarded.headers(), ORIGINAL_TOPIC_HEADER));
+        assertEquals("2", header(forwarded.headers(), ORIGINAL_PARTITION_HEADER));
+        assertEquals("42", header(forwarded.headers(), ORIGINAL_OFFSET_HEADER));
+        assertEquals("2", header(forwarded.headers(), ATTEMPT_HEADER));
+        // One header of each, not the retry record headers plus the new ones
+        assertEquals(1, count(forwarded.headers(), ORIGINAL_TOPIC_HEADER));
+        assertEquals(1, count(forwarded.headers(), ATTEMPT_HEADER));
+        assertEquals(1, meterRegistry.get("payment.kafka.retried").tag("tier", "1").counter().count());
+    }
+
+    @Test
+    void exhaustedRetriesGoToDeadLetterTopic() {
+        router.retry(retryRecord(DELAYS_MS.length), new IllegalStateException("still down"));
+
+        ProducerRecord<String, String> forwarded = kafkaTemplate.single();
+        assertEquals(TOPIC + DLT_SUFFIX, forwarded.topic());
+        assertEquals(String.valueOf(DELAYS_MS.length), header(forwarded.headers(), ATTEMPT_HEADER));
+        assertNull(header(forwarded.headers(), DUE_AT_HEADER));
+        assertEquals("42", header(forwarded.headers(), ORIGINAL_OFFSET_HEADER));
+        assertEquals(1, meterRegistry.get("payment.kafka.dead_lettered").tag("topic", TOPIC).counter().count());
+        assertTrue(meterRegistry.find("payment.kafka.retried").counters().isEmpty());
+    }
+
+    @Test
+    void failuresThatCantSucceedSkipTheRetries() {
+        ConsumerRecord<String, String> record = new ConsumerRecord<>(TOPIC, 0, 1, "PO-1", "not json");
+        router.retry(record, new IllegalArgumentException("bad event"));
+        router.retry(record, new ResponseStatusException(HttpStatus.BAD_REQUEST, "rejected"));
+        router.retry(record, new IllegalStateException("unparsable", new JsonParseException(null, "unexpected token")));
+
+        assertEquals(TOPIC + DLT_SUFFIX, kafkaTemplate.sent.get(0).topic());
+        assertEquals(TOPIC + DLT_SUFFIX, kafkaTemplate.sent.get(1).topic());
+        // Only the exception itself decides, the root cause is reported in the headers
+        assertEquals(TOPIC + RETRY_TOPIC_INFIX + 0, kafkaTemplate.sent.get(2).topic());
+        assertEquals(JsonParseException.class.getName(), header(kafkaTemplate.sent.get(2).headers(), EXCEPTION_CLASS_HEADER));
+    }
+
+    @Test
+    void conflictsAndServerErrorsAreRetried() {
+        ConsumerRecord<String, String> record = new ConsumerRecord<>(TOPIC, 0, 1, "PO-1", "{}");
+        router.retry(record, new ResponseStatusException(HttpStatus.CONFLICT, "order busy"));
+        router.retry(record, new ResponseStatusException(HttpStatus.BAD_GATEWAY, "gateway error"));
+
+        assertEquals(TOPIC + RETRY_TOPIC_INFIX + 0, kafkaTemplate.sent.get(0).topic());
+        assertEquals(TOPIC + RETRY_TOPIC_INFIX + 0, kafkaTemplate.sent.get(1).topic());
+    }
+
+    @Test
+    void fewerDelaysMeanFewerTiers() {
+        KafkaFailureRouter singleTier = new KafkaFailureRouter(kafkaTemplate, meterRegistry, new long[]{500}, 1000);
+        singleTier.retry(retryRecord(1), new IllegalStateException("still down"));
+
+        assertEquals(TOPIC + DLT_SUFFIX, kafkaTemplate.single().topic());
+        assertThrows(IllegalArgumentException.class,
+                () -> new KafkaFailureRouter(kafkaTemplate, meterRegistry, new long[]{1, 2, 3, 4}, 1000));
+    }
+
+    @Test
+    void failedSendIsNotSwallowed() {
+        kafkaTemplate.failure = new IllegalStateException("broker down");
+        ConsumerRecord<String, String> record = new ConsumerRecord<>(TOPIC, 0, 1, "PO-1", "{}");
+
+        assertThrows(InternalPaymentException.class, () -> router.retry(record, new IllegalStateException("gateway down")));
+        assertThrows(InternalPaymentException.class, () -> router.deadLetter(record, new IllegalStateException("gateway down")));
+        assertTrue(meterRegistry.find("payment.kafka.retried").counters().isEmpty());
+        assertTrue(meterRegistry.find("payment.kafka.dead_lettered").counters().isEmpty());
+    }
+
+    @Test
+    void remainingDelayOfRetryRecord() {
+        ConsumerRecord<String, String> record = new ConsumerRecord<>(TOPIC + RETRY_TOPIC_INFIX + 0, 0, 0, "PO-1", "{}");
+        assertEquals(0, remainingDelayMs(record));
+        record.headers().add(DUE_AT_HEADER, bytes(String.valueOf(System.currentTimeMillis() + 5000)));
+        long remaining = remainingDelayMs(record);
+        assertTrue(remaining > 4000 && remaining <= 5000, String.valueOf(remaining));
+
+        ConsumerRecord<String, String> due = new ConsumerRecord<>(TOPIC + RETRY_TOPIC_INFIX + 0, 0, 0, "PO-1", "{}");
+        due.headers().add(DUE_AT_HEADER, bytes(String.valueOf(System.currentTimeMillis() - 5000)));
+        assertEquals(0, remainingDelayMs(due));
+    }
+
+    /**
+     * Record of the retry topic of the given attempt, first consumed from partition 2 offset 42 of the topic
+     */
+    private static ConsumerRecord<String, String> retryRecord(int attempt) {
+        ConsumerRecord<String, String> record =
+                new ConsumerRecord<>(TOPIC + RETRY_TOPIC_INFIX + (attempt - 1), 0, 7, "PO-1", "{}");
+        record.headers().add(ORIGINAL_TOPIC_HEADER, bytes(TOPIC));
+        record.headers().add(ORIGINAL_PARTITION_HEADER, bytes("2"));
+        record.headers().add(ORIGINAL_OFFSET_HEADER, bytes("42"));
+        record.headers().add(ATTEMPT_HEADER, bytes(String.valueOf(attempt)));
+        record.headers().add(DUE_AT_HEADER, bytes("1"));
+        return record;
+    }
+
+    private static int count(Headers headers, String name) {
+        int count = 0;
+        for (var ignored : headers.headers(name)) {
+            count++;
+        }
+        return count;
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Keeps the sent records instead of sending them, acknowledged at once or failed with {@link #failure}
+     */
+    private static class RecordingKafkaTemplate extends KafkaTemplate<String, String> {
+
+        private final List<ProducerRecord<String, String>> sent = new ArrayList<>();
+        private RuntimeException failure;
+
+        RecordingKafkaTemplate() {
+            super(() -> {
+                throw new UnsupportedOperationException("No producer in the tests");
+            });
+        }
+
+        @Override
+        public CompletableFuture<SendResult<String, String>> send(ProducerRecord<String, String> record) {
+            if (failure != null) {
+                return CompletableFuture.failedFuture(failure);
+            }
+            sent.add(record);
+            return CompletableFuture.completedFuture(new SendResult<>(record, null));
+        }
+
+        ProducerRecord<String, String> single() {
+            assertEquals(1, sent.size());
+            return sent.get(0);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.safa.payment.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.OptimisticLockException;
+import org.hibernate.StaleObjectStateException;
+import org.junit.jupiter.api.Test;
+import org.springframework.orm.ObjectOptimisticLockingFailureException;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Retry of the optimistic locking conflicts, the persistence context is cleared between attempts
+ *
+ * @author Qusai Safa
+ */
+class OptimisticRetryTest {
+
+    private static final int MAX_ATTEMPTS = 3;
+    private static final String OPERATION = "test_operation";
+    private static final String CONFLICTS_METRIC = "payment.optimistic_lock.conflicts";
+    private static final String EXHAUSTED_METRIC = "payment.optimistic_lock.exhausted";
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final AtomicInteger clears = new AtomicInteger();
+    private final AtomicInteger attempts = new AtomicInteger();
+    private final OptimisticRetry optimisticRetry = new OptimisticRetry(entityManager(), meterRegistry, MAX_ATTEMPTS, 1);
+
+    @Test
+    void conflictThenSuccess() {
+        String result = optimisticRetry.call(OPERATION, () -> {
+            if (attempts.incrementAndGet() == 1) {
+                throw new ObjectOptimisticLockingFailureException("PurchaseOrder", 1L);
+            }
+            return "saved";
+        });
+
+        assertEquals("saved", result);
+        assertEquals(2, attempts.get());
+        assertEquals(1, clears.get());
+        assertEquals(1, meterRegistry.get(CONFLICTS_METRIC).tag("operation", OPERATION).counter().count());
+        assertNull(meterRegistry.find(EXHAUSTED_METRIC).counter());
+    }
+
+    @Test
+    void wrappedConflictsAreRetried() {
+        optimisticRetry.run(OPERATION, () -> {
+            switch (attempts.incrementAndGet()) {
+                case 1 -> throw new IllegalStateException("Transaction failed", new OptimisticLockException("stale"));
+                case 2 -> throw new IllegalStateException(new StaleObjectStateException("PaymentTransaction", 1L));
+                default -> {
+                }
+            }
+        });
+
+        assertEquals(3, attempts.get());
+        assertEquals(2, meterRegistry.get(CONFLICTS_METRIC).counter().count());
+        assertNull(meterRegistry.find(EXHAUSTED_METRIC).counter());
+    }
+
+    @Test
+    void exhaustedAfterMaxAttempts() {
+        ObjectOptimisticLockingFailureException conflict = new ObjectOptimisticLockingFailureException("PurchaseOrder", 1L);
+
+        ObjectOptimisticLockingFailureException thrown = assertThrows(ObjectOptimisticLockingFailureException.class,
+                () -> optimisticRetry.run(OPERATION, () -> {
+                    attempts.incrementAndGet();
+                    throw conflict;
+                }));
+
+        assertSame(conflict, thrown);
+        assertEquals(MAX_ATTEMPTS, attempts.get());
+        assertEquals(MAX_ATTEMPTS - 1, clears.get());
+        assertEquals(MAX_ATTEMPTS, meterRegistry.get(CONFLICTS_METRIC).tag("operation", OPERATION).counter().count());
+        assertEquals(1, meterRegistry.get(EXHAUSTED_METRIC).tag("operation", OPERATION).counter().count());
+    }
+
+    @Test
+    void otherFailuresAreNotRetried() {
+        assertThrows(IOException.class, () -> optimisticRetry.run(OPERATION, () -> {
+            attempts.incrementAndGet();
+            throw new IOException("gateway down");
+        }));
+
+        assertEquals(1, attempts.get());
+        assertEquals(0, clears.get());
+        assertNull(meterRegistry.find(CONFLICTS_METRIC).counter());
+    }
+
+    /**
+     * Entity manager counting the clears, the retry doesn't use anything else
+     */
+    private EntityManager entityManager() {
+        return (EntityManager) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{EntityManager.class},
+                (proxy, method, args) -> {
+                    if (!method.getName().equals("clear")) {
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                    clears.incrementAndGet();
+                    return null;
+                });
+    }
+}
@@ -0,0 +1,161 @@
+package com.safa.payment.service;
+
+import com.safa.payment.dto.SlackErrorMessageDto;
+import com.safa.payment.entity.OutboxEvent;
+import com.safa.payment.repository.OutboxEventRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.errors.RecordTooLargeException;
+import org.apache.kafka.common.errors.TimeoutException;
+import org.junit.jupiter.api.Test;
+import org.springframework.kafka.core.KafkaProducerException;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.support.SendResult;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Ordering groups, held back events and parking of the outbox relay
+ *
+ * @author Qusai Safa
+ */
+class OutboxRelayTest {
+
+    private static final int MAX_ATTEMPTS = 3;
+    private static final String TOO_LARGE = "too large";
+    private static final String BROKER_DOWN = "broker down";
+    private static final String NO_ACK = "no ack";
+
+    private final List<OutboxEvent> outbox = new ArrayList<>();
+    private final List<Object> events = new ArrayList<>();
+    private final List<String> sent = new ArrayList<>();
+    private final OutboxRelay relay;
+
+    OutboxRelayTest() throws ReflectiveOperationException {
+        relay = new OutboxRelay(outboxEventRepository(), new KafkaTemplate<>(() -> {
+            throw new UnsupportedOperationException("No producer in the tests");
+        }) {
+            @Override
+            public CompletableFuture<SendResult<String, String>> send(String topic, String key, String data) {
+                ProducerRecord<String, String> record = new ProducerRecord<>(topic, key, data);
+                return switch (data) {
+                    case TOO_LARGE -> CompletableFuture.failedFuture(
+                            new KafkaProducerException(record, "Send failed", new RecordTooLargeException("Record too large")));
+                    case BROKER_DOWN -> CompletableFuture.failedFuture(
+                            new KafkaProducerException(record, "Send failed", new TimeoutException("Broker down")));
+                    case NO_ACK -> new CompletableFuture<>();
+                    default -> {
+                        sent.add(data);
+                        yield CompletableFuture.completedFuture(new SendResult<>(record, null));
+                    }
+                };
+            }
+        }, null, Runnable::run, events::add, new SimpleMeterRegistry());
+        setField("batchSize", 100);
+        setField("sendTimeoutMs", 200L);
+        setField("maxAttempts", MAX_ATTEMPTS);
+    }
+
+    @Test
+    void acknowledgedEventsAreDeletedInOrderPerKey() {
+        add("payment", "PO-1", "first");
+        add("payment", "PO-1", "second");
+        add("payment", "PO-2", "other order");
+
+        assertEquals(3, relay.publishBatch());
+        assertEquals(List.of("first", "second", "other order"), sent);
+        assertTrue(outbox.isEmpty());
+    }
+
+    @Test
+    void permanentFailureParksTheEventAndReleasesItsGroup() {
+        OutboxEvent tooLarge = add("notifications", "7", TOO_LARGE);
+        OutboxEvent next = add("notifications", "7", "next of user 7");
+        add("notifications", "8", "user 8");
+
+        assertEquals(1, relay.publishBatch());
+        assertEquals(List.of("user 8"), sent);
+        assertTrue(tooLarge.isParked());
+        assertEquals(1, tooLarge.getAttempts());
+        assertTrue(tooLarge.getLastError().contains("Send failed"), tooLarge.getLastError());
+        // Held back behind the failed event in this poll, not failed itself
+        assertFalse(next.isParked());
+        assertEquals(0, next.getAttempts());
+        assertEquals(1, events.size());
+        assertTrue(((SlackErrorMessageDto) events.get(0)).getErrorMessage().contains("notifications"));
+
+        // The next poll skips the parked event
+        assertEquals(1, relay.publishBatch());
+        assertEquals(List.of("user 8", "next of user 7"), sent);
+        assertEquals(List.of(tooLarge), outbox);
+    }
+
+    @Test
+    void retriableFailureIsParkedAfterMaxAttempts() {
+        OutboxEvent brokerDown = add("referral", "1", BROKER_DOWN);
+        add("referral", "1", "held back");
+
+        for (int attempt = 1; attempt < MAX_ATTEMPTS; attempt++) {
+            assertEquals(0, relay.publishBatch());
+            assertEquals(attempt, brokerDown.getAttempts());
+            assertFalse(brokerDown.isParked());
+        }
+        assertTrue(events.isEmpty());
+        assertTrue(sent.isEmpty());
+
+        assertEquals(0, relay.publishBatch());
+        assertTrue(brokerDown.isParked());
+        assertEquals(1, events.size());
+        assertEquals(1, relay.publishBatch());
+        assertEquals(List.of("held back"), sent);
+    }
+
+    @Test
+    void unacknowledgedSendIsRetried() {
+        OutboxEvent noAck = add("payment", null, NO_ACK);
+        add("payment", null, "same topic without key");
+
+        assertEquals(0, relay.publishBatch());
+        assertEquals(1, noAck.getAttempts());
+        assertEquals("Send timed out", noAck.getLastError());
+        assertFalse(noAck.isParked());
+        assertEquals(2, outbox.size());
+    }
+
+    private OutboxEvent add(String topic, String key, String payload) {
+        OutboxEvent outboxEvent = new OutboxEvent(topic, key, payload);
+        outboxEvent.setId((long) outbox.size() + 1);
+        outbox.add(outboxEvent);
+        return outboxEvent;
+    }
+
+    /**
+     * Outbox table in memory, the methods the relay doesn't call fail
+     */
+    @SuppressWarnings("unchecked")
+    private OutboxEventRepository outboxEventRepository() {
+        return (OutboxEventRepository) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{OutboxEventRepository.class},
+                (proxy, method, args) -> switch (method.getName()) {
+                    case "tryRelayLock" -> true;
+                    case "lockBatch" -> outbox.stream().filter(outboxEvent -> !outboxEvent.isParked()).limit((int) args[0]).toList();
+                    case "deleteAllInBatch" -> {
+                        outbox.removeAll((Collection<OutboxEvent>) args[0]);
+                        yield null;
+                    }
+                    default -> throw new UnsupportedOperationException(method.getName());
+                });
+    }
+
+    private void setField(String name, Object value) throws ReflectiveOperationException {
+        Field field = OutboxRelay.class.getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(relay, value);
+    }
+}
@@ -0,0 +1,133 @@
+package com.safa.payment.service;
+
+import com.safa.payment.entity.PaymentTransaction;
+import com.safa.payment.entity.PurchaseOrder;
+import com.safa.payment.repository.PurchaseOrderRepository;
+import jakarta.persistence.EntityManager;
+import org.hibernate.SessionFactory;
+import org.hibernate.boot.model.naming.CamelCaseToUnderscoresNamingStrategy;
+import org.hibernate.cfg.Configuration;
+import org.hibernate.stat.Statistics;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Latest transaction pointer updates of a batch of payment transactions are flushed once, as batched statements
+ *
+ * @author Qusai Safa
+ */
+class PurchaseOrderServiceBatchingTest {
+
+    @Test
+    void pointerUpdatesAreFlushedOnceAtCommit() {
+        try (SessionFactory sessionFactory = sessionFactory()) {
+            Statistics statistics = writeTransactions(sessionFactory, 5);
+            assertEquals(1, statistics.getFlushCount());
+            assertEquals(0, statistics.getQueryExecutionCount());
+            assertEquals(5, statistics.getEntityUpdateCount());
+            assertEquals(5, statistics.getEntityInsertCount());
+        }
+    }
+
+    @Test
+    void statementCountDoesNotGrowWithTheBatch() {
+        long small;
+        long large;
+        try (SessionFactory sessionFactory = sessionFactory()) {
+            small = writeTransactions(sessionFactory, 5).getPrepareStatementCount();
+        }
+        try (SessionFactory sessionFactory = sessionFactory()) {
+            large = writeTransactions(sessionFactory, 20).getPrepareStatementCount();
+        }
+        assertEquals(small, large);
+    }
+
+    @Test
+    void pointerIsWrittenWithTheVersionedUpdate() {
+        try (SessionFactory sessionFactory = sessionFactory()) {
+            writeTransactions(sessionFactory, 1);
+            sessionFactory.inTransaction(session -> {
+                PurchaseOrder purchaseOrder = session.createQuery("from PurchaseOrder", PurchaseOrder.class).getSingleResult();
+                PaymentTransaction paymentTransaction = session.createQuery("from PaymentTransaction", PaymentTransaction.class)
+                        .getSingleResult();
+                assertEquals(paymentTransaction.getId(), purchaseOrder.getLatestTransactionId());
+                assertEquals("A", purchaseOrder.getLatestStatus());
+                assertTrue(purchaseOrder.getPaid());
+                assertEquals(1L, purchaseOrder.getVersion());
+            });
+        }
+    }
+
+    /**
+     * Save one authorized transaction for each of the given number of existing purchase orders in one database transaction,
+     * returns the statistics of that transaction
+     */
+    private static Statistics writeTransactions(SessionFactory sessionFactory, int orders) {
+        sessionFactory.inTransaction(session -> {
+            for (int i = 0; i < orders; i++) {
+                session.persist(purchaseOrder(i));
+            }
+        });
+        Statistics statistics = sessionFactory.getStatistics();
+        sessionFactory.inTransaction(session -> {
+            List<PurchaseOrder> purchaseOrders = session.createQuery("from PurchaseOrder", PurchaseOrder.class).getResultList();
+            statistics.clear();
+            PurchaseOrderService purchaseOrderService = purchaseOrderService(session);
+            for (PurchaseOrder purchaseOrder : purchaseOrders) {
+                PaymentTransaction paymentTransaction = new PaymentTransaction();
+                paymentTransaction.setPurchaseOrder(purchaseOrder);
+                paymentTransaction.setTransactionStatus("A");
+                paymentTransaction.setCreatedAt(new Date());
+                session.persist(paymentTransaction);
+                purchaseOrderService.updateLatestTransaction(purchaseOrder, paymentTransaction);
+            }
+        });
+        return statistics;
+    }
+
+    /**
+     * Only the latest transaction pointer is tested, the managed purchase orders mustn't go through the repository
+     */
+    private static PurchaseOrderService purchaseOrderService(EntityManager entityManager) {
+        PurchaseOrderRepository purchaseOrderRepository = (PurchaseOrderRepository) Proxy.newProxyInstance(
+                PurchaseOrderServiceBatchingTest.class.getClassLoader(), new Class<?>[]{PurchaseOrderRepository.class},
+                (proxy, method, args) -> {
+                    throw new UnsupportedOperationException(method.getName());
+                });
+        return new PurchaseOrderService(purchaseOrderRepository, null, null, null, null, null, null, null, entityManager);
+    }
+
+    private static PurchaseOrder purchaseOrder(int i) {
+        PurchaseOrder purchaseOrder = new PurchaseOrder();
+        purchaseOrder.setReferenceId("PO-" + i);
+        purchaseOrder.setReferenceType("order");
+        purchaseOrder.setCustomerId((long) i);
+        return purchaseOrder;
+    }
+
+    /**
+     * Hibernate on an in memory database with the JDBC batching of the application
+     */
+    private static SessionFactory sessionFactory() {
+        return new Configuration()
+                .addAnnotatedClass(PurchaseOrder.class)
+                .addAnnotatedClass(PaymentTransaction.class)
+                .setPhysicalNamingStrategy(new CamelCaseToUnderscoresNamingStrategy())
+                // Money.value is a reserved word in H2, not in PostgreSQL
+                .setProperty("hibernate.connection.url", "jdbc:h2:mem:" + UUID.randomUUID() + ";MODE=PostgreSQL;NON_KEYWORDS=VALUE")
+                .setProperty("hibernate.hbm2ddl.auto", "create-drop")
+                .setProperty("hibernate.jdbc.batch_size", "50")
+                .setProperty("hibernate.order_inserts", "true")
+                .setProperty("hibernate.order_updates", "true")
+                .setProperty("hibernate.jdbc.batch_versioned_data", "true")
+                .setProperty("hibernate.generate_statistics", "true")
+                .buildSessionFactory();
+    }
+}
@@ -0,0 +1,85 @@
+package com.safa.payment.service;
+
+import com.safa.payment.util.BloomFilter;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Qusai Safa
+ */
+class WebhookDeduplicatorTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    @Test
+    void receivedEventIsDuplicate() {
+        WebhookDeduplicator deduplicator = new WebhookDeduplicator(1000, 0.01, 1000, 24, meterRegistry);
+        assertFalse(deduplicator.isDuplicate("telr:1"));
+        deduplicator.markReceived("telr:1", false);
+        assertTrue(deduplicator.isDuplicate("telr:1"));
+        assertFalse(deduplicator.isDuplicate("telr:2"));
+        assertEquals(1, meterRegistry.get("payment.webhook.duplicates").tag("layer", "memory").counter().count());
+    }
+
+    @Test
+    void storeDuplicatesAreCounted() {
+        WebhookDeduplicator deduplicator = new WebhookDeduplicator(1000, 0.01, 1000, 24, meterRegistry);
+        deduplicator.markReceived("noon:1", true);
+        assertTrue(deduplicator.isDuplicate("noon:1"));
+        assertEquals(1, meterRegistry.get("payment.webhook.duplicates").tag("layer", "store").counter().count());
+    }
+
+    @Test
+    void previousGenerationIsKeptOneRotation() {
+        int expectedInsertions = 100;
+        WebhookDeduplicator deduplicator = new WebhookDeduplicator(expectedInsertions, 0.001, 10_000, 24, meterRegistry);
+        for (int i = 0; i < expectedInsertions; i++) {
+            deduplicator.markReceived("first:" + i, false);
+        }
+        // Rotated, the first generation is the previous filter
+        for (int i = 0; i < expectedInsertions / 2; i++) {
+            deduplicator.markReceived("second:" + i, false);
+        }
+        for (int i = 0; i < expectedInsertions; i++) {
+            assertTrue(deduplicator.isDuplicate("first:" + i), "first:" + i);
+        }
+        for (int i = expectedInsertions / 2; i < expectedInsertions; i++) {
+            deduplicator.markReceived("second:" + i, false);
+        }
+        // Rotated again, the first generation is dropped even though the exact set still has its keys
+        int stillDetected = 0;
+        for (int i = 0; i < expectedInsertions; i++) {
+            if (deduplicator.isDuplicate("first:" + i)) {
+                stillDetected++;
+            }
+        }
+        assertTrue(stillDetected < expectedInsertions / 10, "still detected " + stillDetected);
+        for (int i = 0; i < expectedInsertions; i++) {
+            assertTrue(deduplicator.isDuplicate("second:" + i), "second:" + i);
+        }
+    }
+
+    @Test
+    void bloomOnlyHitIsNotDuplicate() {
+        int expectedInsertions = 1000;
+        double falsePositiveProbability = 0.3;
+        WebhookDeduplicator deduplicator = new WebhookDeduplicator(expectedInsertions, falsePositiveProbability, 10_000, 24, meterRegistry);
+        // Same sizing and hashing as the deduplicator filter, finds a key its filter reports without being added
+        BloomFilter sameFilter = new BloomFilter(expectedInsertions, falsePositiveProbability);
+        for (int i = 0; i < expectedInsertions / 2; i++) {
+            deduplicator.markReceived("telr:" + i, false);
+            sameFilter.put("telr:" + i);
+        }
+        String falsePositive = null;
+        for (int i = 0; falsePositive == null && i < 100_000; i++) {
+            if (sameFilter.mightContain("noon:" + i)) {
+                falsePositive = "noon:" + i;
+            }
+        }
+        assertNotNull(falsePositive);
+        assertFalse(deduplicator.isDuplicate(falsePositive));
+        assertEquals(0, meterRegistry.get("payment.webhook.duplicates").tag("layer", "memory").counter().count());
+    }
+}
@@ -0,0 +1,246 @@
+package com.safa.payment.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.safa.payment.common.PaymentGateway;
+import com.safa.payment.common.WebhookInboxStatus;
+import com.safa.payment.dto.SlackErrorMessageDto;
+import com.safa.payment.dto.noon.NoonTransactionIncomingDto;
+import com.safa.payment.entity.WebhookInbox;
+import com.safa.payment.exception.PaymentTransactionException;
+import com.safa.payment.repository.WebhookInboxRepository;
+import com.safa.payment.service.gateway.Noon.NoonPaymentTransactionService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.DataIntegrityViolationException;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Append and acknowledge of the received webhooks, retry backoff of the failed webhooks and the failed state
+ * once the attempts are exhausted
+ *
+ * @author Qusai Safa
+ */
+class WebhookInboxServiceTest {
+
+    private static final long RETRY_DELAY_MS = 5000;
+    private static final long MAX_RETRY_DELAY_MS = 300_000;
+    private static final int MAX_ATTEMPTS = 8;
+
+    private static final String SIGNATURE = "signed";
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final List<Object> events = new ArrayList<>();
+    private final List<WebhookInbox> inbox = new ArrayList<>();
+    private final List<String> verified = new ArrayList<>();
+    private final List<String> applied = new ArrayList<>();
+    private final WebhookDeduplicator webhookDeduplicator = new WebhookDeduplicator(1000, 0.01, 1000, 24, meterRegistry);
+    // The webhooks are received and retried, the worker isn't run, it doesn't use the other repositories and services
+    private final WebhookInboxService webhookInboxService = new WebhookInboxService(webhookInboxRepository(), webhookDeduplicator,
+            null, null, null, null, noonPaymentTransactionService(), new ObjectMapper(), events::add, null, meterRegistry, 1);
+
+    @AfterEach
+    void shutdown() {
+        webhookInboxService.destroy();
+    }
+
+    @Test
+    void webhookIsAppendedBeforeItIsAcknowledged() {
+        webhookInboxService.receiveNoonWebhook(noonWebhook("event-1"));
+
+        // Stored for the worker, nothing is applied while the gateway waits for the response
+        assertEquals(1, inbox.size());
+        WebhookInbox webhookInbox = inbox.get(0);
+        assertEquals(PaymentGateway.NOON, webhookInbox.getGateway());
+        assertEquals("NOON:event-1", webhookInbox.getEventKey());
+        assertEquals("NOON:188026384542", webhookInbox.getOrderKey());
+        assertEquals(WebhookInboxStatus.PENDING, webhookInbox.getStatus());
+        assertEquals(0, webhookInbox.getAttempts());
+        assertFalse(webhookInbox.getNextAttemptAt().after(new Date()));
+        assertTrue(webhookInbox.getPayload().contains("\"eventId\":\"event-1\""), webhookInbox.getPayload());
+        assertEquals(List.of("NOON:event-1"), verified);
+        assertTrue(applied.isEmpty());
+
+        // Known from now on, the redelivery is dropped before the signature check
+        webhookInboxService.receiveNoonWebhook(noonWebhook("event-1"));
+        assertEquals(1, inbox.size());
+        assertEquals(List.of("NOON:event-1"), verified);
+        assertEquals(1, meterRegistry.get("payment.webhook.duplicates").tag("layer", "memory").counter().count());
+    }
+
+    @Test
+    void invalidSignatureIsNotAppended() {
+        NoonTransactionIncomingDto transactionIncomingDto = noonWebhook("event-1");
+        transactionIncomingDto.setSignature("forged");
+        assertThrows(PaymentTransactionException.class, () -> webhookInboxService.receiveNoonWebhook(transactionIncomingDto));
+        assertTrue(inbox.isEmpty());
+        assertFalse(webhookDeduplicator.isDuplicate("NOON:event-1"));
+    }
+
+    @Test
+    void uniqueKeyViolationIsAcknowledgedAsDuplicate() {
+        // Stored by another instance, unknown to this deduplicator
+        WebhookInbox stored = new WebhookInbox();
+        stored.setEventKey("NOON:event-1");
+        inbox.add(stored);
+
+        webhookInboxService.receiveNoonWebhook(noonWebhook("event-1"));
+
+        assertEquals(List.of(stored), inbox);
+        assertEquals(1, meterRegistry.get("payment.webhook.duplicates").tag("layer", "store").counter().count());
+        assertTrue(webhookDeduplicator.isDuplicate("NOON:event-1"));
+        assertTrue(applied.isEmpty());
+    }
+
+    @Test
+    void retryDelayDoublesWithJitterInUpperHalf() {
+        for (int attempts = 1; attempts <= 6; attempts++) {
+            long delayMs = RETRY_DELAY_MS << (attempts - 1);
+            for (int i = 0; i < 1000; i++) {
+                long retryDelay = WebhookInboxService.retryDelay(attempts, RETRY_DELAY_MS, MAX_RETRY_DELAY_MS);
+                assertTrue(retryDelay >= delayMs / 2 && retryDelay <= delayMs, attempts + ": " + retryDelay);
+            }
+        }
+    }
+
+    @Test
+    void retryDelayIsCapped() {
+        // Large attempt counts don't overflow the shift
+        for (int attempts : new int[]{7, 8, 20, 21, 63, 64, 1000, Integer.MAX_VALUE}) {
+            for (int i = 0; i < 100; i++) {
+                long retryDelay = WebhookInboxService.retryDelay(attempts, RETRY_DELAY_MS, MAX_RETRY_DELAY_MS);
+                assertTrue(retryDelay >= MAX_RETRY_DELAY_MS / 2 && retryDelay <= MAX_RETRY_DELAY_MS, attempts + ": " + retryDelay);
+            }
+        }
+    }
+
+    @Test
+    void retryDelayIsJittered() {
+        long first = WebhookInboxService.retryDelay(3, RETRY_DELAY_MS, MAX_RETRY_DELAY_MS);
+        boolean differs = false;
+        for (int i = 0; i < 100 && !differs; i++) {
+            differs = WebhookInboxService.retryDelay(3, RETRY_DELAY_MS, MAX_RETRY_DELAY_MS) != first;
+        }
+        assertTrue(differs, "Webhooks failing together mustn't retry at the same time");
+    }
+
+    @Test
+    void failedWebhookIsRetriedUntilMaxAttemptsThenFailed() throws ReflectiveOperationException {
+        configure(MAX_ATTEMPTS, RETRY_DELAY_MS, MAX_RETRY_DELAY_MS);
+        WebhookInbox webhookInbox = new WebhookInbox();
+        webhookInbox.setGateway(PaymentGateway.NOON);
+        webhookInbox.setEventKey("NOON:event-1");
+
+        for (int attempts = 1; attempts < MAX_ATTEMPTS; attempts++) {
+            webhookInbox.setAttempts(attempts);
+            webhookInbox.setStatus(WebhookInboxStatus.PROCESSING);
+            long before = System.currentTimeMillis();
+            webhookInboxService.onFailure(webhookInbox, new IllegalStateException("order busy"));
+            long after = System.currentTimeMillis();
+
+            assertEquals(WebhookInboxStatus.PENDING, webhookInbox.getStatus());
+            assertEquals("order busy", webhookInbox.getLastError());
+            long delayMs = Math.min(RETRY_DELAY_MS << (attempts - 1), MAX_RETRY_DELAY_MS);
+            long nextAttemptAt = webhookInbox.getNextAttemptAt().getTime();
+            assertTrue(nextAttemptAt >= before + delayMs / 2 && nextAttemptAt <= after + delayMs, attempts + ": " + nextAttemptAt);
+        }
+        assertTrue(events.isEmpty());
+        assertEquals(MAX_ATTEMPTS - 1, meterRegistry.get("payment.webhook.inbox.retries").tag("gateway", "noon").counter().count());
+
+        webhookInbox.setAttempts(MAX_ATTEMPTS);
+        webhookInbox.setStatus(WebhookInboxStatus.PROCESSING);
+        Date lastNextAttemptAt = webhookInbox.getNextAttemptAt();
+        webhookInboxService.onFailure(webhookInbox, new IllegalStateException("order not found"));
+
+        assertEquals(WebhookInboxStatus.FAILED, webhookInbox.getStatus());
+        assertEquals("order not found", webhookInbox.getLastError());
+        assertSame(lastNextAttemptAt, webhookInbox.getNextAttemptAt());
+        assertEquals(1, meterRegistry.get("payment.webhook.inbox.failed").counter().count());
+        assertEquals(MAX_ATTEMPTS - 1, meterRegistry.get("payment.webhook.inbox.retries").counter().count());
+        assertEquals(1, events.size());
+        String message = ((SlackErrorMessageDto) events.get(0)).getErrorMessage();
+        assertTrue(message.contains("NOON:event-1") && message.contains(MAX_ATTEMPTS + " attempts"), message);
+    }
+
+    @Test
+    void longErrorIsAbbreviated() throws ReflectiveOperationException {
+        configure(MAX_ATTEMPTS, RETRY_DELAY_MS, MAX_RETRY_DELAY_MS);
+        WebhookInbox webhookInbox = new WebhookInbox();
+        webhookInbox.setGateway(PaymentGateway.TELR);
+        webhookInbox.setAttempts(1);
+        webhookInboxService.onFailure(webhookInbox, new IllegalStateException("x".repeat(5000)));
+        assertEquals(2000, webhookInbox.getLastError().length());
+    }
+
+    private static NoonTransactionIncomingDto noonWebhook(String eventId) {
+        NoonTransactionIncomingDto transactionIncomingDto = new NoonTransactionIncomingDto();
+        transactionIncomingDto.setOrderId("188026384542");
+        transactionIncomingDto.setOrderStatus("CAPTURED");
+        transactionIncomingDto.setEventId(eventId);
+        transactionIncomingDto.setEventType("Sale");
+        transactionIncomingDto.setTimeStamp("2024-05-03T10:15:30.1234567Z");
+        transactionIncomingDto.setSignature(SIGNATURE);
+        return transactionIncomingDto;
+    }
+
+    /**
+     * Inbox table in memory, the insert fails on a duplicate event key like the unique constraint
+     */
+    private WebhookInboxRepository webhookInboxRepository() {
+        return (WebhookInboxRepository) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{WebhookInboxRepository.class},
+                (proxy, method, args) -> {
+                    if (!method.getName().equals("saveAndFlush")) {
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                    WebhookInbox webhookInbox = (WebhookInbox) args[0];
+                    if (inbox.stream().anyMatch(stored -> stored.getEventKey().equals(webhookInbox.getEventKey()))) {
+                        throw new DataIntegrityViolationException("duplicate key value violates unique constraint");
+                    }
+                    inbox.add(webhookInbox);
+                    return webhookInbox;
+                });
+    }
+
+    /**
+     * Noon service checking the test signature, the webhooks must not be applied when received
+     */
+    private NoonPaymentTransactionService noonPaymentTransactionService() {
+        return new NoonPaymentTransactionService(null, null, null, null, null, null, null, null, null, null, null, null,
+                null, null, null, null) {
+            @Override
+            public void validateTransactionSignature(NoonTransactionIncomingDto transactionIncomingDto) {
+                verified.add("NOON:" + transactionIncomingDto.getEventId());
+                if (!SIGNATURE.equals(transactionIncomingDto.getSignature())) {
+                    throw new IllegalArgumentException("Invalid payment transaction signature");
+                }
+            }
+
+            @Override
+            public void applyPaymentTransaction(NoonTransactionIncomingDto transactionIncomingDto) {
+                applied.add(transactionIncomingDto.getEventId());
+            }
+        };
+    }
+
+    /**
+     * Set the retry properties, injected by spring in the application
+     */
+    private void configure(int maxAttempts, long retryDelayMs, long maxRetryDelayMs) throws ReflectiveOperationException {
+        setField("maxAttempts", maxAttempts);
+        setField("retryDelayMs", retryDelayMs);
+        setField("maxRetryDelayMs", maxRetryDelayMs);
+    }
+
+    private void setField(String name, Object value) throws ReflectiveOperationException {
+        Field field = WebhookInboxService.class.getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(webhookInboxService, value);
+    }
+}
@@ -0,0 +1,91 @@
+package com.safa.payment.service.gateway;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Traffic shares of the gateway routing and the score of the gateway stats windows
+ *
+ * @author Qusai Safa
+ */
+class GatewayRoutingServiceTest {
+
+    private static final double MIN_SHARE = 0.1;
+    private static final double MAX_SHARE = 0.9;
+    private static final long EXPECTED_LATENCY_MS = 1000;
+    private static final double DELTA = 1e-9;
+
+    @Test
+    void sharesFollowTheScoresWithinBounds() {
+        assertArrayEquals(new double[]{0.75, 0.25}, GatewayRoutingService.boundShares(new double[]{3, 1}, MIN_SHARE, MAX_SHARE), DELTA);
+        assertArrayEquals(new double[]{0.5, 0.5}, GatewayRoutingService.boundShares(new double[]{2, 2}, MIN_SHARE, MAX_SHARE), DELTA);
+    }
+
+    @Test
+    void oneGatewayAvailableGetsAllTheTraffic() {
+        // Above the max share, but there's no other gateway to take the rest
+        assertArrayEquals(new double[]{1, 0}, GatewayRoutingService.boundShares(new double[]{0.5, 0}, MIN_SHARE, MAX_SHARE), DELTA);
+        assertArrayEquals(new double[]{0, 1}, GatewayRoutingService.boundShares(new double[]{0, 1e-12}, MIN_SHARE, MAX_SHARE), DELTA);
+    }
+
+    @Test
+    void everyScoreZeroGivesNoShares() {
+        // selectGateway then falls back to the default gateway
+        assertArrayEquals(new double[]{0, 0}, GatewayRoutingService.boundShares(new double[]{0, 0}, MIN_SHARE, MAX_SHARE), DELTA);
+    }
+
+    @Test
+    void clampedShareIsFixedAndTheRestSplitAgain() {
+        assertArrayEquals(new double[]{0.9, 0.1}, GatewayRoutingService.boundShares(new double[]{99, 1}, MIN_SHARE, MAX_SHARE), DELTA);
+        assertArrayEquals(new double[]{0.1, 0.9}, GatewayRoutingService.boundShares(new double[]{1, 99}, MIN_SHARE, MAX_SHARE), DELTA);
+        assertArrayEquals(new double[]{0.6, 0.2, 0.2}, GatewayRoutingService.boundShares(new double[]{8, 1, 1}, MIN_SHARE, 0.6), DELTA);
+    }
+
+    @Test
+    void bothGatewaysClampedAreRenormalized() {
+        // Bounds that can't be met together, both are clamped then scaled back to a total of 1
+        assertArrayEquals(new double[]{0.5, 0.5}, GatewayRoutingService.boundShares(new double[]{3, 1}, MIN_SHARE, 0.4), DELTA);
+        assertArrayEquals(new double[]{0.5, 0.5}, GatewayRoutingService.boundShares(new double[]{1, 1}, 0.6, MAX_SHARE), DELTA);
+    }
+
+    @Test
+    void emptyWindowScoresAsExpectedLatencyWithEvenOdds() {
+        GatewayRoutingService.GatewayStats stats = new GatewayRoutingService.GatewayStats(10);
+        assertEquals(EXPECTED_LATENCY_MS, stats.meanLatency(EXPECTED_LATENCY_MS), DELTA);
+        assertEquals(0.5 * 0.5 / EXPECTED_LATENCY_MS, stats.score(EXPECTED_LATENCY_MS), DELTA);
+    }
+
+    @Test
+    void scoreIsSmoothedSuccessRatesOverMeanLatency() {
+        GatewayRoutingService.GatewayStats stats = new GatewayRoutingService.GatewayStats(10);
+        stats.recordCall(200, true);
+        stats.recordCall(400, true);
+        stats.recordCall(600, false);
+        stats.recordPayment(true);
+        stats.recordPayment(false);
+        assertEquals(400, stats.meanLatency(EXPECTED_LATENCY_MS), DELTA);
+        assertEquals((3.0 / 5) * (2.0 / 4) / 400, stats.score(EXPECTED_LATENCY_MS), DELTA);
+    }
+
+    @Test
+    void failingGatewayKeepsAPositiveScore() {
+        GatewayRoutingService.GatewayStats stats = new GatewayRoutingService.GatewayStats(4);
+        for (int i = 0; i < 4; i++) {
+            stats.recordCall(0, false);
+            stats.recordPayment(false);
+        }
+        // Zero latency is counted as 1 ms
+        assertEquals((1.0 / 6) * (1.0 / 6), stats.score(EXPECTED_LATENCY_MS), DELTA);
+    }
+
+    @Test
+    void windowKeepsTheLatestSamples() {
+        GatewayRoutingService.GatewayStats stats = new GatewayRoutingService.GatewayStats(2);
+        stats.recordCall(5000, false);
+        stats.recordCall(100, true);
+        stats.recordCall(300, true);
+        assertEquals(200, stats.meanLatency(EXPECTED_LATENCY_MS), DELTA);
+        assertEquals((3.0 / 4) * 0.5 / 200, stats.score(EXPECTED_LATENCY_MS), DELTA);
+    }
+}
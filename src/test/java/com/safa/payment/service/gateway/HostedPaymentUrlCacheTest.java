@@ -0,0 +1,141 @@
+package com.safa.payment.service.gateway;
+
+import com.safa.payment.common.PaymentTransactionPaymentStatus;
+import com.safa.payment.entity.PaymentTransaction;
+import com.safa.payment.entity.PurchaseOrder;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.util.Date;
+import java.util.concurrent.CompletionException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Hosted payment url reuse, a cached url is only returned for the same attempt of an order that can still be paid
+ *
+ * @author Qusai Safa
+ */
+class HostedPaymentUrlCacheTest {
+
+    private static final long PURCHASE_ORDER_ID = 1200;
+    private static final String URL = "https://pay.test/1200";
+
+    private final PaymentTransactionServiceFixture fixture = new PaymentTransactionServiceFixture();
+
+    @Test
+    void hitForTheSameRequestNumberOnly() {
+        HostedPaymentUrlCache cache = new HostedPaymentUrlCache(10, 100, new SimpleMeterRegistry());
+        cache.put(PURCHASE_ORDER_ID, 1, URL, inMinutes(10));
+        assertEquals(URL, cache.get(PURCHASE_ORDER_ID, 1));
+        assertNull(cache.get(PURCHASE_ORDER_ID, 2));
+        assertNull(cache.get(PURCHASE_ORDER_ID + 1, 1));
+
+        // A transaction without expiry
+        cache.put(PURCHASE_ORDER_ID, 2, URL, null);
+        assertEquals(URL, cache.get(PURCHASE_ORDER_ID, 2));
+        assertNull(cache.get(PURCHASE_ORDER_ID, 1), "The url of the previous attempt is replaced");
+
+        cache.invalidate(PURCHASE_ORDER_ID);
+        assertNull(cache.get(PURCHASE_ORDER_ID, 2));
+    }
+
+    @Test
+    void missAfterTheTransactionExpiry() {
+        HostedPaymentUrlCache cache = new HostedPaymentUrlCache(10, 100, new SimpleMeterRegistry());
+        cache.put(PURCHASE_ORDER_ID, 1, URL, new Date(System.currentTimeMillis() - 1));
+        assertNull(cache.get(PURCHASE_ORDER_ID, 1));
+    }
+
+    @Test
+    void sameAttemptReusesTheGatewayUrl() {
+        PurchaseOrder purchaseOrder = fixture.purchaseOrderReadyForPayment(PURCHASE_ORDER_ID, inMinutes(10));
+        String url = fixture.service.createHostedPaymentUrl(purchaseOrder);
+        assertEquals(PaymentTransactionPaymentStatus.INITIATED.getShortCode(), purchaseOrder.getLatestStatus());
+
+        assertEquals(url, fixture.service.createHostedPaymentUrl(purchaseOrder));
+        assertEquals(url, fixture.service.createHostedPaymentUrlAsync(purchaseOrder).join());
+        assertEquals(1, fixture.gatewayCalls.get());
+    }
+
+    @Test
+    void missAfterWebhook() {
+        PurchaseOrder purchaseOrder = fixture.purchaseOrderReadyForPayment(PURCHASE_ORDER_ID, inMinutes(10));
+        fixture.service.createHostedPaymentUrl(purchaseOrder);
+        PaymentTransaction initiated = fixture.service.getLatestPaymentTransaction(purchaseOrder);
+
+        PaymentTransaction declined = new PaymentTransaction();
+        declined.setTransactionStatus(PaymentTransactionPaymentStatus.DECLINED.getShortCode());
+        fixture.service.updateOrSavePaymentTransaction(declined, initiated, purchaseOrder);
+
+        assertNull(fixture.hostedPaymentUrlCache.get(PURCHASE_ORDER_ID, 1));
+        // The declined order can be paid again, with a new attempt and a new gateway order
+        String url = fixture.service.createHostedPaymentUrl(purchaseOrder);
+        assertTrue(url.startsWith("https://pay.test/1200/2/"), url);
+        assertEquals(2, fixture.gatewayCalls.get());
+    }
+
+    @Test
+    void missAfterCancel() {
+        PurchaseOrder purchaseOrder = fixture.purchaseOrderReadyForPayment(PURCHASE_ORDER_ID, inMinutes(10));
+        fixture.service.createHostedPaymentUrl(purchaseOrder);
+
+        fixture.service.cancelPaymentTransaction(fixture.service.getLatestPaymentTransaction(purchaseOrder));
+
+        assertNull(fixture.hostedPaymentUrlCache.get(PURCHASE_ORDER_ID, 1));
+        assertStatus(410, () -> fixture.service.createHostedPaymentUrl(purchaseOrder));
+        assertEquals(1, fixture.gatewayCalls.get());
+    }
+
+    @Test
+    void missOncePaidThroughAnotherInstance() {
+        PurchaseOrder purchaseOrder = fixture.purchaseOrderReadyForPayment(PURCHASE_ORDER_ID, inMinutes(10));
+        fixture.service.createHostedPaymentUrl(purchaseOrder);
+
+        // The webhook was processed by another instance, this cache wasn't invalidated
+        purchaseOrder.setPaid(true);
+        purchaseOrder.setLatestStatus(PaymentTransactionPaymentStatus.AUTHORIZED.getShortCode());
+
+        assertStatus(409, () -> fixture.service.createHostedPaymentUrl(purchaseOrder));
+        assertNull(fixture.hostedPaymentUrlCache.get(PURCHASE_ORDER_ID, 1));
+        assertEquals(1, fixture.gatewayCalls.get());
+    }
+
+    @Test
+    void missWhenTheLatestStatusIsNotPayable() {
+        PurchaseOrder purchaseOrder = fixture.purchaseOrderReadyForPayment(PURCHASE_ORDER_ID, inMinutes(10));
+        fixture.service.createHostedPaymentUrl(purchaseOrder);
+
+        // Cancelled through another instance
+        fixture.setStoredStatus(purchaseOrder.getLatestTransactionId(), PaymentTransactionPaymentStatus.CANCELLED);
+        purchaseOrder.setLatestStatus(PaymentTransactionPaymentStatus.CANCELLED.getShortCode());
+
+        CompletionException e = assertThrows(CompletionException.class, () -> fixture.service.createHostedPaymentUrlAsync(purchaseOrder).join());
+        assertEquals(410, assertInstanceOf(ResponseStatusException.class, e.getCause()).getStatusCode().value());
+        assertNull(fixture.hostedPaymentUrlCache.get(PURCHASE_ORDER_ID, 1));
+        assertEquals(1, fixture.gatewayCalls.get());
+    }
+
+    @Test
+    void missAfterTheExpiryOfTheAttempt() throws InterruptedException {
+        PurchaseOrder purchaseOrder = fixture.purchaseOrderReadyForPayment(PURCHASE_ORDER_ID, new Date(System.currentTimeMillis() + 200));
+        fixture.service.createHostedPaymentUrl(purchaseOrder);
+        assertNotNull(fixture.hostedPaymentUrlCache.get(PURCHASE_ORDER_ID, 1));
+
+        Thread.sleep(300);
+
+        assertNull(fixture.hostedPaymentUrlCache.get(PURCHASE_ORDER_ID, 1));
+        assertStatus(410, () -> fixture.service.createHostedPaymentUrl(purchaseOrder));
+        assertEquals(1, fixture.gatewayCalls.get());
+    }
+
+    private static void assertStatus(int status, Runnable call) {
+        ResponseStatusException e = assertThrows(ResponseStatusException.class, call::run);
+        assertEquals(status, e.getStatusCode().value());
+    }
+
+    private static Date inMinutes(int minutes) {
+        return new Date(System.currentTimeMillis() + minutes * 60_000L);
+    }
+}
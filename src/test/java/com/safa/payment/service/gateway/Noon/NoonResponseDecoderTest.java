@@ -0,0 +1,126 @@
+package com.safa.payment.service.gateway.Noon;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.safa.payment.dto.noon.NoonPaymentResponseDto;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Decoding of the Noon order responses, unknown fields are skipped and missing required fields are reported
+ *
+ * @author Qusai Safa
+ */
+class NoonResponseDecoderTest {
+
+    private final NoonResponseDecoder decoder = new NoonResponseDecoder(new ObjectMapper());
+
+    @Test
+    void createOrderResponse() {
+        NoonPaymentResponseDto responseDto = decoder.decodeOrderResponse(bytes("""
+                {"resultCode": 0, "message": "Processed successfully",
+                 "result": {"nextActions": "CHECKOUT",
+                            "order": {"status": "INITIATED", "id": 296775829137, "amount": 10.5, "errorCode": 0},
+                            "checkoutData": {"postUrl": "https://pay.noon.com/checkout/1", "jsUrl": null}}}
+                """));
+        assertEquals(296775829137L, responseDto.getOrderId());
+        assertEquals("INITIATED", responseDto.getOrderStatus());
+        assertEquals("https://pay.noon.com/checkout/1", responseDto.getPostUrl());
+        assertEquals(0, responseDto.getErrorCode());
+    }
+
+    @Test
+    void streamAndByteArrayDecodeTheSame() {
+        String body = """
+                {"result": {"order": {"id": 7}, "checkoutData": {"postUrl": "https://pay.noon.com/checkout/7"}}}
+                """;
+        NoonPaymentResponseDto fromBytes = decoder.decodeOrderResponse(bytes(body));
+        NoonPaymentResponseDto fromStream = decoder.decodeOrderResponse(stream(body));
+        assertEquals(fromBytes.getOrderId(), fromStream.getOrderId());
+        assertEquals(fromBytes.getPostUrl(), fromStream.getPostUrl());
+    }
+
+    @Test
+    void unknownFieldsAreSkipped() {
+        NoonPaymentResponseDto responseDto = decoder.decodeOrderDetails(stream("""
+                {"unknown": {"nested": [1, {"id": 99}, [true, null]]},
+                 "result": {"transactions": [{"id": 5, "status": "SUCCESS"}],
+                            "order": {"paymentDetails": {"id": "card", "status": "x"}, "id": "123", "tags": [],
+                                      "status": "CAPTURED", "errorCode": 19001, "extra": null},
+                            "checkoutData": {"links": {"postUrl": "ignored"}}},
+                 "trailer": "ignored"}
+                """));
+        assertEquals(123L, responseDto.getOrderId());
+        assertEquals("CAPTURED", responseDto.getOrderStatus());
+        assertEquals(19001, responseDto.getErrorCode());
+        assertNull(responseDto.getPostUrl());
+    }
+
+    @Test
+    void unexpectedTypesOfOptionalFieldsAreSkipped() {
+        NoonPaymentResponseDto responseDto = decoder.decodeOrderDetails(stream("""
+                {"resultCode": "0", "message": 1, "result": {"order": {"id": 1, "status": "AUTHORIZED", "errorCode": "none"}}}
+                """));
+        assertEquals(0, responseDto.getErrorCode());
+    }
+
+    @Test
+    void missingRequiredFields() {
+        assertInvalid("missing field result.order.id",
+                () -> decoder.decodeOrderResponse(bytes("{\"result\": {\"checkoutData\": {\"postUrl\": \"https://pay.noon.com\"}}}")));
+        assertInvalid("missing field result.order.id",
+                () -> decoder.decodeOrderResponse(bytes("{\"result\": {\"order\": {\"id\": null}, \"checkoutData\": {\"postUrl\": \"https://pay.noon.com\"}}}")));
+        assertInvalid("missing field result.checkoutData.postUrl",
+                () -> decoder.decodeOrderResponse(bytes("{\"result\": {\"order\": {\"id\": 1}}}")));
+        assertInvalid("missing field result.checkoutData.postUrl",
+                () -> decoder.decodeOrderResponse(bytes("{\"result\": {\"order\": {\"id\": 1}, \"checkoutData\": {\"postUrl\": null}}}")));
+        assertInvalid("missing field result.order.status",
+                () -> decoder.decodeOrderDetails(stream("{\"result\": {\"order\": {\"id\": 1}}}")));
+        assertInvalid("missing field result",
+                () -> decoder.decodeOrderDetails(stream("{\"order\": {\"id\": 1, \"status\": \"CAPTURED\"}}")));
+    }
+
+    @Test
+    void errorResponseWithoutResult() {
+        assertInvalid("no result, resultCode 19001, message Invalid order",
+                () -> decoder.decodeOrderDetails(stream("{\"resultCode\": 19001, \"message\": \"Invalid order\"}")));
+    }
+
+    @Test
+    void requiredFieldsOfWrongType() {
+        assertInvalid("unexpected START_OBJECT for field result.order.id",
+                () -> decoder.decodeOrderDetails(stream("{\"result\": {\"order\": {\"id\": {}, \"status\": \"CAPTURED\"}}}")));
+        assertInvalid("field result.order.id is not a number: abc",
+                () -> decoder.decodeOrderDetails(stream("{\"result\": {\"order\": {\"id\": \"abc\", \"status\": \"CAPTURED\"}}}")));
+        assertInvalid("unexpected VALUE_NUMBER_INT for field result.checkoutData.postUrl",
+                () -> decoder.decodeOrderResponse(bytes("{\"result\": {\"order\": {\"id\": 1}, \"checkoutData\": {\"postUrl\": 1}}}")));
+    }
+
+    @Test
+    void malformedBodies() {
+        assertInvalid("empty body", () -> decoder.decodeOrderResponse((byte[]) null));
+        assertInvalid("empty body", () -> decoder.decodeOrderResponse(new byte[0]));
+        assertInvalid("empty body", () -> decoder.decodeOrderDetails(null));
+        assertInvalid("unexpected START_ARRAY for field response", () -> decoder.decodeOrderDetails(stream("[]")));
+        assertInvalid("Invalid response from Noon", () -> decoder.decodeOrderDetails(stream("{\"result\": {\"order\": ")));
+    }
+
+    private static void assertInvalid(String reason, Runnable decode) {
+        ResponseStatusException e = assertThrows(ResponseStatusException.class, decode::run);
+        assertEquals(500, e.getStatusCode().value());
+        assertTrue(e.getReason().contains(reason), e.getReason());
+    }
+
+    private static byte[] bytes(String body) {
+        return body.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static InputStream stream(String body) {
+        return new ByteArrayInputStream(bytes(body));
+    }
+}
@@ -0,0 +1,209 @@
+package com.safa.payment.service.gateway;
+
+import com.safa.payment.common.KafkaEventType;
+import com.safa.payment.common.PaymentGateway;
+import com.safa.payment.common.PaymentTransactionPaymentStatus;
+import com.safa.payment.dto.common.HostedPaymentOutGoingDto;
+import com.safa.payment.entity.PaymentTransaction;
+import com.safa.payment.entity.PromoUsage;
+import com.safa.payment.entity.PurchaseOrder;
+import com.safa.payment.repository.PaymentTransactionRepository;
+import com.safa.payment.repository.PurchaseOrderRepository;
+import com.safa.payment.service.KafkaProducerService;
+import com.safa.payment.service.PurchaseOrderService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.persistence.EntityManager;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.core.env.StandardEnvironment;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Payment transaction service of a fake gateway over in memory repositories, for the tests of the hosted payment
+ * and transition flows. Each read of a transaction returns a copy, like a read in another session, and the
+ * conditional status update is atomic like the database one
+ *
+ * @author Qusai Safa
+ */
+class PaymentTransactionServiceFixture {
+
+    final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    final HostedPaymentUrlCache hostedPaymentUrlCache = new HostedPaymentUrlCache(10, 100, meterRegistry);
+    final AtomicInteger gatewayCalls = new AtomicInteger();
+    final List<KafkaEventType> events = Collections.synchronizedList(new ArrayList<>());
+    final PaymentTransactionTransitions paymentTransactionTransitions;
+    final FakeGatewayPaymentTransactionService service;
+
+    private final Map<Long, PaymentTransaction> transactions = new ConcurrentHashMap<>();
+    private final AtomicLong ids = new AtomicLong();
+
+    PaymentTransactionServiceFixture() {
+        PaymentTransactionRepository paymentTransactionRepository = repository(PaymentTransactionRepository.class, (method, args) -> switch (method) {
+            case "save" -> save((PaymentTransaction) args[0]);
+            case "findById" -> Optional.ofNullable(transactions.get((Long) args[0])).map(PaymentTransactionServiceFixture::copy);
+            case "countByPurchaseOrderId" -> transactions.values().stream()
+                    .filter(paymentTransaction -> paymentTransaction.getPurchaseOrder().getId().equals(args[0])).count();
+            case "transitionStatus" -> transitionStatus((Long) args[0], (Collection<?>) args[1], (String) args[2]);
+            case "clearHostedPaymentUrls" -> 0;
+            default -> throw new UnsupportedOperationException(method);
+        });
+        PurchaseOrderRepository purchaseOrderRepository = repository(PurchaseOrderRepository.class, (method, args) -> switch (method) {
+            case "updateLatestStatus", "updateLatestTransaction" -> 1;
+            default -> throw new UnsupportedOperationException(method);
+        });
+        // Nothing is managed, the purchase orders are updated through the repository
+        EntityManager entityManager = repository(EntityManager.class, (method, args) -> switch (method) {
+            case "contains" -> false;
+            case "detach" -> null;
+            default -> throw new UnsupportedOperationException(method);
+        });
+        GatewayResilience gatewayResilience = new GatewayResilience(new StandardEnvironment(), meterRegistry);
+        GatewayRoutingService gatewayRoutingService = new GatewayRoutingService(gatewayResilience, meterRegistry,
+                PaymentGateway.TELR.name(), false, 10, 0.1, 0.9, 1000);
+        PurchaseOrderService purchaseOrderService = new PurchaseOrderService(purchaseOrderRepository, paymentTransactionRepository,
+                null, null, null, null, hostedPaymentUrlCache, gatewayRoutingService, entityManager);
+        paymentTransactionTransitions = new PaymentTransactionTransitions(paymentTransactionRepository, purchaseOrderRepository,
+                entityManager, meterRegistry);
+        KafkaProducerService kafkaProducerService = new KafkaProducerService(null, null) {
+            @Override
+            public void sendPaymentTransactionEvent(PaymentTransaction paymentTransaction, PurchaseOrder purchaseOrder,
+                                                    PromoUsage promoUsage, KafkaEventType kafkaEventType) {
+                events.add(kafkaEventType);
+            }
+        };
+        service = new FakeGatewayPaymentTransactionService(paymentTransactionRepository, kafkaProducerService, purchaseOrderService,
+                event -> {
+                }, hostedPaymentUrlCache, gatewayResilience, gatewayRoutingService, paymentTransactionTransitions);
+    }
+
+    /**
+     * Purchase order with a ready for payment transaction as its latest transaction
+     */
+    PurchaseOrder purchaseOrderReadyForPayment(long id, Date expiresAt) {
+        PurchaseOrder purchaseOrder = new PurchaseOrder();
+        purchaseOrder.setId(id);
+        purchaseOrder.setReferenceId("PO-" + id);
+        purchaseOrder.setReferenceType("order");
+        purchaseOrder.setPaymentGateway(PaymentGateway.TELR);
+        purchaseOrder.setPaid(false);
+        PaymentTransaction paymentTransaction = new PaymentTransaction();
+        paymentTransaction.setPurchaseOrder(purchaseOrder);
+        paymentTransaction.setTransactionStatus(PaymentTransactionPaymentStatus.READY_FOR_PAYMENT.getShortCode());
+        paymentTransaction.setExpiresAt(expiresAt);
+        paymentTransaction.setVersion(0L);
+        save(paymentTransaction);
+        purchaseOrder.setLatestTransactionId(paymentTransaction.getId());
+        purchaseOrder.setLatestStatus(paymentTransaction.getTransactionStatus());
+        return purchaseOrder;
+    }
+
+    /**
+     * Status of the transaction in the repository
+     */
+    String storedStatus(Long paymentTransactionId) {
+        return transactions.get(paymentTransactionId).getTransactionStatus();
+    }
+
+    /**
+     * Change the status in the repository only, like a change processed by another instance
+     */
+    void setStoredStatus(Long paymentTransactionId, PaymentTransactionPaymentStatus status) {
+        transactions.get(paymentTransactionId).setTransactionStatus(status.getShortCode());
+    }
+
+    private PaymentTransaction save(PaymentTransaction paymentTransaction) {
+        if (paymentTransaction.getId() == null) {
+            paymentTransaction.setId(ids.incrementAndGet());
+        }
+        transactions.put(paymentTransaction.getId(), copy(paymentTransaction));
+        return paymentTransaction;
+    }
+
+    private int transitionStatus(Long id, Collection<?> fromShortCodes, String toShortCode) {
+        PaymentTransaction[] won = new PaymentTransaction[1];
+        transactions.computeIfPresent(id, (key, paymentTransaction) -> {
+            if (fromShortCodes.contains(paymentTransaction.getTransactionStatus())) {
+                paymentTransaction.setTransactionStatus(toShortCode);
+                won[0] = paymentTransaction;
+            }
+            return paymentTransaction;
+        });
+        return won[0] != null ? 1 : 0;
+    }
+
+    private static PaymentTransaction copy(PaymentTransaction paymentTransaction) {
+        PaymentTransaction copy = new PaymentTransaction();
+        copy.setId(paymentTransaction.getId());
+        copy.setVersion(paymentTransaction.getVersion());
+        copy.setTransactionStatus(paymentTransaction.getTransactionStatus());
+        copy.setExpiresAt(paymentTransaction.getExpiresAt());
+        copy.setHostedPaymentUrl(paymentTransaction.getHostedPaymentUrl());
+        copy.setHostedPaymentUrlExpiresAt(paymentTransaction.getHostedPaymentUrlExpiresAt());
+        copy.setPurchaseOrder(paymentTransaction.getPurchaseOrder());
+        return copy;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T repository(Class<T> type, RepositoryMethod repositoryMethod) {
+        return (T) Proxy.newProxyInstance(PaymentTransactionServiceFixture.class.getClassLoader(), new Class<?>[]{type},
+                (proxy, method, args) -> repositoryMethod.invoke(method.getName(), args));
+    }
+
+    @FunctionalInterface
+    private interface RepositoryMethod {
+        Object invoke(String method, Object[] args);
+    }
+
+    /**
+     * Gateway answering every create order request with a new url
+     */
+    class FakeGatewayPaymentTransactionService extends CommonPaymentTransactionService {
+
+        FakeGatewayPaymentTransactionService(PaymentTransactionRepository paymentTransactionRepository,
+                                             KafkaProducerService kafkaProducerService, PurchaseOrderService purchaseOrderService,
+                                             ApplicationEventPublisher eventPublisher,
+                                             HostedPaymentUrlCache hostedPaymentUrlCache, GatewayResilience gatewayResilience,
+                                             GatewayRoutingService gatewayRoutingService,
+                                             PaymentTransactionTransitions paymentTransactionTransitions) {
+            super(paymentTransactionRepository, kafkaProducerService, null, purchaseOrderService, null, null, eventPublisher,
+                    hostedPaymentUrlCache, gatewayResilience, gatewayRoutingService, paymentTransactionTransitions);
+        }
+
+        @Override
+        public HostedPaymentOutGoingDto getPayNowUrlByReference(String referenceId, String referenceType) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public PaymentGateway getPaymentGateway() {
+            return PaymentGateway.TELR;
+        }
+
+        @Override
+        protected String requestHostedPaymentUrl(PurchaseOrder purchaseOrder, PaymentTransaction latestPaymentTransaction, int requestNumber) {
+            return "https://pay.test/" + purchaseOrder.getId() + "/" + requestNumber + "/" + gatewayCalls.incrementAndGet();
+        }
+
+        @Override
+        protected CompletableFuture<String> requestHostedPaymentUrlAsync(PurchaseOrder purchaseOrder, PaymentTransaction latestPaymentTransaction,
+                                                                         int requestNumber) {
+            return CompletableFuture.completedFuture(requestHostedPaymentUrl(purchaseOrder, latestPaymentTransaction, requestNumber));
+        }
+
+        @Override
+        public void cancelPaymentTransaction(PaymentTransaction paymentTransaction) {
+            cancelTransactionStatus(paymentTransaction);
+        }
+    }
+}
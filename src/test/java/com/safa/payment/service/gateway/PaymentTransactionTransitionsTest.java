@@ -0,0 +1,156 @@
+package com.safa.payment.service.gateway;
+
+import com.safa.payment.common.KafkaEventType;
+import com.safa.payment.common.PaymentGateway;
+import com.safa.payment.common.PaymentTransactionPaymentStatus;
+import com.safa.payment.common.noon.NoonPaymentStatus;
+import com.safa.payment.entity.PaymentTransaction;
+import com.safa.payment.entity.PurchaseOrder;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Compare-and-set transitions and gateway update checks of the payment transactions
+ *
+ * @author Qusai Safa
+ */
+class PaymentTransactionTransitionsTest {
+
+    private static final String REJECTED_METRIC = "payment.transaction.transition.rejected";
+    private static final String TRANSITIONS_METRIC = "payment.transaction.transitions";
+    private static final int CONCURRENT_CLICKS = 8;
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    // The update checks don't use the repositories
+    private final PaymentTransactionTransitions transitions = new PaymentTransactionTransitions(null, null, null, meterRegistry);
+
+    @Test
+    void wonTransitionUpdatesTheLoadedTransaction() {
+        PaymentTransactionServiceFixture fixture = new PaymentTransactionServiceFixture();
+        PurchaseOrder purchaseOrder = fixture.purchaseOrderReadyForPayment(1, null);
+        PaymentTransaction paymentTransaction = fixture.service.getLatestPaymentTransaction(purchaseOrder);
+
+        assertTrue(fixture.paymentTransactionTransitions.transition(paymentTransaction, PaymentTransactionPaymentStatus.INITIATED,
+                EnumSet.of(PaymentTransactionPaymentStatus.READY_FOR_PAYMENT)));
+
+        String initiated = PaymentTransactionPaymentStatus.INITIATED.getShortCode();
+        assertEquals(initiated, fixture.storedStatus(paymentTransaction.getId()));
+        assertEquals(initiated, paymentTransaction.getTransactionStatus());
+        assertEquals(1L, paymentTransaction.getVersion());
+        assertEquals(initiated, purchaseOrder.getLatestStatus());
+        assertEquals(1, fixture.meterRegistry.get(TRANSITIONS_METRIC).tag("to", "initiated").tag("result", "won").counter().count());
+    }
+
+    @Test
+    void lostTransitionLeavesTheLoadedTransaction() {
+        PaymentTransactionServiceFixture fixture = new PaymentTransactionServiceFixture();
+        PurchaseOrder purchaseOrder = fixture.purchaseOrderReadyForPayment(1, null);
+        PaymentTransaction paymentTransaction = fixture.service.getLatestPaymentTransaction(purchaseOrder);
+        // Paid in the meantime
+        fixture.setStoredStatus(paymentTransaction.getId(), PaymentTransactionPaymentStatus.AUTHORIZED);
+
+        assertFalse(fixture.paymentTransactionTransitions.transition(paymentTransaction, PaymentTransactionPaymentStatus.CANCELLED,
+                PaymentTransactionTransitions.CANCELLABLE_STATUSES));
+
+        assertEquals(PaymentTransactionPaymentStatus.AUTHORIZED.getShortCode(), fixture.storedStatus(paymentTransaction.getId()));
+        assertEquals(PaymentTransactionPaymentStatus.READY_FOR_PAYMENT.getShortCode(), paymentTransaction.getTransactionStatus());
+        assertEquals(0L, paymentTransaction.getVersion());
+        assertEquals(PaymentTransactionPaymentStatus.READY_FOR_PAYMENT.getShortCode(), purchaseOrder.getLatestStatus());
+        assertEquals(1, fixture.meterRegistry.get(TRANSITIONS_METRIC).tag("to", "cancelled").tag("result", "lost").counter().count());
+    }
+
+    @Test
+    void oneConcurrentClickWinsTheInitiatedTransition() throws Exception {
+        PaymentTransactionServiceFixture fixture = new PaymentTransactionServiceFixture();
+        PurchaseOrder purchaseOrder = fixture.purchaseOrderReadyForPayment(1, new Date(System.currentTimeMillis() + 600_000));
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(CONCURRENT_CLICKS);
+        try {
+            List<Future<PaymentTransaction>> clicks = new ArrayList<>();
+            for (int i = 0; i < CONCURRENT_CLICKS; i++) {
+                clicks.add(executor.submit(() -> {
+                    start.await();
+                    return fixture.service.validateOrderTransactionsStatus(purchaseOrder);
+                }));
+            }
+            start.countDown();
+            for (Future<PaymentTransaction> click : clicks) {
+                // Every click can go on to the payment page, only the winner moved the transaction
+                assertNotNull(click.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals(List.of(KafkaEventType.CREATE), fixture.events);
+        assertEquals(PaymentTransactionPaymentStatus.INITIATED.getShortCode(), fixture.storedStatus(purchaseOrder.getLatestTransactionId()));
+        assertEquals(1, fixture.meterRegistry.get(TRANSITIONS_METRIC).tag("result", "won").counter().count());
+        double lost = fixture.meterRegistry.find(TRANSITIONS_METRIC).tag("result", "lost").counters().stream()
+                .mapToDouble(Counter::count).sum();
+        // Clicks reading the transaction after the winner don't try the transition
+        assertTrue(lost <= CONCURRENT_CLICKS - 1, String.valueOf(lost));
+    }
+
+    @Test
+    void noonPaymentSequenceAppliesEachStatusOnce() {
+        PaymentTransaction paymentTransaction = transaction(PaymentTransactionPaymentStatus.READY_FOR_PAYMENT);
+        List<String> applied = new ArrayList<>();
+        for (String noonStatus : List.of("INITIATED", "AUTHENTICATED", "3DS_RESULT_VERIFIED", "AUTHORIZED", "CAPTURED")) {
+            String status = NoonPaymentStatus.getPaymentTransactionPaymentStatus(noonStatus).getShortCode();
+            if (transitions.isRepeatedUpdate(paymentTransaction, status)) {
+                continue;
+            }
+            assertTrue(transitions.isAllowedUpdate(PaymentGateway.NOON, paymentTransaction, status), noonStatus);
+            paymentTransaction.setTransactionStatus(status);
+            applied.add(noonStatus);
+        }
+        assertEquals(List.of("INITIATED", "AUTHENTICATED", "3DS_RESULT_VERIFIED"), applied);
+        assertEquals(PaymentTransactionPaymentStatus.AUTHORIZED.getShortCode(), paymentTransaction.getTransactionStatus());
+        assertNull(meterRegistry.find(REJECTED_METRIC).counter(), "Repeated authorized updates aren't rejections");
+    }
+
+    @Test
+    void repeatedStatuses() {
+        assertTrue(transitions.isRepeatedUpdate(transaction(PaymentTransactionPaymentStatus.AUTHORIZED), "A"));
+        assertTrue(transitions.isRepeatedUpdate(transaction(PaymentTransactionPaymentStatus.HOLD_AUTHORIZED), "H"));
+        assertTrue(transitions.isRepeatedUpdate(transaction(PaymentTransactionPaymentStatus.INITIATED), "I"));
+        // Each partial reversal is a new reversal
+        assertFalse(transitions.isRepeatedUpdate(transaction(PaymentTransactionPaymentStatus.PARTIALLY_REVERSED), "P"));
+        assertFalse(transitions.isRepeatedUpdate(transaction(PaymentTransactionPaymentStatus.HOLD_AUTHORIZED), "A"));
+        assertFalse(transitions.isRepeatedUpdate(transaction(null), "A"));
+    }
+
+    @Test
+    void outOfOrderUpdateIsRejectedAndCounted() {
+        PaymentTransaction paymentTransaction = transaction(PaymentTransactionPaymentStatus.AUTHORIZED);
+        assertFalse(transitions.isRepeatedUpdate(paymentTransaction, "I"));
+        assertFalse(transitions.isAllowedUpdate(PaymentGateway.NOON, paymentTransaction, "I"));
+        assertEquals(1, meterRegistry.get(REJECTED_METRIC).tag("gateway", "noon").tag("from", "authorized")
+                .tag("to", "initiated").counter().count());
+    }
+
+    @Test
+    void unknownStatusesAreAllowed() {
+        assertTrue(transitions.isAllowedUpdate(PaymentGateway.TELR, transaction(PaymentTransactionPaymentStatus.AUTHORIZED), "X"));
+        assertTrue(transitions.isAllowedUpdate(PaymentGateway.TELR, transaction(null), "A"));
+        assertNull(meterRegistry.find(REJECTED_METRIC).counter());
+    }
+
+    private static PaymentTransaction transaction(PaymentTransactionPaymentStatus status) {
+        PaymentTransaction paymentTransaction = new PaymentTransaction();
+        paymentTransaction.setTransactionStatus(status != null ? status.getShortCode() : null);
+        return paymentTransaction;
+    }
+}
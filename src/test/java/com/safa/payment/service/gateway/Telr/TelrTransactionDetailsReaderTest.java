@@ -0,0 +1,102 @@
+package com.safa.payment.service.gateway.Telr;
+
+import com.safa.payment.dto.telr.TransactionIdentifiers;
+import com.safa.payment.exception.InternalPaymentException;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Reading the identifiers of the Telr transaction details xml, nested and unknown elements are skipped
+ *
+ * @author Qusai Safa
+ */
+class TelrTransactionDetailsReaderTest {
+
+    private final TelrTransactionDetailsReader reader = new TelrTransactionDetailsReader();
+
+    @Test
+    void transactionDetails() {
+        TransactionIdentifiers transactionIdentifiers = reader.read(stream("""
+                <?xml version="1.0" encoding="UTF-8"?>
+                <transaction>
+                    <id>040023303844</id>
+                    <prev_id></prev_id>
+                    <agreementid> 98765 </agreementid>
+                    <amount>150.00</amount>
+                    <cartid>S_1200_1_AE_1714720000</cartid>
+                    <description>Payment request for purchase order id:1200</description>
+                </transaction>
+                """));
+        assertEquals("040023303844", transactionIdentifiers.getId());
+        assertEquals("98765", transactionIdentifiers.getAgreementId());
+        assertEquals("S_1200_1_AE_1714720000", transactionIdentifiers.getCartId());
+    }
+
+    @Test
+    void nestedAndUnknownElementsAreSkipped() {
+        TransactionIdentifiers transactionIdentifiers = reader.read(stream("""
+                <transaction>
+                    <status><code>3</code><id>nested status id</id></status>
+                    <auth><status>A</status><cartid>nested cart id</cartid><message>Authorised</message></auth>
+                    <unknown attribute="x"><deeper><agreementid>nested agreement id</agreementid></deeper></unknown>
+                    <id>040023303844</id>
+                    <card><type>Visa Credit</type><last4>1111</last4></card>
+                    <cartid>S_1200_1_AE_1714720000</cartid>
+                </transaction>
+                """));
+        assertEquals("040023303844", transactionIdentifiers.getId());
+        assertNull(transactionIdentifiers.getAgreementId());
+        assertEquals("S_1200_1_AE_1714720000", transactionIdentifiers.getCartId());
+    }
+
+    @Test
+    void emptyElementsAreNull() {
+        TransactionIdentifiers transactionIdentifiers = reader.read(stream(
+                "<transaction><id>040023303844</id><agreementid/><cartid>  </cartid></transaction>"));
+        assertEquals("040023303844", transactionIdentifiers.getId());
+        assertNull(transactionIdentifiers.getAgreementId());
+        assertNull(transactionIdentifiers.getCartId());
+    }
+
+    @Test
+    void readingStopsOnceTheIdentifiersAreFound() {
+        // The truncated remainder isn't read
+        TransactionIdentifiers transactionIdentifiers = reader.read(stream(
+                "<transaction><id>1</id><agreementid>2</agreementid><cartid>3</cartid><description>trunc"));
+        assertEquals("1", transactionIdentifiers.getId());
+        assertEquals("2", transactionIdentifiers.getAgreementId());
+        assertEquals("3", transactionIdentifiers.getCartId());
+    }
+
+    @Test
+    void malformedXml() {
+        assertInvalid(() -> reader.read(stream("<transaction><id>1</id><agreementid>2</cartid></transaction>")));
+        assertInvalid(() -> reader.read(stream("<transaction><id>1</id>")));
+        assertInvalid(() -> reader.read(stream("not xml")));
+        assertInvalid(() -> reader.read(stream("")));
+        assertInvalid(() -> reader.read(null));
+    }
+
+    @Test
+    void externalEntitiesAreNotResolved() {
+        assertInvalid(() -> reader.read(stream("""
+                <?xml version="1.0"?>
+                <!DOCTYPE transaction [<!ENTITY secret SYSTEM "file:///etc/passwd">]>
+                <transaction><id>&secret;</id></transaction>
+                """)));
+    }
+
+    private static void assertInvalid(Runnable read) {
+        InternalPaymentException e = assertThrows(InternalPaymentException.class, read::run);
+        assertTrue(e.getMessage().startsWith("Failed parsing response from get transaction details API"), e.getMessage());
+    }
+
+    private static InputStream stream(String body) {
+        return new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,207 @@
+package com.safa.payment.service.gateway;
+
+import com.safa.payment.dto.noon.NoonTransactionIncomingDto;
+import com.safa.payment.dto.telr.TelrPaymentTransactionIncomingDto;
+import org.junit.jupiter.api.Test;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Base64;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Webhook signatures of both gateways, checked against vectors of the previous per call implementation
+ *
+ * @author Qusai Safa
+ */
+class WebhookSignatureVerifierTest {
+
+    private static final String TELR_SECRET = "kR7#pQ2m-Xz9Lw4T";
+    private static final String NOON_SECRET = "b3f1c0a8d2e94f7a9c6b5e4d3a2f1e0c";
+
+    private final WebhookSignatureVerifier verifier = new WebhookSignatureVerifier(TELR_SECRET, NOON_SECRET);
+
+    @Test
+    void telrVector() throws Exception {
+        TelrPaymentTransactionIncomingDto dto = telrWebhook("Payment request for purchase order id:1200");
+        dto.setTran_check("da44f62248bae48f02c47865bc6c00983ee3c545");
+        assertEquals(dto.getTran_check(), previousTelrSignature(dto));
+        assertTrue(verifier.verifyTelr(dto));
+    }
+
+    @Test
+    void telrNonAsciiDescription() throws Exception {
+        // Arabic, a 3 byte char, an emoji (surrogate pair), signed as utf-8
+        TelrPaymentTransactionIncomingDto dto = telrWebhook("طلب دفع — café ☕ 😀");
+        dto.setTran_check("5d4b71324d68d1996ba4a7a2153387e2ac296ca1");
+        assertEquals(dto.getTran_check(), previousTelrSignature(dto));
+        assertTrue(verifier.verifyTelr(dto));
+    }
+
+    @Test
+    void telrLongDescriptionGrowsTheBuffer() throws Exception {
+        TelrPaymentTransactionIncomingDto dto = telrWebhook("é".repeat(1000));
+        dto.setTran_check(previousTelrSignature(dto));
+        assertTrue(verifier.verifyTelr(dto));
+        // The grown buffer is reused by the next verification of the thread
+        TelrPaymentTransactionIncomingDto next = telrWebhook("short");
+        next.setTran_check(previousTelrSignature(next));
+        assertTrue(verifier.verifyTelr(next));
+    }
+
+    @Test
+    void telrMissingFieldIsRejected() throws Exception {
+        TelrPaymentTransactionIncomingDto dto = telrWebhook("Payment request for purchase order id:1200");
+        dto.setTran_check(previousTelrSignature(dto));
+        dto.setTran_authcode(null);
+        assertFalse(verifier.verifyTelr(dto));
+
+        TelrPaymentTransactionIncomingDto withoutCheck = telrWebhook("Payment request for purchase order id:1200");
+        assertFalse(verifier.verifyTelr(withoutCheck));
+    }
+
+    @Test
+    void telrTamperedWebhookIsRejected() throws Exception {
+        TelrPaymentTransactionIncomingDto dto = telrWebhook("Payment request for purchase order id:1200");
+        dto.setTran_check(previousTelrSignature(dto));
+        dto.setTran_amount("1.00");
+        assertFalse(verifier.verifyTelr(dto));
+
+        dto = telrWebhook("Payment request for purchase order id:1200");
+        dto.setTran_check(flipLastChar(previousTelrSignature(dto)));
+        assertFalse(verifier.verifyTelr(dto));
+        dto.setTran_check(previousTelrSignature(dto).toUpperCase());
+        assertFalse(verifier.verifyTelr(dto));
+        dto.setTran_check(previousTelrSignature(dto).substring(1));
+        assertFalse(verifier.verifyTelr(dto));
+    }
+
+    @Test
+    void noonVector() throws Exception {
+        NoonTransactionIncomingDto dto = noonWebhook();
+        dto.setSignature("tZkQgWwepmt07aY0obK01PialjdDi4vkxfgal+qubxaTW0PGZ5Qr4QxeIFQ3+UwvEQR2ojfSrs1jNdBzPIbWqA==");
+        assertEquals(dto.getSignature(), previousNoonSignature(dto));
+        assertTrue(verifier.verifyNoon(dto));
+    }
+
+    @Test
+    void noonRetryAttemptSignsTheOriginalOrder() throws Exception {
+        NoonTransactionIncomingDto dto = noonWebhook();
+        dto.setOrderId("188026384543");
+        dto.setOrderStatus("AUTHORIZED");
+        dto.setEventId("3f2c9a1e-6b7d-4e8f-9a0b-1c2d3e4f5a6c");
+        dto.setEventType("Authorize");
+        dto.setTimeStamp("2024-05-03T10:16:30.1234567Z");
+        dto.setOriginalOrderId("188026384542");
+        dto.setMerchantOrderReference("S_1200_1_AE");
+        dto.setAttemptNumber("2");
+        dto.setSignature("y7bEeyUk1drWZ6AI+A9bL1AmnSCUlOFZDz65gKaIWel5wgS4XdOjjF1qkEOFmsUV0Vfth+uLehtP3dQUnvgmhA==");
+        assertEquals(dto.getSignature(), previousNoonSignature(dto));
+        assertTrue(verifier.verifyNoon(dto));
+
+        // Without the attempt number the retry fields aren't signed
+        dto.setAttemptNumber(null);
+        assertFalse(verifier.verifyNoon(dto));
+    }
+
+    @Test
+    void noonNullFieldIsSignedAsNullText() throws Exception {
+        NoonTransactionIncomingDto dto = noonWebhook();
+        dto.setEventType(null);
+        dto.setSignature(previousNoonSignature(dto));
+        assertTrue(verifier.verifyNoon(dto));
+    }
+
+    @Test
+    void noonMissingSignatureOrSecretIsRejected() throws Exception {
+        NoonTransactionIncomingDto dto = noonWebhook();
+        assertFalse(verifier.verifyNoon(dto));
+
+        dto.setSignature(previousNoonSignature(dto));
+        assertFalse(new WebhookSignatureVerifier(TELR_SECRET, "").verifyNoon(dto));
+    }
+
+    @Test
+    void noonTamperedWebhookIsRejected() throws Exception {
+        NoonTransactionIncomingDto dto = noonWebhook();
+        dto.setSignature(previousNoonSignature(dto));
+        dto.setOrderStatus("CANCELLED");
+        assertFalse(verifier.verifyNoon(dto));
+
+        dto = noonWebhook();
+        dto.setSignature(flipLastChar(previousNoonSignature(dto).replace("==", "")) + "==");
+        assertFalse(verifier.verifyNoon(dto));
+        dto.setSignature(previousNoonSignature(dto) + "=");
+        assertFalse(verifier.verifyNoon(dto));
+    }
+
+    private static TelrPaymentTransactionIncomingDto telrWebhook(String description) {
+        TelrPaymentTransactionIncomingDto dto = new TelrPaymentTransactionIncomingDto();
+        dto.setTran_store("25798");
+        dto.setTran_type("sale");
+        dto.setTran_class("ecom");
+        dto.setTran_test("1");
+        dto.setTran_ref("040023303844");
+        dto.setTran_prevref("");
+        dto.setTran_firstref("040023303844");
+        dto.setTran_order("E5A0C7B9F2D14A6C");
+        dto.setTran_currency("AED");
+        dto.setTran_amount("150.00");
+        dto.setTran_cartid("S_1200_1_AE_1714720000");
+        dto.setTran_desc(description);
+        dto.setTran_status("A");
+        dto.setTran_authcode("123456");
+        dto.setTran_authmessage("Authorised");
+        return dto;
+    }
+
+    private static NoonTransactionIncomingDto noonWebhook() {
+        NoonTransactionIncomingDto dto = new NoonTransactionIncomingDto();
+        dto.setOrderId("188026384542");
+        dto.setOrderStatus("CAPTURED");
+        dto.setEventId("3f2c9a1e-6b7d-4e8f-9a0b-1c2d3e4f5a6b");
+        dto.setEventType("Sale");
+        dto.setTimeStamp("2024-05-03T10:15:30.1234567Z");
+        return dto;
+    }
+
+    private static String flipLastChar(String signature) {
+        char last = signature.charAt(signature.length() - 1);
+        return signature.substring(0, signature.length() - 1) + (last == 'a' ? 'b' : 'a');
+    }
+
+    /**
+     * Previous Telr implementation, string concat and BigInteger hex (utf-8 explicitly, it used the platform charset)
+     */
+    private static String previousTelrSignature(TelrPaymentTransactionIncomingDto dto) throws Exception {
+        String signature = String.join(":", TELR_SECRET, dto.getTran_store(), dto.getTran_type(), dto.getTran_class(),
+                dto.getTran_test(), dto.getTran_ref(), dto.getTran_prevref(), dto.getTran_firstref(), dto.getTran_order(),
+                dto.getTran_currency(), dto.getTran_amount(), dto.getTran_cartid(), dto.getTran_desc(),
+                dto.getTran_status(), dto.getTran_authcode(), dto.getTran_authmessage());
+        BigInteger no = new BigInteger(1, MessageDigest.getInstance("SHA-1").digest(signature.getBytes(StandardCharsets.UTF_8)));
+        StringBuilder hashText = new StringBuilder(no.toString(16));
+        while (hashText.length() < 40) {
+            hashText.insert(0, "0");
+        }
+        return hashText.toString();
+    }
+
+    /**
+     * Previous Noon implementation, Mac created and keyed per call
+     */
+    private static String previousNoonSignature(NoonTransactionIncomingDto dto) throws Exception {
+        String signature = dto.getOrderId() + "," + dto.getOrderStatus() + "," + dto.getEventId()
+                + "," + dto.getEventType() + "," + dto.getTimeStamp();
+        if (dto.getAttemptNumber() != null) {
+            signature = signature + "," + dto.getOriginalOrderId() + "," + dto.getMerchantOrderReference()
+                    + "," + dto.getAttemptNumber();
+        }
+        Mac mac = Mac.getInstance("HmacSHA512");
+        mac.init(new SecretKeySpec(NOON_SECRET.getBytes(StandardCharsets.UTF_8), "HmacSHA512"));
+        return Base64.getEncoder().encodeToString(mac.doFinal(signature.getBytes(StandardCharsets.UTF_8)));
+    }
+}
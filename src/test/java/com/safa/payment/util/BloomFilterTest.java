@@ -0,0 +1,50 @@
+package com.safa.payment.util;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Qusai Safa
+ */
+class BloomFilterTest {
+
+    private static final int INSERTIONS = 20_000;
+    private static final double FALSE_POSITIVE_PROBABILITY = 0.01;
+
+    @Test
+    void noFalseNegatives() {
+        BloomFilter bloomFilter = new BloomFilter(INSERTIONS, FALSE_POSITIVE_PROBABILITY);
+        for (int i = 0; i < INSERTIONS; i++) {
+            bloomFilter.put("telr:04002330" + i);
+        }
+        for (int i = 0; i < INSERTIONS; i++) {
+            assertTrue(bloomFilter.mightContain("telr:04002330" + i), "telr:04002330" + i);
+        }
+        assertEquals(INSERTIONS, bloomFilter.insertions());
+    }
+
+    @Test
+    void falsePositiveRateNearTheTarget() {
+        BloomFilter bloomFilter = new BloomFilter(INSERTIONS, FALSE_POSITIVE_PROBABILITY);
+        for (int i = 0; i < INSERTIONS; i++) {
+            bloomFilter.put("noon:" + i);
+        }
+        int falsePositives = 0;
+        int probes = 100_000;
+        for (int i = 0; i < probes; i++) {
+            if (bloomFilter.mightContain("noon:missing:" + i)) {
+                falsePositives++;
+            }
+        }
+        assertTrue(falsePositives < probes * FALSE_POSITIVE_PROBABILITY * 2, "false positives " + falsePositives);
+    }
+
+    @Test
+    void emptyFilterContainsNothing() {
+        BloomFilter bloomFilter = new BloomFilter(100, FALSE_POSITIVE_PROBABILITY);
+        assertFalse(bloomFilter.mightContain(""));
+        assertFalse(bloomFilter.mightContain("telr:1"));
+        assertEquals(0, bloomFilter.insertions());
+    }
+}
@@ -0,0 +1,158 @@
+package com.safa.payment.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Qusai Safa
+ */
+class SingleFlightTest {
+
+    private static final int CALLERS = 8;
+
+    private final SingleFlight<Long, String> singleFlight = new SingleFlight<>();
+
+    @Test
+    void concurrentAsyncCallersShareOneCall() {
+        AtomicInteger calls = new AtomicInteger();
+        CompletableFuture<String> gateway = new CompletableFuture<>();
+        List<CompletableFuture<String>> results = new ArrayList<>();
+        for (int i = 0; i < CALLERS; i++) {
+            results.add(singleFlight.execute(1L, () -> {
+                calls.incrementAndGet();
+                return gateway;
+            }));
+        }
+        assertEquals(1, singleFlight.inFlightCount());
+        gateway.complete("https://gateway/order/1");
+        for (CompletableFuture<String> result : results) {
+            assertEquals("https://gateway/order/1", result.join());
+        }
+        assertEquals(1, calls.get());
+        assertEquals(0, singleFlight.inFlightCount());
+    }
+
+    @Test
+    void differentKeysDontShare() {
+        CompletableFuture<String> first = singleFlight.execute(1L, () -> CompletableFuture.completedFuture("1"));
+        CompletableFuture<String> second = singleFlight.execute(2L, () -> CompletableFuture.completedFuture("2"));
+        assertEquals("1", first.join());
+        assertEquals("2", second.join());
+    }
+
+    @Test
+    void asyncFailureReachesEveryWaiterAndReleasesTheKey() {
+        CompletableFuture<String> gateway = new CompletableFuture<>();
+        List<CompletableFuture<String>> results = new ArrayList<>();
+        for (int i = 0; i < CALLERS; i++) {
+            results.add(singleFlight.execute(1L, () -> gateway));
+        }
+        IllegalStateException failure = new IllegalStateException("gateway down");
+        gateway.completeExceptionally(failure);
+        for (CompletableFuture<String> result : results) {
+            ExecutionException e = assertThrows(ExecutionException.class, result::get);
+            assertSame(failure, e.getCause());
+        }
+        assertEquals(0, singleFlight.inFlightCount());
+        // Next caller runs a new call
+        assertEquals("retried", singleFlight.execute(1L, () -> CompletableFuture.completedFuture("retried")).join());
+    }
+
+    @Test
+    void callThrowingBeforeReturningReleasesTheKey() {
+        CompletableFuture<String> result = singleFlight.execute(1L, () -> {
+            throw new IllegalArgumentException("bad request");
+        });
+        assertTrue(result.isCompletedExceptionally());
+        assertEquals(0, singleFlight.inFlightCount());
+    }
+
+    @Test
+    void concurrentSyncCallersShareOneCall() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(CALLERS);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            results.add(executor.submit(() -> singleFlight.executeSync(1L, () -> {
+                calls.incrementAndGet();
+                started.countDown();
+                await(release);
+                return "https://gateway/order/1";
+            })));
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            for (int i = 1; i < CALLERS; i++) {
+                results.add(executor.submit(() -> singleFlight.executeSync(1L, () -> {
+                    calls.incrementAndGet();
+                    return "second call";
+                })));
+            }
+            // Give the waiters time to join the call in flight, the key is held until it completes
+            Thread.sleep(200);
+            assertEquals(1, singleFlight.inFlightCount());
+            release.countDown();
+            for (Future<String> result : results) {
+                assertEquals("https://gateway/order/1", result.get(5, TimeUnit.SECONDS));
+            }
+            assertEquals(1, calls.get());
+            assertEquals(0, singleFlight.inFlightCount());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void syncFailureReachesTheWaiters() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<String> owner = executor.submit(() -> singleFlight.executeSync(1L, () -> {
+                started.countDown();
+                await(release);
+                throw new IllegalStateException("gateway down");
+            }));
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            CompletableFuture<String> waiting = new CompletableFuture<>();
+            executor.submit(() -> {
+                try {
+                    waiting.complete(singleFlight.executeSync(1L, () -> "second call"));
+                } catch (RuntimeException e) {
+                    waiting.completeExceptionally(e);
+                }
+            });
+            // Give the waiter time to join the call in flight
+            Thread.sleep(100);
+            release.countDown();
+            ExecutionException ownerFailure = assertThrows(ExecutionException.class, () -> owner.get(5, TimeUnit.SECONDS));
+            assertInstanceOf(IllegalStateException.class, ownerFailure.getCause());
+            ExecutionException waiterFailure = assertThrows(ExecutionException.class, () -> waiting.get(5, TimeUnit.SECONDS));
+            assertInstanceOf(IllegalStateException.class, waiterFailure.getCause());
+            assertEquals(0, singleFlight.inFlightCount());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+}